@@ -0,0 +1,130 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprints the application binary interface of a module.
+ * <p>
+ * The fingerprint is the SHA-1 of the {@link ClassFile#getABI() ABIs} of all
+ * the public classes in the module's output directory. As long as it does not
+ * change, modules depending on it need not be recompiled.
+ * </p>
+ * <p>
+ * Parsing all class files is not free, so the fingerprint is cached in a file
+ * together with the number of class files and their newest modification time;
+ * the cached fingerprint is used as long as those two still match.
+ * </p>
+ */
+public class ABIFingerprint {
+
+	private ABIFingerprint() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Returns the ABI fingerprint of a directory of class files.
+	 *
+	 * @param classes the directory containing the class files
+	 * @param cache the file to cache the fingerprint in
+	 * @return the fingerprint
+	 * @throws IOException
+	 */
+	public static String get(final File classes, final File cache)
+		throws IOException
+	{
+		final Map<String, File> files = new TreeMap<String, File>();
+		final long lastModified = addClassFiles(classes, "", files);
+		final String stamp = files.size() + "\t" + lastModified;
+
+		if (cache.exists()) try {
+			final BufferedReader reader = new BufferedReader(new FileReader(cache));
+			try {
+				final String line = reader.readLine();
+				if (line != null && line.startsWith(stamp + "\t")) {
+					return line.substring(stamp.length() + 1);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final IOException e) {
+			// recompute
+		}
+
+		final MessageDigest digest = Checksums.newSHA1();
+		for (final File file : files.values()) {
+			final String abi = ClassFile.read(file).getABI();
+			if (abi != null) digest.update(abi.getBytes("UTF-8"));
+		}
+		final String result = Checksums.toHex(digest.digest());
+
+		cache.getParentFile().mkdirs();
+		final Writer writer = new FileWriter(cache);
+		try {
+			writer.write(stamp + "\t" + result + "\n");
+		}
+		finally {
+			writer.close();
+		}
+		return result;
+	}
+
+	private static long addClassFiles(final File directory, final String prefix,
+		final Map<String, File> result)
+	{
+		long lastModified = 0;
+		final File[] list = directory.listFiles();
+		if (list == null) return lastModified;
+		for (final File file : list) {
+			final String name = file.getName();
+			if (file.isDirectory()) {
+				final long lastModified2 = addClassFiles(file, prefix + name + "/",
+					result);
+				if (lastModified < lastModified2) lastModified = lastModified2;
+			}
+			else if (name.endsWith(".class")) {
+				result.put(prefix + name, file);
+				final long lastModified2 = file.lastModified();
+				if (lastModified < lastModified2) lastModified = lastModified2;
+			}
+		}
+		return lastModified;
+	}
+}
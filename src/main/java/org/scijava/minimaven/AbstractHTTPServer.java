@@ -0,0 +1,555 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal HTTP/1.1 server.
+ * <p>
+ * This is just enough of HTTP to serve files to, and accept files from, other
+ * MiniMaven instances: <tt>GET</tt>, <tt>HEAD</tt> and <tt>PUT</tt> with a
+ * <tt>Content-Length</tt>, and persistent connections. Files are sent using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * so that the operating system can copy them to the socket without going
+ * through the JVM.
+ * </p>
+ */
+public abstract class AbstractHTTPServer implements Closeable {
+
+	protected final static Charset ASCII = Charset.forName("US-ASCII");
+
+	// the default maximal number of connections handled at the same time
+	public final static int MAX_CONNECTIONS = 32;
+
+	protected final PrintStream err;
+	protected boolean verbose;
+	// idle connections are closed after this many milliseconds
+	protected int idleTimeout = 30000;
+	private final ServerSocketChannel server;
+	private final ExecutorService executor;
+	private volatile boolean closed;
+
+	/**
+	 * Binds the server socket.
+	 *
+	 * @param address the address to listen on; port 0 picks a free port
+	 * @param executor the threads handling the connections
+	 * @param err where to report problems
+	 * @throws IOException if the address could not be bound
+	 */
+	public AbstractHTTPServer(final InetSocketAddress address,
+		final ExecutorService executor, final PrintStream err) throws IOException
+	{
+		this.executor = executor;
+		this.err = err;
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address, 128);
+	}
+
+	/**
+	 * Creates a thread pool for handling connections.
+	 * <p>
+	 * The pool has at most the given number of threads and does not queue:
+	 * connections beyond that number are closed right away, so that slow or
+	 * idle clients cannot exhaust the threads.
+	 * </p>
+	 *
+	 * @param name the name of the threads
+	 * @param maxConnections the maximal number of connections handled at the
+	 *          same time
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(final String name,
+		final int maxConnections)
+	{
+		return new ThreadPoolExecutor(1, maxConnections, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory()
+			{
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	public void setVerbose(final boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Sets how long to wait for the next request on a connection.
+	 *
+	 * @param milliseconds the timeout; 0 waits forever
+	 */
+	public void setIdleTimeout(final int milliseconds) {
+		idleTimeout = milliseconds;
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until {@link #close()} is called.
+	 *
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		while (!closed) {
+			final SocketChannel channel;
+			try {
+				channel = server.accept();
+			}
+			catch (final AsynchronousCloseException e) {
+				break;
+			}
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setSoTimeout(idleTimeout);
+			try {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						handleConnection(channel);
+					}
+				});
+			}
+			catch (final RejectedExecutionException e) {
+				if (verbose) err.println("Too many connections");
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts accepting connections in a background thread.
+	 */
+	public void start() {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					serve();
+				}
+				catch (final IOException e) {
+					if (!closed) e.printStackTrace(err);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+	}
+
+	/**
+	 * Handles one request.
+	 *
+	 * @param request the request; for <tt>PUT</tt>, the body is available via
+	 *          {@link Request#getBody()}
+	 * @param response the response, which must be sent exactly once
+	 * @throws IOException
+	 */
+	protected abstract void handle(Request request, Response response)
+		throws IOException;
+
+	private void handleConnection(final SocketChannel channel) {
+		try {
+			// unlike the channel's, the socket's stream honors the idle timeout
+			final InputStream in = new BufferedInputStream(channel.socket()
+				.getInputStream());
+			for (;;) {
+				final Request request = Request.read(in);
+				if (request == null) break;
+				final Response response = new Response(channel, request);
+				try {
+					handle(request, response);
+				}
+				catch (final IOException e) {
+					if (!response.sent) {
+						response.sendError(500, e.getMessage());
+					}
+					throw e;
+				}
+				if (!response.sent) response.sendError(500, "No response");
+				request.skipBody();
+				if (!request.keepAlive) break;
+			}
+		}
+		catch (final IOException e) {
+			if (verbose) err.println("Connection closed: " + e);
+		}
+		catch (final RuntimeException e) {
+			e.printStackTrace(err);
+		}
+		finally {
+			try {
+				channel.close();
+			}
+			catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Splits a request path into its segments, refusing to leave the root.
+	 *
+	 * @param path the request path, e.g. <tt>/org/scijava/x/1.0/x-1.0.jar</tt>
+	 * @return the decoded segments, or null if the path is invalid
+	 */
+	protected static String[] getPathSegments(final String path) {
+		final String decoded;
+		try {
+			decoded = new URI(path).getPath();
+		}
+		catch (final URISyntaxException e) {
+			return null;
+		}
+		if (decoded == null || !decoded.startsWith("/")) return null;
+		final String[] segments = decoded.substring(1).split("/", -1);
+		for (final String segment : segments) {
+			if (segment.equals("") || segment.equals(".") || segment.equals("..") ||
+				segment.indexOf('\\') >= 0 || segment.indexOf(':') >= 0)
+			{
+				return null;
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * A parsed HTTP request.
+	 */
+	public static class Request {
+
+		protected String method, path;
+		protected Map<String, String> headers = new HashMap<String, String>();
+		protected long contentLength;
+		protected boolean keepAlive;
+		private InputStream in;
+		private long remaining;
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns the value of a header.
+		 *
+		 * @param name the name of the header (case-insensitive)
+		 * @return the value, or null
+		 */
+		public String getHeader(final String name) {
+			return headers.get(name.toLowerCase(Locale.ENGLISH));
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Returns the body of the request.
+		 * <p>
+		 * The stream must not be closed; it ends after <tt>Content-Length</tt>
+		 * bytes.
+		 * </p>
+		 *
+		 * @return the body
+		 */
+		public InputStream getBody() {
+			return new InputStream() {
+
+				@Override
+				public int read() throws IOException {
+					if (remaining <= 0) return -1;
+					final int b = in.read();
+					if (b < 0) throw new IOException("Premature end of request");
+					remaining--;
+					return b;
+				}
+
+				@Override
+				public int read(final byte[] buffer, final int offset, int length)
+					throws IOException
+				{
+					if (remaining <= 0) return -1;
+					if (length > remaining) length = (int) remaining;
+					final int count = in.read(buffer, offset, length);
+					if (count < 0) throw new IOException("Premature end of request");
+					remaining -= count;
+					return count;
+				}
+			};
+		}
+
+		private void skipBody() throws IOException {
+			final InputStream body = getBody();
+			final byte[] buffer = new byte[16384];
+			while (body.read(buffer) >= 0) {
+				// skip
+			}
+		}
+
+		private static Request read(final InputStream in) throws IOException {
+			String line = readLine(in);
+			// tolerate empty lines between requests
+			while (line != null && line.equals(""))
+				line = readLine(in);
+			if (line == null) return null;
+			final String[] parts = line.split(" ");
+			if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+				throw new IOException("Invalid request: " + line);
+			}
+			final Request request = new Request();
+			request.method = parts[0];
+			request.path = parts[1];
+			request.keepAlive = parts[2].equals("HTTP/1.1");
+			for (;;) {
+				line = readLine(in);
+				if (line == null) throw new IOException("Premature end of headers");
+				if (line.equals("")) break;
+				final int colon = line.indexOf(':');
+				if (colon <= 0) continue;
+				request.headers.put(line.substring(0, colon).trim().toLowerCase(
+					Locale.ENGLISH), line.substring(colon + 1).trim());
+			}
+			final String connection = request.getHeader("Connection");
+			if ("close".equalsIgnoreCase(connection)) request.keepAlive = false;
+			else if ("keep-alive".equalsIgnoreCase(connection)) {
+				request.keepAlive = true;
+			}
+			final String length = request.getHeader("Content-Length");
+			if (length != null) try {
+				request.contentLength = Long.parseLong(length);
+			}
+			catch (final NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + length);
+			}
+			else if (request.getHeader("Transfer-Encoding") != null) {
+				throw new IOException("Chunked requests are not supported");
+			}
+			request.in = in;
+			request.remaining = request.contentLength;
+			return request;
+		}
+
+		private static String readLine(final InputStream in) throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			for (;;) {
+				final int c = in.read();
+				if (c < 0) return line.size() == 0 ? null : line.toString("US-ASCII");
+				if (c == '\n') break;
+				if (c != '\r') line.write(c);
+				if (line.size() > 16384) throw new IOException("Line too long");
+			}
+			return line.toString("US-ASCII");
+		}
+	}
+
+	/**
+	 * The response to a {@link Request}.
+	 */
+	public static class Response {
+
+		private final SocketChannel channel;
+		private final Request request;
+		private boolean sent;
+
+		private Response(final SocketChannel channel, final Request request) {
+			this.channel = channel;
+			this.request = request;
+		}
+
+		public boolean isSent() {
+			return sent;
+		}
+
+		/**
+		 * Sends a file.
+		 *
+		 * @param file the file to send
+		 * @param contentType the MIME type of the file
+		 * @throws IOException
+		 */
+		public void sendFile(final File file, final String contentType)
+			throws IOException
+		{
+			final FileInputStream in;
+			try {
+				in = new FileInputStream(file);
+			}
+			catch (final IOException e) {
+				sendError(404, "Not found");
+				return;
+			}
+			try {
+				final FileChannel source = in.getChannel();
+				final long size = source.size();
+				sendHeaders(200, "OK", contentType, size, file.lastModified());
+				if (request.method.equals("HEAD")) return;
+				long position = 0;
+				while (position < size) {
+					final long count = source.transferTo(position, size - position,
+						channel);
+					if (count <= 0) {
+						// the file shrank, or the connection is gone
+						throw new IOException("Could not send " + file);
+					}
+					position += count;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Sends a (small) body from memory.
+		 *
+		 * @param code the status code
+		 * @param contentType the MIME type of the body
+		 * @param body the body
+		 * @throws IOException
+		 */
+		public void send(final int code, final String contentType,
+			final byte[] body) throws IOException
+		{
+			sendHeaders(code, getReason(code), contentType, body.length, -1);
+			if (!request.method.equals("HEAD")) write(ByteBuffer.wrap(body));
+		}
+
+		public void sendError(final int code, final String message)
+			throws IOException
+		{
+			send(code, "text/plain", ((message == null ? getReason(code) : message) +
+				"\n").getBytes(ASCII));
+		}
+
+		private void sendHeaders(final int code, final String reason,
+			final String contentType, final long length, final long lastModified)
+			throws IOException
+		{
+			if (sent) throw new IllegalStateException("Response already sent");
+			sent = true;
+			final StringBuilder builder = new StringBuilder();
+			builder.append("HTTP/1.1 ").append(code).append(' ').append(reason)
+				.append("\r\n");
+			builder.append("Content-Type: ").append(contentType).append("\r\n");
+			builder.append("Content-Length: ").append(length).append("\r\n");
+			if (lastModified > 0) {
+				builder.append("Last-Modified: ").append(String.format(Locale.ENGLISH,
+					"%ta, %<td %<tb %<tY %<tT GMT", toGMT(lastModified))).append("\r\n");
+			}
+			if (!request.keepAlive) builder.append("Connection: close\r\n");
+			builder.append("\r\n");
+			write(ByteBuffer.wrap(builder.toString().getBytes(ASCII)));
+		}
+
+		private void write(final ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		private static Calendar toGMT(final long millis) {
+			final Calendar calendar = Calendar.getInstance(TimeZone
+				.getTimeZone("GMT"), Locale.ENGLISH);
+			calendar.setTimeInMillis(millis);
+			return calendar;
+		}
+
+		private static String getReason(final int code) {
+			switch (code) {
+				case 200:
+					return "OK";
+				case 201:
+					return "Created";
+				case 204:
+					return "No Content";
+				case 400:
+					return "Bad Request";
+				case 403:
+					return "Forbidden";
+				case 404:
+					return "Not Found";
+				case 405:
+					return "Method Not Allowed";
+				case 409:
+					return "Conflict";
+				case 500:
+					return "Internal Server Error";
+				case 502:
+					return "Bad Gateway";
+				default:
+					return "Status " + code;
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes downloads into the same artifact directory.
+ * <p>
+ * Several MiniMaven processes (and several threads of the same process) may
+ * want to download the same artifact into the same local repository. To avoid
+ * that they race on the temporary files and the final rename, the artifact
+ * directory is locked for the duration of the download, both within the JVM
+ * and, via a {@link FileLock} on a lock file, across processes. For artifact
+ * directories, the lock files live in <tt>.minimaven/locks/</tt> of the local
+ * repository (see {@link BuildEnvironment#lockArtifact}), so that artifacts
+ * that turn out not to exist leave no directories behind.
+ * </p>
+ * <p>
+ * The operating system releases the file lock when the owning process dies,
+ * therefore a lock can never go stale. The lock files themselves are left in
+ * place on purpose: deleting a lock file while another process waits for it
+ * would let a third process lock a fresh file of the same name, and the two
+ * would download concurrently again. What <i>can</i> go stale are partial
+ * downloads of a process that was killed; those are removed when the lock is
+ * acquired, provided that the file system honors the file lock and the
+ * partial downloads have not been touched for a while.
+ * </p>
+ */
+public class ArtifactLock implements Closeable {
+
+	public final static String LOCK_FILE_NAME = ".minimaven.lock";
+
+	// partial downloads younger than this might still be written to
+	private final static long STALE_MILLISECONDS = 60 * 60 * 1000;
+
+	private final static Map<File, LocalLock> localLocks =
+		new HashMap<File, LocalLock>();
+
+	protected final File directory;
+	private final LocalLock localLock;
+	private RandomAccessFile file;
+	private FileLock lock;
+	private boolean contended, closed;
+
+	private ArtifactLock(final File directory, final LocalLock localLock) {
+		this.directory = directory;
+		this.localLock = localLock;
+	}
+
+	/**
+	 * Locks the given directory, waiting for other threads and processes to
+	 * release it if necessary.
+	 * <p>
+	 * The lock file is created inside the directory.
+	 * </p>
+	 *
+	 * @param directory the directory
+	 * @param err where to report that we have to wait, or null
+	 * @param verbose whether to report problems with file locking
+	 * @return the lock; call {@link #close()} to release it
+	 * @throws IOException if the directory could not be created
+	 */
+	public static ArtifactLock lock(final File directory, final PrintStream err,
+		final boolean verbose) throws IOException
+	{
+		return lock(directory, new File(directory, LOCK_FILE_NAME), err, verbose);
+	}
+
+	/**
+	 * Locks the given artifact directory, waiting for other threads and
+	 * processes to release it if necessary.
+	 * <p>
+	 * Neither the artifact directory nor its parents are created, so that
+	 * looking for an artifact that does not exist leaves no trace.
+	 * </p>
+	 *
+	 * @param directory the artifact directory, e.g.
+	 *          <tt>~/.m2/repository/org/scijava/minimaven/</tt>
+	 * @param lockFile the file to lock across processes
+	 * @param err where to report that we have to wait, or null
+	 * @param verbose whether to report problems with file locking
+	 * @return the lock; call {@link #close()} to release it
+	 * @throws IOException if the lock file could not be created
+	 */
+	public static ArtifactLock lock(final File directory, final File lockFile,
+		final PrintStream err, final boolean verbose) throws IOException
+	{
+		final File key = directory.getAbsoluteFile();
+		LocalLock localLock;
+		synchronized (localLocks) {
+			localLock = localLocks.get(key);
+			if (localLock == null) {
+				localLock = new LocalLock();
+				localLocks.put(key, localLock);
+			}
+			localLock.users++;
+		}
+
+		final ArtifactLock result = new ArtifactLock(key, localLock);
+		if (!localLock.tryLock()) {
+			result.contended = true;
+			if (err != null) err.println("Waiting for concurrent download in " + key);
+			localLock.lock();
+		}
+		// this thread already holds the file lock
+		if (localLock.getHoldCount() > 1) return result;
+
+		try {
+			final File parent = lockFile.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Could not make directory " + parent);
+			}
+			result.file = new RandomAccessFile(lockFile, "rw");
+			final FileChannel channel = result.file.getChannel();
+			try {
+				result.lock = channel.tryLock();
+				if (result.lock == null) {
+					result.contended = true;
+					if (err != null) {
+						err.println("Waiting for another process downloading into " + key);
+					}
+					result.lock = channel.lock();
+				}
+			}
+			catch (final IOException e) {
+				// e.g. NFS without a lock daemon: proceed without cross-process lock
+				if (verbose && err != null) {
+					err.println("Warning: could not lock " + key + ": " + e.getMessage());
+				}
+			}
+			// without the file lock, another process might be downloading
+			if (result.lock != null) result.removePartialDownloads();
+		}
+		catch (final IOException e) {
+			result.close();
+			throw e;
+		}
+		catch (final RuntimeException e) {
+			result.close();
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * Reports whether another thread or process held the lock when we tried to
+	 * acquire it, i.e. whether the artifact might have been downloaded in the
+	 * meantime.
+	 *
+	 * @return whether we had to wait for the lock
+	 */
+	public boolean wasContended() {
+		return contended;
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			if (lock != null) lock.release();
+			if (file != null) file.close();
+		}
+		catch (final IOException e) {
+			// the lock is released when the channel is closed anyway
+		}
+		finally {
+			lock = null;
+			file = null;
+			if (localLock.isHeldByCurrentThread()) localLock.unlock();
+			synchronized (localLocks) {
+				if (--localLock.users == 0) localLocks.remove(directory);
+			}
+		}
+	}
+
+	// remove leftovers of downloads that were interrupted by a killed process
+	private void removePartialDownloads() {
+		removePartialDownloads(directory);
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		for (final File file : list) {
+			if (file.isDirectory()) removePartialDownloads(file);
+		}
+	}
+
+	private static void removePartialDownloads(final File directory) {
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		final long stale = System.currentTimeMillis() - STALE_MILLISECONDS;
+		for (final File file : list) {
+			if (file.isFile() && file.getName().endsWith(".new") && file
+				.lastModified() < stale)
+			{
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Counts the {@link ArtifactLock}s using it, so that it can be forgotten
+	 * once the last of them is closed.
+	 */
+	private static class LocalLock extends ReentrantLock {
+
+		private int users;
+	}
+
+	// for testing
+	static int getLocalLockCount() {
+		synchronized (localLocks) {
+			return localLocks.size();
+		}
+	}
+}
@@ -0,0 +1,670 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A content-addressed cache of build outputs.
+ * <p>
+ * A project's outputs are looked up by a key which hashes everything that
+ * goes into the build: sources, resources, compiler options and the class
+ * path (see {@link KeyBuilder}). This allows reusing the outputs when the same
+ * sources are built again, e.g. after switching branches or in a fresh
+ * worktree, where the time stamps say nothing about the contents.
+ * </p>
+ * <p>
+ * The cache directory has two parts: <tt>cas/</tt> stores the files by the
+ * SHA-1 of their contents, and <tt>ac/</tt> stores, by key, which files make
+ * up <tt>target/classes</tt> and the <tt>.jar</tt> file. All files are
+ * written to temporary files first and then renamed, so that several
+ * MiniMaven processes can share a cache.
+ * </p>
+ * <p>
+ * The same layout is used over HTTP to share a cache between machines, e.g.
+ * populated by CI and read by developers (see
+ * {@link #setRemote(String, int, boolean, PrintStream)} and
+ * {@link BuildCacheServer}).
+ * </p>
+ */
+public class BuildCache {
+
+	private final static String HEADER = "# MiniMaven build cache v1";
+
+	// the timeout for transferring files from and to the remote cache
+	private final static int TRANSFER_TIMEOUT = 60000;
+
+	protected final File directory;
+
+	// the remote cache, if any
+	private String remote;
+	private int budget;
+	private boolean push;
+	private String token;
+	private PrintStream err;
+	private ExecutorService uploader;
+
+	// the content hashes of files, by path, valid as long as size and mtime match
+	private final static Map<String, String[]> hashes =
+		new HashMap<String, String[]>();
+
+	public BuildCache(final File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the cache directory configured via
+	 * <tt>minimaven.cache.directory</tt>.
+	 *
+	 * @return the directory, by default <tt>~/.m2/minimaven-cache</tt>
+	 */
+	public static File getDefaultDirectory() {
+		final String path = System.getProperty("minimaven.cache.directory");
+		if (path != null && !path.equals("")) return new File(path);
+		return new File(System.getProperty("user.home"), ".m2/minimaven-cache");
+	}
+
+	/**
+	 * Computes the content hash of a file.
+	 * <p>
+	 * The result is remembered for as long as the file's size and modification
+	 * time do not change.
+	 * </p>
+	 *
+	 * @param file the file
+	 * @return the SHA-1 as 40 lower-case hex digits
+	 * @throws IOException
+	 */
+	public static String hash(final File file) throws IOException {
+		final String path = file.getAbsolutePath();
+		final String stamp = file.length() + "\t" + file.lastModified();
+		synchronized (hashes) {
+			final String[] cached = hashes.get(path);
+			if (cached != null && cached[0].equals(stamp)) return cached[1];
+		}
+		final String result = Checksums.sha1(file);
+		synchronized (hashes) {
+			hashes.put(path, new String[] { stamp, result });
+		}
+		return result;
+	}
+
+	/**
+	 * Shares the cache with other machines via HTTP.
+	 * <p>
+	 * Outputs missing from the local cache are looked up at the given URL,
+	 * e.g. served by a {@link BuildCacheServer}, via <tt>GET ac/&lt;key&gt;</tt>
+	 * and <tt>GET cas/&lt;sha1&gt;</tt>. If the lookup takes longer than the
+	 * budget, it counts as a miss; if the server cannot be reached, it is not
+	 * asked again.
+	 * </p>
+	 * <p>
+	 * When pushing, outputs stored in the local cache are uploaded in the
+	 * background via <tt>PUT</tt>, files first, so that other machines never
+	 * see a key without its files.
+	 * </p>
+	 *
+	 * @param url the base URL of the remote cache
+	 * @param budget the maximal time to wait for a lookup, in milliseconds
+	 * @param push whether to upload new outputs
+	 * @param err where to report problems
+	 */
+	public synchronized void setRemote(final String url, final int budget,
+		final boolean push, final PrintStream err)
+	{
+		remote = url.endsWith("/") ? url : url + "/";
+		this.budget = budget;
+		this.push = push;
+		this.err = err;
+	}
+
+	/**
+	 * Sets the secret needed to upload to the remote cache.
+	 *
+	 * @param token the token configured on the {@link BuildCacheServer}
+	 */
+	public synchronized void setUploadToken(final String token) {
+		this.token = token;
+	}
+
+	/**
+	 * Looks up the outputs for a key.
+	 *
+	 * @param key the key, as computed by a {@link KeyBuilder}
+	 * @return the outputs, or null if they are not cached (completely)
+	 */
+	public Entry get(final String key) {
+		final Entry entry = readEntry(getActionFile(key));
+		if (entry != null && entry.isComplete()) return entry;
+		return remote == null ? null : fetch(key);
+	}
+
+	/**
+	 * Stores the outputs of a build.
+	 *
+	 * @param key the key, as computed by a {@link KeyBuilder}
+	 * @param classes the directory with the classes and resources
+	 * @param jar the <tt>.jar</tt> file, or null
+	 * @throws IOException
+	 */
+	public void put(final String key, final File classes, final File jar)
+		throws IOException
+	{
+		final Map<String, String> files = new TreeMap<String, String>();
+		addRecursively(files, classes, "");
+		final File actionFile = getActionFile(key);
+		actionFile.getParentFile().mkdirs();
+		final File tmp = getTemporaryFile(actionFile);
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8"));
+		out.println(HEADER);
+		for (final Map.Entry<String, String> entry : files.entrySet()) {
+			out.println("C\t" + entry.getValue() + "\t" + entry.getKey());
+		}
+		if (jar != null && jar.exists()) out.println("J\t" + putBlob(jar));
+		out.close();
+		if (out.checkError()) {
+			tmp.delete();
+			throw new IOException("Could not write " + tmp);
+		}
+		rename(tmp, actionFile);
+		if (remote != null && push) upload(key);
+	}
+
+	/**
+	 * Waits until all pending uploads to the remote cache are done.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitUploads() throws InterruptedException {
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = uploader;
+		}
+		if (executor == null) return;
+		try {
+			// uploads happen one after the other
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					// nothing to do
+				}
+			}).get();
+		}
+		catch (final ExecutionException e) {
+			// cannot happen
+		}
+	}
+
+	/**
+	 * The cached outputs for a key.
+	 */
+	public class Entry {
+
+		private final Map<String, String> files;
+		private final String jar;
+
+		private Entry(final Map<String, String> files, final String jar) {
+			this.files = files;
+			this.jar = jar;
+		}
+
+		private boolean isComplete() {
+			for (final String sha1 : files.values()) {
+				if (!getBlob(sha1).exists()) return false;
+			}
+			return jar == null || getBlob(jar).exists();
+		}
+
+		private Set<String> getBlobs() {
+			final Set<String> result = new TreeSet<String>(files.values());
+			if (jar != null) result.add(jar);
+			return result;
+		}
+
+		/**
+		 * Replaces the contents of a directory with the cached classes and
+		 * resources.
+		 *
+		 * @param classes the directory, usually <tt>target/classes</tt>
+		 * @throws IOException
+		 */
+		public void restoreClasses(final File classes) throws IOException {
+			if (classes.isDirectory()) BuildEnvironment.rmRF(classes);
+			classes.mkdirs();
+			final String prefix = classes.getCanonicalPath() + File.separator;
+			for (final Map.Entry<String, String> entry : files.entrySet()) {
+				final File file = new File(classes, entry.getKey());
+				if (!isValidPath(entry.getKey()) || !file.getCanonicalPath()
+					.startsWith(prefix))
+				{
+					throw new IOException("Refusing to write outside " + classes +
+						": " + entry.getKey());
+				}
+				file.getParentFile().mkdirs();
+				BuildEnvironment.copyFile(getBlob(entry.getValue()), file);
+			}
+		}
+
+		/**
+		 * Writes the cached <tt>.jar</tt> file, if there is one.
+		 *
+		 * @param file where to write the <tt>.jar</tt> file to
+		 * @return whether a <tt>.jar</tt> file was cached
+		 * @throws IOException
+		 */
+		public boolean restoreJar(final File file) throws IOException {
+			if (jar == null) return false;
+			file.getParentFile().mkdirs();
+			BuildEnvironment.copyFile(getBlob(jar), file);
+			return true;
+		}
+	}
+
+	/**
+	 * Computes cache keys.
+	 * <p>
+	 * Every input is added with a name, so that e.g. moving a file yields a
+	 * different key.
+	 * </p>
+	 */
+	public static class KeyBuilder {
+
+		private final MessageDigest digest = Checksums.newSHA1();
+
+		public KeyBuilder() {
+			add("version", HEADER);
+		}
+
+		public KeyBuilder add(final String name, final String value) {
+			try {
+				digest.update((name + "\t" + value + "\n").getBytes("UTF-8"));
+			}
+			catch (final UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			return this;
+		}
+
+		public KeyBuilder addFile(final String name, final File file)
+			throws IOException
+		{
+			return add(name, file.isFile() ? hash(file) : "missing");
+		}
+
+		/**
+		 * Adds all files in a directory, in a stable order.
+		 *
+		 * @param name the prefix for the relative paths
+		 * @param directory the directory
+		 * @throws IOException
+		 */
+		public KeyBuilder addDirectory(final String name, final File directory)
+			throws IOException
+		{
+			final File[] list = directory.listFiles();
+			if (list == null) return this;
+			Arrays.sort(list);
+			for (final File file : list) {
+				if (file.isDirectory()) {
+					addDirectory(name + "/" + file.getName(), file);
+				}
+				else addFile(name + "/" + file.getName(), file);
+			}
+			return this;
+		}
+
+		public String get() {
+			return Checksums.toHex(digest.digest());
+		}
+	}
+
+	/**
+	 * Parses the listing of a key's outputs.
+	 *
+	 * @param file the listing
+	 * @return the outputs, or null if the listing is missing or invalid
+	 */
+	protected Entry readEntry(final File file) {
+		final Map<String, String> files = new TreeMap<String, String>();
+		String jar = null;
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine())) return null;
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final String[] list = line.split("\t", 3);
+					if (list[0].equals("C") && list.length == 3 && isSHA1(list[1])) {
+						// the listing might come from a remote cache: stay in classes/
+						if (!isValidPath(list[2])) return null;
+						files.put(list[2], list[1]);
+					}
+					else if (list[0].equals("J") && list.length == 2 && isSHA1(
+						list[1]))
+					{
+						jar = list[1];
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final FileNotFoundException e) {
+			return null;
+		}
+		catch (final IOException e) {
+			return null;
+		}
+		return new Entry(files, jar);
+	}
+
+	protected static boolean isSHA1(final String string) {
+		return string.matches("[0-9a-f]{40}");
+	}
+
+	/**
+	 * Determines whether a path of a cached output is relative and stays inside
+	 * the output directory.
+	 *
+	 * @param path the path, with forward slashes
+	 * @return whether the path is valid
+	 */
+	protected static boolean isValidPath(final String path) {
+		if (path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf(
+			':') >= 0)
+		{
+			return false;
+		}
+		for (final String segment : path.split("/", -1)) {
+			if (segment.equals("") || segment.equals(".") || segment.equals("..")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Downloads a key's outputs from the remote cache into the local one.
+	 *
+	 * @param key the key
+	 * @return the outputs, or null if the remote cache does not have them
+	 */
+	private Entry fetch(final String key) {
+		final File actionFile = getActionFile(key);
+		final File tmp = getTemporaryFile(actionFile);
+		final FutureTask<Boolean> lookup = new FutureTask<Boolean>(
+			new Callable<Boolean>()
+			{
+
+				@Override
+				public Boolean call() throws IOException {
+					return download("ac/" + key, tmp, budget);
+				}
+			});
+		final Thread thread = new Thread(lookup, "build-cache-lookup");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			if (!lookup.get(budget, TimeUnit.MILLISECONDS)) return null;
+			final Entry entry = readEntry(tmp);
+			if (entry == null) return null;
+			for (final String sha1 : entry.getBlobs()) {
+				final File blob = getBlob(sha1);
+				if (blob.exists()) continue;
+				final File blobTmp = getTemporaryFile(blob);
+				if (!download("cas/" + sha1, blobTmp, TRANSFER_TIMEOUT) || !Checksums
+					.sha1(blobTmp).equals(sha1))
+				{
+					blobTmp.delete();
+					return null;
+				}
+				rename(blobTmp, blob);
+			}
+			rename(tmp, actionFile);
+			return entry;
+		}
+		catch (final TimeoutException e) {
+			// too slow; compiling locally is likely faster
+			lookup.cancel(true);
+			return null;
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (final ExecutionException e) {
+			disableRemote(e.getCause());
+			return null;
+		}
+		catch (final IOException e) {
+			disableRemote(e);
+			return null;
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	private synchronized void upload(final String key) {
+		if (uploader == null) {
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						// not a daemon thread: the JVM exits after the uploads finished
+						return new Thread(runnable, "build-cache-upload");
+					}
+				});
+			executor.allowCoreThreadTimeOut(true);
+			uploader = executor;
+		}
+		uploader.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (remote == null) return;
+				final File actionFile = getActionFile(key);
+				final Entry entry = readEntry(actionFile);
+				if (entry == null) return;
+				try {
+					for (final String sha1 : entry.getBlobs()) {
+						if (!exists("cas/" + sha1)) upload(getBlob(sha1), "cas/" + sha1);
+					}
+					upload(actionFile, "ac/" + key);
+				}
+				catch (final IOException e) {
+					disableRemote(e);
+				}
+			}
+		});
+	}
+
+	private boolean download(final String path, final File file,
+		final int timeout) throws IOException
+	{
+		final HttpURLConnection http = open(path, timeout);
+		final int code = http.getResponseCode();
+		if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+			http.disconnect();
+			return false;
+		}
+		if (code != HttpURLConnection.HTTP_OK) {
+			http.disconnect();
+			throw new HTTPException(code, "HTTP " + code + " for " + remote + path);
+		}
+		file.getParentFile().mkdirs();
+		BuildEnvironment.copy(http.getInputStream(), file);
+		return true;
+	}
+
+	private boolean exists(final String path) throws IOException {
+		final HttpURLConnection http = open(path, TRANSFER_TIMEOUT);
+		http.setRequestMethod("HEAD");
+		final int code = http.getResponseCode();
+		http.disconnect();
+		return code == HttpURLConnection.HTTP_OK;
+	}
+
+	private void upload(final File file, final String path) throws IOException {
+		final HttpURLConnection http = open(path, TRANSFER_TIMEOUT);
+		http.setRequestMethod("PUT");
+		if (token != null) http.setRequestProperty("Authorization", "Bearer " +
+			token);
+		http.setDoOutput(true);
+		http.setFixedLengthStreamingMode((int) file.length());
+		BuildEnvironment.copy(new FileInputStream(file), http.getOutputStream(),
+			true);
+		final int code = http.getResponseCode();
+		http.disconnect();
+		// another machine uploaded the same key first
+		if (code == HttpURLConnection.HTTP_CONFLICT) return;
+		if (code != HttpURLConnection.HTTP_OK &&
+			code != HttpURLConnection.HTTP_CREATED &&
+			code != HttpURLConnection.HTTP_NO_CONTENT)
+		{
+			throw new HTTPException(code, "HTTP " + code + " uploading to " +
+				remote + path);
+		}
+	}
+
+	private HttpURLConnection open(final String path, final int timeout)
+		throws IOException
+	{
+		final HttpURLConnection http = (HttpURLConnection) new URL(remote + path)
+			.openConnection();
+		http.setConnectTimeout(timeout);
+		http.setReadTimeout(timeout);
+		http.setRequestProperty("User-Agent", "MiniMaven/2.0.0-SNAPSHOT");
+		return http;
+	}
+
+	private synchronized void disableRemote(final Throwable cause) {
+		if (remote == null) return;
+		if (err != null) {
+			err.println("Warning: disabling the remote build cache " + remote +
+				": " + cause);
+		}
+		remote = null;
+	}
+
+	private void addRecursively(final Map<String, String> files,
+		final File directory, final String prefix) throws IOException
+	{
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		for (final File file : list) {
+			final String path = prefix + file.getName();
+			if (file.isDirectory()) addRecursively(files, file, path + "/");
+			else if (file.isFile()) files.put(path, putBlob(file));
+		}
+	}
+
+	private String putBlob(final File file) throws IOException {
+		final String sha1 = hash(file);
+		final File blob = getBlob(sha1);
+		if (blob.exists()) return sha1;
+		blob.getParentFile().mkdirs();
+		final File tmp = getTemporaryFile(blob);
+		final InputStream in = new FileInputStream(file);
+		BuildEnvironment.copy(in, tmp);
+		if (!Checksums.sha1(tmp).equals(sha1)) {
+			// the file changed while we copied it
+			tmp.delete();
+			throw new IOException(file + " changed while caching it");
+		}
+		rename(tmp, blob);
+		return sha1;
+	}
+
+	protected File getBlob(final String sha1) {
+		return new File(directory, "cas/" + sha1.substring(0, 2) + "/" + sha1
+			.substring(2));
+	}
+
+	protected File getActionFile(final String key) {
+		return new File(directory, "ac/" + key.substring(0, 2) + "/" + key
+			.substring(2));
+	}
+
+	protected static File getTemporaryFile(final File file) {
+		return new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+	}
+
+	protected static void rename(final File source, final File target)
+		throws IOException
+	{
+		if (source.renameTo(target)) return;
+		target.delete();
+		if (!source.renameTo(target)) {
+			source.delete();
+			throw new IOException("Could not rename " + source + " to " + target);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves a {@link BuildCache} over HTTP.
+ * <p>
+ * The protocol is deliberately simple: <tt>GET</tt> (or <tt>HEAD</tt>)
+ * <tt>/ac/&lt;key&gt;</tt> returns the listing of a key's outputs, and
+ * <tt>/cas/&lt;sha1&gt;</tt> returns a file by its content hash; <tt>PUT</tt>
+ * to the same paths stores them. Uploaded files are verified against their
+ * hash, and listings are checked to be well-formed, before they are atomically
+ * moved into place.
+ * </p>
+ * <p>
+ * A listing decides which files a client puts into its <tt>target/</tt>
+ * directory, i.e. which code it runs. Therefore the server is read-only by
+ * default; uploads need to be {@link #setToken(String) authenticated}, and
+ * existing listings are never replaced.
+ * </p>
+ * <p>
+ * This server is meant for local use and tests; any HTTP server accepting
+ * <tt>PUT</tt> requests, e.g. a WebDAV share, works as well.
+ * </p>
+ */
+public class BuildCacheServer extends AbstractHTTPServer {
+
+	private final static String ALREADY_EXISTS = "Already exists";
+
+	protected final BuildCache cache;
+	protected boolean readOnly = true;
+	private byte[] token;
+
+	/**
+	 * Creates a server for the given cache.
+	 *
+	 * @param cache the cache to serve
+	 * @param address the address to listen on
+	 * @param executor the threads handling the connections
+	 * @param err where to report problems
+	 * @throws IOException if the address could not be bound
+	 */
+	public BuildCacheServer(final BuildCache cache,
+		final InetSocketAddress address, final ExecutorService executor,
+		final PrintStream err) throws IOException
+	{
+		super(address, executor, err);
+		this.cache = cache;
+	}
+
+	/**
+	 * Refuses uploads, e.g. to serve a cache populated by CI only.
+	 * <p>
+	 * This is the default; to accept uploads, a {@link #setToken(String) token}
+	 * is needed, too.
+	 * </p>
+	 *
+	 * @param readOnly whether to refuse <tt>PUT</tt> requests
+	 */
+	public void setReadOnly(final boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * Sets the secret that clients need to send to upload.
+	 * <p>
+	 * Clients send it in an <tt>Authorization: Bearer &lt;token&gt;</tt>
+	 * header (see {@link BuildCache#setUploadToken(String)}).
+	 * </p>
+	 *
+	 * @param token the token, or null to refuse all uploads
+	 */
+	public void setToken(final String token) {
+		this.token = token == null ? null : token.getBytes(ASCII);
+	}
+
+	@Override
+	protected void handle(final Request request, final Response response)
+		throws IOException
+	{
+		final String method = request.getMethod();
+		final String[] segments = getPathSegments(request.getPath());
+		if (segments == null || segments.length != 2 || !BuildCache.isSHA1(
+			segments[1]))
+		{
+			response.sendError(400, null);
+			return;
+		}
+		final File file;
+		if (segments[0].equals("ac")) file = cache.getActionFile(segments[1]);
+		else if (segments[0].equals("cas")) file = cache.getBlob(segments[1]);
+		else {
+			response.sendError(404, null);
+			return;
+		}
+		if (verbose) err.println(method + " " + request.getPath());
+		if (method.equals("GET") || method.equals("HEAD")) {
+			if (file.exists()) response.sendFile(file, "application/octet-stream");
+			else response.sendError(404, null);
+		}
+		else if (method.equals("PUT") && !readOnly && token != null) {
+			if (!isAuthorized(request)) {
+				response.sendError(403, null);
+				return;
+			}
+			final String problem = store(request, file, segments[0].equals("cas")
+				? segments[1] : null);
+			if (problem == null) response.send(201, "text/plain", new byte[0]);
+			else if (problem == ALREADY_EXISTS) response.sendError(409, problem);
+			else response.sendError(400, problem);
+		}
+		else response.sendError(405, null);
+	}
+
+	private boolean isAuthorized(final Request request) {
+		final String header = request.getHeader("Authorization");
+		if (header == null || !header.startsWith("Bearer ")) return false;
+		// compare in constant time, so as not to leak the token
+		return MessageDigest.isEqual(token, header.substring(7).trim().getBytes(
+			ASCII));
+	}
+
+	/**
+	 * Stores the body of a <tt>PUT</tt> request.
+	 *
+	 * @param request the request
+	 * @param file where to store the body
+	 * @param sha1 the expected content hash, or null for a listing
+	 * @return null on success, otherwise the reason why the body was refused
+	 */
+	private String store(final Request request, final File file,
+		final String sha1) throws IOException
+	{
+		// a listing must not be replaced: clients would run whatever it points to
+		if (sha1 == null && file.exists()) return ALREADY_EXISTS;
+		file.getParentFile().mkdirs();
+		final File tmp = BuildCache.getTemporaryFile(file);
+		final InputStream body = request.getBody();
+		final OutputStream out = new FileOutputStream(tmp);
+		final byte[] buffer = new byte[65536];
+		try {
+			for (;;) {
+				final int count = body.read(buffer);
+				if (count < 0) break;
+				out.write(buffer, 0, count);
+			}
+		}
+		finally {
+			out.close();
+		}
+		final boolean valid = sha1 != null ? sha1.equals(Checksums.sha1(tmp))
+			: cache.readEntry(tmp) != null;
+		if (!valid) {
+			tmp.delete();
+			return sha1 != null ? "Checksum mismatch" : "Invalid listing";
+		}
+		synchronized (this) {
+			if (sha1 == null && file.exists()) {
+				tmp.delete();
+				return ALREADY_EXISTS;
+			}
+			BuildCache.rename(tmp, file);
+		}
+		return null;
+	}
+}
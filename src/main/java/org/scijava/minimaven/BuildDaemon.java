@@ -0,0 +1,407 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A long-running MiniMaven process that builds on behalf of clients.
+ * <p>
+ * Starting a JVM, parsing the POMs, resolving the dependencies and warming up
+ * <tt>javac</tt> dominates the time MiniMaven needs for small changes. The
+ * daemon keeps all of that around between builds: it caches one
+ * {@link BuildEnvironment} per project directory (and set of
+ * <tt>minimaven.*</tt> properties), and uses a {@link ChangeJournal} to know
+ * which projects are still up-to-date without walking their sources again.
+ * </p>
+ * <p>
+ * Clients connect via a loopback socket; the port and a secret token are
+ * written to <tt>~/.m2/minimaven-daemon.properties</tt> (override with
+ * <tt>minimaven.daemon.file</tt>), which is readable only by its owner. The
+ * daemon handles one command at a time, since system properties and the
+ * current project directory are global state.
+ * </p>
+ */
+public class BuildDaemon {
+
+	/**
+	 * The commands a client hands off to the daemon; all others run locally.
+	 */
+	public final static Set<String> COMMANDS = new HashSet<String>(Arrays.asList(
+		"compile", "build", "jar", "jars", "install", "clean", "classpath", "list",
+		"dependency-tree", "get", "get-dependencies"));
+
+	private final static String STOP = "stop";
+	private final static int END_OF_OUTPUT = -1;
+
+	protected final PrintStream err;
+	private final Map<String, BuildEnvironment> environments =
+		new HashMap<String, BuildEnvironment>();
+	private ChangeJournal journal;
+	private boolean stopped;
+
+	public BuildDaemon(final PrintStream err) {
+		this.err = err;
+	}
+
+	/**
+	 * Serves client requests until asked to stop.
+	 *
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		final File file = getDaemonFile();
+		if (send(STOP, null, null, null) != null) {
+			err.println("Stopped the previously running daemon");
+		}
+		journal = new ChangeJournal();
+		final ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final byte[] random = new byte[20];
+		new SecureRandom().nextBytes(random);
+		final String token = Checksums.toHex(random);
+		writeDaemonFile(file, server.getLocalPort(), token);
+		err.println("MiniMaven daemon listening on port " + server
+			.getLocalPort());
+		try {
+			while (!stopped) {
+				final Socket socket = server.accept();
+				try {
+					handle(socket, token);
+				}
+				catch (final IOException e) {
+					err.println("Daemon request failed: " + e.getMessage());
+				}
+				finally {
+					socket.close();
+				}
+			}
+		}
+		finally {
+			server.close();
+			journal.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the build environment for a project directory.
+	 * <p>
+	 * Environments are reused as long as no <tt>pom.xml</tt> changed and the
+	 * <tt>minimaven.*</tt> properties are the same.
+	 * </p>
+	 *
+	 * @param directory the directory containing the project
+	 * @param err where to print messages to
+	 * @return the environment
+	 */
+	public BuildEnvironment getEnvironment(final File directory,
+		final PrintStream err)
+	{
+		if (journal.pomChanged()) environments.clear();
+		final Map<String, String> properties = new TreeMap<String, String>();
+		for (final String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith("minimaven.")) {
+				properties.put(key, System.getProperty(key));
+			}
+		}
+		final String key = directory.getAbsolutePath() + "\t" + properties;
+		BuildEnvironment env = environments.get(key);
+		if (env == null) {
+			env = MiniMaven.newBuildEnvironment(err);
+			env.journal = journal;
+			environments.put(key, env);
+		}
+		else env.reset(err);
+		return env;
+	}
+
+	private void handle(final Socket socket, final String token)
+		throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+			socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			socket.getOutputStream()));
+		if (!token.equals(in.readUTF())) return;
+		final String command = in.readUTF();
+		if (command.equals(STOP)) {
+			stopped = true;
+			out.writeInt(END_OF_OUTPUT);
+			out.writeInt(0);
+			out.flush();
+			return;
+		}
+		final File directory = new File(command);
+		final String[] args = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+		final Properties properties = new Properties();
+		for (int count = in.readInt(); count > 0; count--) {
+			properties.setProperty(in.readUTF(), in.readUTF());
+		}
+
+		final PrintStream output = new PrintStream(new FramedOutputStream(out),
+			true);
+		final Properties saved = (Properties) System.getProperties().clone();
+		int status;
+		try {
+			System.getProperties().putAll(properties);
+			status = MiniMaven.execute(args, directory, output, this);
+		}
+		catch (final Throwable t) {
+			t.printStackTrace(output);
+			status = 1;
+		}
+		finally {
+			System.setProperties(saved);
+		}
+		output.flush();
+		out.writeInt(END_OF_OUTPUT);
+		out.writeInt(status);
+		out.flush();
+	}
+
+	/**
+	 * Hands a command off to the running daemon.
+	 * <p>
+	 * The client's <tt>minimaven.*</tt> properties (except for
+	 * <tt>minimaven.daemon</tt> itself) are passed along.
+	 * </p>
+	 *
+	 * @param args the command-line arguments
+	 * @param directory the directory containing the project
+	 * @param err where to print the daemon's messages to
+	 * @return the exit status, or null if no daemon could be reached
+	 */
+	public static Integer send(final String[] args, final File directory,
+		final PrintStream err)
+	{
+		final Map<String, String> properties = new TreeMap<String, String>();
+		for (final String key : System.getProperties().stringPropertyNames()) {
+			if ((key.startsWith("minimaven.") && !key.equals("minimaven.daemon")) ||
+				key.equals("artifactId") || key.equals("mainClass"))
+			{
+				properties.put(key, System.getProperty(key));
+			}
+		}
+		return send(directory.getAbsolutePath(), args, properties, err);
+	}
+
+	/**
+	 * Asks the running daemon to stop.
+	 *
+	 * @param err where to print messages to
+	 * @return the exit status
+	 */
+	public static int stop(final PrintStream err) {
+		if (send(STOP, null, null, null) == null) {
+			err.println("No daemon is running");
+			return 1;
+		}
+		return 0;
+	}
+
+	private static Integer send(final String command, final String[] args, final Map<String, String> properties,
+		final PrintStream err)
+	{
+		final Properties daemon = readDaemonFile(getDaemonFile());
+		if (daemon == null) return null;
+		final Socket socket;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(
+				daemon.getProperty("port")));
+		}
+		catch (final IOException e) {
+			return null;
+		}
+		catch (final NumberFormatException e) {
+			return null;
+		}
+		try {
+			final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(daemon.getProperty("token", ""));
+			out.writeUTF(command);
+			if (!command.equals(STOP)) {
+				out.writeInt(args.length);
+				for (final String arg : args) {
+					out.writeUTF(arg);
+				}
+				out.writeInt(properties.size());
+				for (final Map.Entry<String, String> entry : properties.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue());
+				}
+			}
+			out.flush();
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+			final byte[] buffer = new byte[65536];
+			for (;;) {
+				final int length = in.readInt();
+				if (length == END_OF_OUTPUT) break;
+				in.readFully(buffer, 0, length);
+				if (err != null) err.write(buffer, 0, length);
+			}
+			if (err != null) err.flush();
+			return in.readInt();
+		}
+		catch (final EOFException e) {
+			// the daemon went away, or the token did not match
+			return null;
+		}
+		catch (final IOException e) {
+			return null;
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static File getDaemonFile() {
+		final String path = System.getProperty("minimaven.daemon.file");
+		if (path != null) return new File(path);
+		return new File(System.getProperty("user.home"),
+			".m2/minimaven-daemon.properties");
+	}
+
+	private static Properties readDaemonFile(final File file) {
+		if (!file.exists()) return null;
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				final Properties result = new Properties();
+				result.load(in);
+				return result;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (final IOException e) {
+			return null;
+		}
+	}
+
+	private static void writeDaemonFile(final File file, final int port,
+		final String token) throws IOException
+	{
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not make directory " + directory);
+		}
+		final File tmp = new File(directory, file.getName() + ".tmp");
+		tmp.delete();
+		// restrict access before the token is written
+		if (!tmp.createNewFile()) throw new IOException("Could not create " + tmp);
+		tmp.setReadable(false, false);
+		tmp.setWritable(false, false);
+		tmp.setReadable(true, true);
+		tmp.setWritable(true, true);
+		final Properties properties = new Properties();
+		properties.setProperty("port", "" + port);
+		properties.setProperty("token", token);
+		final OutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, "MiniMaven daemon");
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Sends the output of a command to the client in length-prefixed chunks.
+	 */
+	private static class FramedOutputStream extends OutputStream {
+
+		private final DataOutputStream out;
+
+		private FramedOutputStream(final DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(final byte[] buffer, final int offset,
+			final int length) throws IOException
+		{
+			for (int i = 0; i < length; i += 65536) {
+				final int count = Math.min(65536, length - i);
+				out.writeInt(count);
+				out.write(buffer, offset + i, count);
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
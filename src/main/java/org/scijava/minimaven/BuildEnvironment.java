@@ -31,24 +31,58 @@ package org.scijava.minimaven;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -72,6 +106,11 @@ public class BuildEnvironment {
 
 	public final static String IMAGEJ_APP_DIRECTORY = "imagej.app.directory";
 
+	public final static String SCIJAVA_REPOSITORY =
+		"https://maven.scijava.org/content/groups/public";
+	public final static String CENTRAL_REPOSITORY =
+		"https://repo1.maven.org/maven2";
+
 	protected String endLine = isInteractiveConsole() ? "\033[K\r" : "\n";
 	protected boolean verbose, debug = false, downloadAutomatically, offlineMode,
 			ignoreMavenRepositories;
@@ -79,16 +118,100 @@ public class BuildEnvironment {
 	// by default, check once per 24h for new snapshot versions
 	protected int updateInterval = 24 * 60;
 
+	// network timeouts (in milliseconds) and retries for transient failures
+	protected int connectTimeout = 15000, readTimeout = 60000, retries = 2;
+	protected long retryDelay = 500;
+
+	// when hedging, ask the next repository if the current one takes longer to
+	// respond than the given percentile of the observed latencies
+	protected boolean hedgeRequests;
+	protected double hedgePercentile = 95;
+	protected LatencyTracker latencies = new LatencyTracker(64);
+
+	// records the traffic to remote repositories, or replays recorded traffic
+	protected RepositoryCapture capture;
+
+	// the maximal number of concurrent downloads
+	protected int threads = 8;
+
+	// resolve with .pom files only, download .jar files when they are needed
+	protected boolean lazyJars;
+
+	// recompile only modified sources and their dependents
+	protected boolean incremental;
+
+	// rebuild dependent modules only when the ABI of a dependency changed
+	protected boolean abiFingerprints = true;
+
+	// compile against header classes while dependencies are rebuilt
+	protected boolean pipeline;
+
+	// detect modified inputs by their contents rather than their time stamps
+	protected boolean fingerprintDatabase;
+
+	// reuses the outputs of previous builds of identical sources
+	protected BuildCache buildCache;
+
+	// when snapshots and version ranges were last checked for updates
+	private TimestampIndex lastChecked;
+	private final Set<String> checkedThisSession = Collections.synchronizedSet(
+		new HashSet<String>());
+	private volatile boolean batchUpdateChecks;
+
+	// when repositories were found not to have certain artifacts
+	private TimestampIndex knownMissing;
+	private final Set<String> missingThisSession = Collections.synchronizedSet(
+		new HashSet<String>());
+
+	// when artifacts in the local repository were last used, and since when
+	// this is tracked
+	private final static String USAGE_TRACKED_SINCE = ".since";
+	private TimestampIndex lastUsed;
+	private final Set<String> usedThisSession = Collections.synchronizedSet(
+		new HashSet<String>());
+	// the environments with state to save when the JVM exits; weak, so that
+	// embedding applications and the daemon do not keep them alive
+	private final static Map<BuildEnvironment, Boolean> pendingAtExit =
+		new WeakHashMap<BuildEnvironment, Boolean>();
+	private static Thread exitHook;
+
 	protected PrintStream err;
 	protected JavaCompiler javac;
+	// the file-change journal of the build daemon, if any
+	protected ChangeJournal journal;
 	protected Map<String, MavenProject> localPOMCache =
 		new HashMap<String, MavenProject>();
 	protected Map<File, MavenProject> file2pom =
 		new HashMap<File, MavenProject>();
 	protected Stack<File> multiProjectRoots = new Stack<File>();
 	protected Set<File> excludedFromMultiProjects = new HashSet<File>();
+	/**
+	 * The default local repository, <tt>$HOME/.m2/repository</tt>.
+	 *
+	 * @deprecated the local repository can be configured per environment; use
+	 *             {@link #getMavenRepository()} instead
+	 */
+	@Deprecated
 	protected final static File mavenRepository;
+	protected File localRepository;
+	// read-only repositories consulted for releases before the network
+	protected List<File> sharedRepositories = new ArrayList<File>();
+	protected boolean linkSharedArtifacts;
+	// indexed ImageJ.app/ directories, consulted before the repositories
+	protected boolean useImageJAppIndex = true;
+	private final Map<File, ImageJAppIndex> imageJAppIndices =
+		new HashMap<File, ImageJAppIndex>();
+	// an in-memory index of the local repository, to avoid stat()ing files
+	protected boolean useRepositoryIndex;
+	private RepositoryIndex repositoryIndex;
+	protected Settings settings;
+	// maps repository URLs to their IDs (needed to match mirrors)
+	protected Map<String, String> repositoryIds =
+		new ConcurrentHashMap<String, String>();
 	private final static boolean isWindows;
+	// distinguishes our temporary files from those of other processes
+	private final static String processId;
+	private ExecutorService executor;
 
 	static {
 		File repository = new File(System.getProperty("user.home"),
@@ -100,9 +223,13 @@ public class BuildEnvironment {
 			e.printStackTrace();
 		}
 		mavenRepository = repository;
-
 		final String osName = System.getProperty("os.name").toLowerCase();
 		isWindows = osName.startsWith("win");
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		final int at = name.indexOf('@');
+		processId = at > 0 && name.substring(0, at).matches("[0-9]+") ? name
+			.substring(0, at) : Long.toHexString(ThreadLocalRandom.current()
+				.nextLong() & Long.MAX_VALUE);
 	}
 
 	public void setVerbose(final boolean verbose) {
@@ -113,6 +240,35 @@ public class BuildEnvironment {
 		this.debug = debug;
 	}
 
+	/**
+	 * Prepares this environment for another command in the same JVM.
+	 * <p>
+	 * The parsed projects are kept, but their build state is forgotten, as is
+	 * which artifacts were found missing or checked for updates. Messages are
+	 * printed to the given stream from now on.
+	 * </p>
+	 *
+	 * @param err where to print messages to
+	 */
+	protected void reset(final PrintStream err) {
+		this.err = err;
+		javac = new JavaCompiler(err, err);
+		for (final MavenProject pom : file2pom.values()) {
+			pom.resetBuildState();
+		}
+		for (final Iterator<MavenProject> iter = localPOMCache.values()
+			.iterator(); iter.hasNext();)
+		{
+			final MavenProject pom = iter.next();
+			// null marks an artifact that could not be found; look for it again
+			if (pom == null) iter.remove();
+			else pom.resetBuildState();
+		}
+		// check snapshots and missing artifacts again, if it is time to
+		checkedThisSession.clear();
+		missingThisSession.clear();
+	}
+
 	public boolean getDownloadAutomatically() {
 		return downloadAutomatically && !offlineMode;
 	}
@@ -137,10 +293,79 @@ public class BuildEnvironment {
 		this.downloadAutomatically = downloadAutomatically;
 		this.verbose = verbose;
 		this.debug = debug;
+		settings = readSettings();
+		setMavenRepository(getDefaultMavenRepository(settings));
+		repositoryIds.put(SCIJAVA_REPOSITORY, "scijava.public");
+		repositoryIds.put(CENTRAL_REPOSITORY, "central");
+		if (settings.isOffline()) offlineMode = true;
 		if ("true".equalsIgnoreCase(System.getProperty("minimaven.offline")))
 			offlineMode = true;
 		if ("ignore".equalsIgnoreCase(System.getProperty("minimaven.repositories")))
 			ignoreMavenRepositories = true;
+		final String shared = System.getProperty("minimaven.repositories.shared");
+		if (shared != null) {
+			for (final String path : splitPaths(shared)) {
+				addSharedRepository(path);
+			}
+		}
+		if ("true".equalsIgnoreCase(System.getProperty(
+			"minimaven.repositories.shared.link")))
+		{
+			linkSharedArtifacts = true;
+		}
+		if ("false".equalsIgnoreCase(System.getProperty(
+			"minimaven.imagej.app.index")))
+		{
+			useImageJAppIndex = false;
+		}
+		if ("true".equalsIgnoreCase(System.getProperty(
+			"minimaven.repository.index")))
+		{
+			useRepositoryIndex = true;
+		}
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.incremental"))) {
+			incremental = true;
+		}
+		if ("false".equalsIgnoreCase(System.getProperty(
+			"minimaven.abi.fingerprints")))
+		{
+			abiFingerprints = false;
+		}
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.pipeline"))) {
+			pipeline = true;
+		}
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.fingerprints"))) {
+			fingerprintDatabase = true;
+		}
+		final String remoteCache = System.getProperty("minimaven.cache.remote");
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.cache")) ||
+			(remoteCache != null && !remoteCache.equals("")))
+		{
+			buildCache = new BuildCache(BuildCache.getDefaultDirectory());
+			if (remoteCache != null && !remoteCache.equals("") && !offlineMode) {
+				buildCache.setRemote(remoteCache, getIntegerProperty(
+					"minimaven.cache.remote.budget", 500), "true".equalsIgnoreCase(System
+						.getProperty("minimaven.cache.push")), this.err);
+				buildCache.setUploadToken(System.getProperty(
+					"minimaven.cache.remote.token"));
+			}
+		}
+		final String replay = System.getProperty("minimaven.capture.replay");
+		final String record = System.getProperty("minimaven.capture.record");
+		if (replay != null && !replay.equals("")) try {
+			setCapture(RepositoryCapture.replay(new File(replay)));
+		}
+		catch (final IOException e) {
+			this.err.println("Warning: could not load capture " + replay + ": " +
+				e.getMessage());
+		}
+		else if (record != null && !record.equals("")) try {
+			setCapture(RepositoryCapture.record(new File(record)));
+		}
+		catch (final IOException e) {
+			this.err.println("Warning: could not record to " + record + ": " +
+				e.getMessage());
+		}
 		final String updateInterval = System.getProperty(
 			"minimaven.updateinterval");
 		if (updateInterval != null && !updateInterval.equals("")) try {
@@ -154,6 +379,448 @@ public class BuildEnvironment {
 			this.err.println("Warning: ignoring invalid update interval " +
 				updateInterval);
 		}
+		connectTimeout = getIntegerProperty("minimaven.timeout.connect",
+			connectTimeout);
+		readTimeout = getIntegerProperty("minimaven.timeout.read", readTimeout);
+		retries = getIntegerProperty("minimaven.retries", retries);
+		final int javacThreads = getIntegerProperty("minimaven.javac.threads", 0);
+		if (javacThreads > 0) JavaCompiler.setMaxConcurrency(javacThreads);
+		threads = Math.max(1, getIntegerProperty("minimaven.threads", threads));
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.lazy"))) {
+			lazyJars = true;
+		}
+		final String hedge = System.getProperty("minimaven.hedge");
+		if ("true".equalsIgnoreCase(hedge)) hedgeRequests = true;
+		else if (hedge != null && !hedge.equals("") && !"false".equalsIgnoreCase(
+			hedge))
+		{
+			try {
+				final double percentile = Double.parseDouble(hedge);
+				if (percentile > 0 && percentile < 100) {
+					hedgePercentile = percentile;
+					hedgeRequests = true;
+				}
+				else {
+					this.err.println("Warning: ignoring minimaven.hedge outside of " +
+						"(0, 100): " + hedge);
+				}
+			}
+			catch (final NumberFormatException e) {
+				this.err.println("Warning: ignoring invalid minimaven.hedge: " +
+					hedge);
+			}
+		}
+	}
+
+	/**
+	 * Reads the user's <tt>settings.xml</tt>.
+	 * <p>
+	 * By default, this is <tt>$HOME/.m2/settings.xml</tt>; the system property
+	 * <tt>minimaven.settings</tt> overrides the location.
+	 * </p>
+	 */
+	private Settings readSettings() {
+		final String path = System.getProperty("minimaven.settings");
+		final File file = path != null ? new File(path) : new File(System
+			.getProperty("user.home"), ".m2/settings.xml");
+		try {
+			final Settings result = Settings.parse(file);
+			if (verbose && !result.getMirrors().isEmpty()) {
+				err.println("Using mirrors " + result.getMirrors());
+			}
+			return result;
+		}
+		catch (final Exception e) {
+			err.println("Warning: ignoring invalid " + file + ": " + e.getMessage());
+			return new Settings();
+		}
+	}
+
+	private static File getDefaultMavenRepository(final Settings settings) {
+		String path = System.getProperty("maven.repo.local");
+		if (path == null || path.equals("")) path = settings.getLocalRepository();
+		if (path == null || path.equals("")) {
+			return new File(System.getProperty("user.home"), ".m2/repository");
+		}
+		return new File(path);
+	}
+
+	public File getMavenRepository() {
+		return localRepository;
+	}
+
+	/**
+	 * Sets the location of the local repository.
+	 * <p>
+	 * By default, this is the <tt>localRepository</tt> of the
+	 * <tt>settings.xml</tt>, or <tt>$HOME/.m2/repository</tt>; the system
+	 * property <tt>maven.repo.local</tt> overrides both.
+	 * </p>
+	 *
+	 * @param repository the local repository
+	 */
+	public synchronized void setMavenRepository(final File repository) {
+		File canonical = repository;
+		try {
+			canonical = repository.getCanonicalFile();
+		}
+		catch (final IOException e) {
+			e.printStackTrace(err);
+		}
+		localRepository = canonical;
+		lastChecked = null;
+		knownMissing = null;
+		if (lastUsed != null && lastUsed.isDirty()) saveLastUsed();
+		lastUsed = null;
+		usedThisSession.clear();
+		repositoryIndex = null;
+	}
+
+	/**
+	 * Adds a read-only repository in front of the local repository.
+	 * <p>
+	 * Shared repositories, e.g. on a network share, are consulted in the order
+	 * they were added for release artifacts that are not in the local
+	 * repository. Artifacts found there are used in place (or hard-linked into
+	 * the local repository, if so configured), and only true misses are
+	 * downloaded.
+	 * </p>
+	 *
+	 * @param path the path or <tt>file:</tt> URL of the repository
+	 */
+	public void addSharedRepository(final String path) {
+		File directory;
+		if (path.startsWith("file:")) try {
+			directory = new File(new URL(path).toURI());
+		}
+		catch (final Exception e) {
+			err.println("Warning: ignoring invalid shared repository " + path);
+			return;
+		}
+		else directory = new File(path);
+		if (!directory.isDirectory()) {
+			err.println("Warning: ignoring missing shared repository " + path);
+			return;
+		}
+		try {
+			directory = directory.getCanonicalFile();
+		}
+		catch (final IOException e) {
+			e.printStackTrace(err);
+		}
+		if (!directory.equals(localRepository) && !sharedRepositories.contains(
+			directory))
+		{
+			sharedRepositories.add(directory);
+		}
+	}
+
+	/**
+	 * Splits a list of paths separated by {@link File#pathSeparator}.
+	 * <p>
+	 * On Unix, the path separator is a colon, therefore the colon of a
+	 * <tt>file:</tt> URL is not taken to separate two paths.
+	 * </p>
+	 *
+	 * @param list the paths or <tt>file:</tt> URLs
+	 * @return the non-empty paths
+	 */
+	protected static List<String> splitPaths(final String list) {
+		final List<String> result = new ArrayList<String>();
+		final String[] paths = list.split(Pattern.quote(File.pathSeparator), -1);
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i];
+			if (path.equals("file") && i + 1 < paths.length) {
+				path += ":" + paths[++i];
+			}
+			if (!path.equals("")) result.add(path);
+		}
+		return result;
+	}
+
+	/**
+	 * Determines whether the given directory is part of the local repository, or
+	 * of one of the shared repositories.
+	 *
+	 * @param directory the directory to test
+	 * @return whether it contains downloaded artifacts (as opposed to a project
+	 *         to build from source)
+	 */
+	protected boolean isInRepository(final File directory) {
+		if (isInDirectory(directory, localRepository)) return true;
+		for (final File shared : sharedRepositories) {
+			if (isInDirectory(directory, shared)) return true;
+		}
+		return false;
+	}
+
+	private static boolean isInDirectory(final File file, final File directory) {
+		final String path = file.getPath();
+		final String prefix = directory.getPath();
+		return path.startsWith(prefix) && (path.length() == prefix.length() ||
+			path.charAt(prefix.length()) == File.separatorChar);
+	}
+
+	/**
+	 * Returns the index of the local repository.
+	 * <p>
+	 * The index is only used if the system property
+	 * <tt>minimaven.repository.index</tt> is set to <tt>true</tt>; it is
+	 * rebuilt when it is older than the update interval.
+	 * </p>
+	 *
+	 * @return the index, or null if it is disabled
+	 */
+	protected synchronized RepositoryIndex getRepositoryIndex() {
+		if (!useRepositoryIndex) return null;
+		if (repositoryIndex == null) {
+			repositoryIndex = RepositoryIndex.load(localRepository, new File(
+				localRepository, ".minimaven/repository.idx"), updateInterval * 60 *
+					1000l, threads, this);
+		}
+		return repositoryIndex;
+	}
+
+	/**
+	 * Returns the path of a file relative to the local repository, if the file
+	 * is covered by the repository index.
+	 */
+	private String getIndexedPath(final File file) {
+		final File absolute = file.getAbsoluteFile();
+		if (!isInDirectory(absolute, localRepository)) return null;
+		final String path = getRepositoryPath(absolute);
+		if (path.startsWith(".") || path.indexOf("/.") >= 0) return null;
+		return path;
+	}
+
+	/**
+	 * Determines whether a file exists, consulting the repository index for
+	 * files in the local repository.
+	 *
+	 * @param file the file
+	 * @return whether the file exists
+	 */
+	protected boolean exists(final File file) {
+		final RepositoryIndex index = getRepositoryIndex();
+		final String path = index == null ? null : getIndexedPath(file);
+		return path == null ? file.exists() : index.exists(path);
+	}
+
+	/**
+	 * Returns the modification time of a file, consulting the repository index
+	 * for files in the local repository.
+	 *
+	 * @param file the file
+	 * @return the modification time, or 0 if the file does not exist
+	 */
+	protected long lastModified(final File file) {
+		final RepositoryIndex index = getRepositoryIndex();
+		final String path = index == null ? null : getIndexedPath(file);
+		return path == null ? file.lastModified() : index.lastModified(path);
+	}
+
+	/**
+	 * Lists a directory, consulting the repository index for directories in the
+	 * local repository.
+	 *
+	 * @param directory the directory
+	 * @return the names of the directory entries, or null
+	 */
+	protected String[] list(final File directory) {
+		final RepositoryIndex index = getRepositoryIndex();
+		final String path = index == null ? null : getIndexedPath(directory);
+		return path == null ? directory.list() : index.list(path);
+	}
+
+	/**
+	 * Records a change to a file in the local repository in its index.
+	 *
+	 * @param file the file that was written or removed
+	 */
+	protected void updateRepositoryIndex(final File file) {
+		final RepositoryIndex index;
+		synchronized (this) {
+			index = repositoryIndex;
+		}
+		final String path = index == null ? null : getIndexedPath(file);
+		if (path == null) return;
+		try {
+			index.update(path, file);
+		}
+		catch (final IOException e) {
+			err.println("Warning: could not update " + index.indexFile + ": " + e
+				.getMessage());
+		}
+	}
+
+	/**
+	 * Looks for a release artifact in the shared repositories.
+	 * <p>
+	 * Snapshots and version ranges are never looked up in the shared
+	 * repositories because they need to be checked for updates.
+	 * </p>
+	 *
+	 * @param dependency the (expanded) dependency
+	 * @return the directory containing the artifact, or null
+	 */
+	protected File findInSharedRepositories(final Coordinate dependency) {
+		if (sharedRepositories.isEmpty() || dependency.groupId == null) {
+			return null;
+		}
+		final String version = dependency.getVersion();
+		if (version == null || version.startsWith("[") || isSnapshotVersion(
+			version))
+		{
+			return null;
+		}
+		final String path = dependency.groupId.replace('.', '/') + "/" +
+			dependency.artifactId + "/" + version;
+		for (final File shared : sharedRepositories) {
+			final File directory = new File(shared, path);
+			final File pom = new File(directory, dependency.getPOMName());
+			final File jar = new File(directory, dependency.getJarName());
+			if (jar.exists() || (pom.exists() && isAggregatorPOM(pom))) {
+				if (debug) err.println("Found " + dependency + " in " + shared);
+				return linkSharedArtifacts ? link(directory, dependency) : directory;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hard-links an artifact from a shared repository into the local repository.
+	 *
+	 * @return the local directory, or the shared directory if linking failed
+	 */
+	private File link(final File shared, final Coordinate dependency) {
+		final File directory = new File(getArtifactDirectory(dependency),
+			dependency.getVersion());
+		ArtifactLock lock = null;
+		try {
+			lock = lockArtifact(getArtifactDirectory(dependency), null);
+			final File[] files = shared.listFiles();
+			if (files == null) return shared;
+			if (!directory.isDirectory() && !directory.mkdirs()) return shared;
+			for (final File file : files) {
+				final File link = new File(directory, file.getName());
+				if (!file.isFile() || link.exists()) continue;
+				Files.createLink(link.toPath(), file.toPath());
+				updateRepositoryIndex(link);
+			}
+			if (verbose) err.println("Linked " + dependency + " from " + shared);
+			return directory;
+		}
+		catch (final IOException e) {
+			if (debug) e.printStackTrace(err);
+		}
+		catch (final UnsupportedOperationException e) {
+			if (debug) e.printStackTrace(err);
+		}
+		finally {
+			if (lock != null) lock.close();
+		}
+		return shared;
+	}
+
+	/**
+	 * Looks for an artifact in the <tt>jars/</tt> and <tt>plugins/</tt>
+	 * directories of an ImageJ.app/ directory.
+	 * <p>
+	 * The index of the directory is persisted in the local repository.
+	 * </p>
+	 *
+	 * @param appDirectory the ImageJ.app/ directory
+	 * @param dependency the (expanded) dependency
+	 * @return the <tt>.jar</tt> file, or null
+	 */
+	protected File findInImageJApp(File appDirectory,
+		final Coordinate dependency)
+	{
+		if (!useImageJAppIndex || !appDirectory.isDirectory()) return null;
+		ImageJAppIndex index;
+		synchronized (imageJAppIndices) {
+			try {
+				appDirectory = appDirectory.getCanonicalFile();
+			}
+			catch (final IOException e) {
+				appDirectory = appDirectory.getAbsoluteFile();
+			}
+			index = imageJAppIndices.get(appDirectory);
+			if (index == null) {
+				final String hash;
+				try {
+					hash = Checksums.toHex(Checksums.newSHA1().digest(appDirectory
+						.getPath().getBytes("UTF-8")));
+				}
+				catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+				index = ImageJAppIndex.load(appDirectory, new File(localRepository,
+					".minimaven/imagej-app-" + hash.substring(0, 12) + ".txt"), this);
+				imageJAppIndices.put(appDirectory, index);
+			}
+		}
+		return index.find(dependency);
+	}
+
+	/**
+	 * Returns the URLs to download from, honoring the mirrors configured in the
+	 * <tt>settings.xml</tt>.
+	 *
+	 * @param repositories the URLs of the repositories
+	 * @return the URLs of the repositories or of their mirrors, in the same order
+	 */
+	protected List<String> getMirroredURLs(
+		final Collection<String> repositories)
+	{
+		final Set<String> result = new LinkedHashSet<String>();
+		for (final String url : repositories) {
+			final String mirror = settings.getMirrorURL(repositoryIds.get(url), url);
+			if (debug && !mirror.equals(url)) {
+				err.println("Using mirror " + mirror + " for " + url);
+			}
+			result.add(mirror);
+		}
+		return new ArrayList<String>(result);
+	}
+
+	private int getIntegerProperty(final String key, final int defaultValue) {
+		final String value = System.getProperty(key);
+		if (value == null || value.equals("")) return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (final NumberFormatException e) {
+			err.println("Warning: ignoring invalid " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the thread pool used for concurrent downloads.
+	 * <p>
+	 * The threads are daemon threads, so that a pending (hedged) download never
+	 * prevents the JVM from exiting.
+	 * </p>
+	 *
+	 * @return the executor
+	 */
+	protected synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "minimaven-" + counter
+						.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
 	}
 
 	public PrintStream getErr() {
@@ -197,6 +864,7 @@ public class BuildEnvironment {
 		if (!file.exists()) return null;
 		if (verbose) print80("Parsing " + file);
 		final File directory = file.getCanonicalFile().getParentFile();
+		markUsed(directory);
 		final MavenProject pom = parse(new FileInputStream(file), directory, parent,
 			classifier);
 		file2pom.put(file, pom);
@@ -244,9 +912,7 @@ public class BuildEnvironment {
 		final String key = pom.expand(pom.coordinate).getKey();
 		if (!localPOMCache.containsKey(key)) localPOMCache.put(key, pom);
 
-		if (pom.isJAR() && !directory.getPath().startsWith(mavenRepository
-			.getPath()))
-		{
+		if (pom.isJAR() && !isInRepository(directory)) {
 			pom.buildFromSource = true;
 			pom.target = new File(directory, "target/classes");
 		}
@@ -293,7 +959,106 @@ public class BuildEnvironment {
 		return pom;
 	}
 
+	/**
+	 * Parses the POM embedded in a <tt>.jar</tt> file.
+	 * <p>
+	 * Maven (and MiniMaven) embed the POM as
+	 * <tt>META-INF/maven/&lt;groupId&gt;/&lt;artifactId&gt;/pom.xml</tt>. Only
+	 * the central directory of the <tt>.jar</tt> file and that entry are read,
+	 * therefore this is much cheaper than downloading the <tt>.pom</tt> file.
+	 * </p>
+	 *
+	 * @param jar the <tt>.jar</tt> file
+	 * @param dependency the expected coordinate; if the groupId is unset, any
+	 *          embedded POM with a matching artifactId is accepted
+	 * @return the project, or null if the jar has no matching POM
+	 */
+	public MavenProject parseEmbeddedPOM(final File jar,
+		final Coordinate dependency)
+	{
+		if (!jar.getName().endsWith(".jar") || !exists(jar) || !jar.isFile()) {
+			return null;
+		}
+		ZipFile zip = null;
+		try {
+			zip = new ZipFile(jar);
+			ZipEntry entry = null;
+			if (dependency.groupId != null) {
+				entry = zip.getEntry("META-INF/maven/" + dependency.groupId + "/" +
+					dependency.artifactId + "/pom.xml");
+			}
+			else {
+				final String suffix = "/" + dependency.artifactId + "/pom.xml";
+				for (final Enumeration<? extends ZipEntry> iter = zip.entries(); iter
+					.hasMoreElements();)
+				{
+					final ZipEntry candidate = iter.nextElement();
+					final String name = candidate.getName();
+					if (name.startsWith("META-INF/maven/") && name.endsWith(suffix) &&
+						name.indexOf('/', 15) == name.length() - suffix.length())
+					{
+						entry = candidate;
+						break;
+					}
+				}
+			}
+			if (entry == null) return null;
+			if (verbose) print80("Parsing " + jar + "!/" + entry.getName());
+			final MavenProject pom = parse(zip.getInputStream(entry), jar
+				.getParentFile(), null, dependency.classifier);
+			if (!dependency.artifactId.equals(pom.coordinate.artifactId) ||
+				(dependency.groupId != null && !dependency.groupId.equals(pom
+					.expand(pom.coordinate.groupId))))
+			{
+				return null;
+			}
+			// this is a binary artifact, not a project to build
+			pom.buildFromSource = false;
+			pom.directory = jar.getParentFile();
+			pom.target = jar;
+			localPOMCache.put(dependency.getKey(), pom);
+			markUsed(pom.directory);
+			return pom;
+		}
+		catch (final Exception e) {
+			// e.g. the parent POM is unavailable: fall back to a fake POM
+			if (debug) {
+				err.println("Could not parse the POM embedded in " + jar);
+				e.printStackTrace(err);
+			}
+			return null;
+		}
+		finally {
+			if (zip != null) try {
+				zip.close();
+			}
+			catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private boolean hasEmbeddedPOM(final File jar,
+		final Coordinate dependency)
+	{
+		if (!exists(jar) || !jar.isFile()) return false;
+		try {
+			final ZipFile zip = new ZipFile(jar);
+			try {
+				return zip.getEntry("META-INF/maven/" + dependency.groupId + "/" +
+					dependency.artifactId + "/pom.xml") != null;
+			}
+			finally {
+				zip.close();
+			}
+		}
+		catch (final IOException e) {
+			return false;
+		}
+	}
+
 	public MavenProject fakePOM(final File target, final Coordinate dependency) {
+		markUsed(target.getParentFile());
 		final MavenProject pom = new MavenProject(this, target, null);
 		pom.directory = target.getParentFile();
 		pom.target = target;
@@ -370,36 +1135,827 @@ public class BuildEnvironment {
 		}
 	}
 
+	/**
+	 * Downloads an artifact from the first repository that has it.
+	 * <p>
+	 * The repositories are tried in order. If hedging is enabled and a
+	 * repository takes unusually long to respond, the same artifact is requested
+	 * from the next repository in parallel, and whichever download succeeds
+	 * first wins.
+	 * </p>
+	 *
+	 * @param repositories the base URLs of the repositories
+	 * @param dependency the artifact to download
+	 * @param quiet whether to suppress progress messages
+	 * @throws FileNotFoundException if no repository could provide the artifact
+	 */
+	protected void download(final Collection<String> repositories,
+		final Coordinate dependency, final boolean quiet)
+		throws FileNotFoundException
+	{
+		download(repositories, dependency, quiet, true);
+	}
+
+	/**
+	 * Downloads an artifact, or just its <tt>.pom</tt> file.
+	 *
+	 * @param repositories the base URLs of the repositories
+	 * @param dependency the artifact to download
+	 * @param quiet whether to suppress progress messages
+	 * @param withJar whether to download the <tt>.jar</tt> file, too
+	 * @throws FileNotFoundException if no repository could provide the artifact
+	 * @see #isLazy()
+	 */
+	protected void download(final Collection<String> repositories,
+		final Coordinate dependency, final boolean quiet, final boolean withJar)
+		throws FileNotFoundException
+	{
+		final List<String> urls = getMirroredURLs(repositories);
+		Throwable last = null;
+		for (final Iterator<String> iter = urls.iterator(); iter.hasNext();) {
+			final String url = iter.next();
+			if (isKnownMissing(url, dependency)) {
+				if (debug) err.println("Skipping " + url + ": " + dependency +
+					" is known to be missing");
+				iter.remove();
+			}
+		}
+		if (urls.isEmpty()) {
+			throw new FileNotFoundException("Could not find " + dependency
+				.getJarName() + " (cached; use -U to check again)");
+		}
+		// make sure that only one thread or process downloads this artifact
+		final ArtifactLock lock;
+		try {
+			lock = lockArtifact(getArtifactDirectory(dependency), quiet ? null
+				: err);
+		}
+		catch (final IOException e) {
+			final FileNotFoundException ex = new FileNotFoundException(
+				"Could not lock " + getArtifactDirectory(dependency));
+			ex.initCause(e);
+			throw ex;
+		}
+		try {
+			if (isDownloaded(dependency, withJar)) {
+				if (verbose && lock.wasContended()) {
+					err.println("Reusing concurrently downloaded " + dependency);
+				}
+				return;
+			}
+			if (hedgeRequests && urls.size() > 1) {
+				last = downloadHedged(urls, dependency, quiet, withJar);
+				if (last == null) return;
+			}
+			else {
+				for (final String url : urls) {
+					try {
+						if (debug) {
+							err.println("Trying to download from " + url);
+						}
+						downloadAndVerify(url, dependency, quiet, withJar);
+						return;
+					}
+					catch (final Exception e) {
+						if (debug) e.printStackTrace(err);
+						last = e;
+					}
+				}
+			}
+		}
+		finally {
+			lock.close();
+		}
+		final FileNotFoundException ex = new FileNotFoundException(
+			"Could not download " + dependency.getJarName());
+		if (last != null) ex.initCause(last);
+		throw ex;
+	}
+
+	protected File getArtifactDirectory(final Coordinate dependency) {
+		return new File(localRepository, dependency.groupId.replace('.', '/') +
+			"/" + dependency.artifactId);
+	}
+
+	/**
+	 * Determines whether a release artifact is already present in the local
+	 * repository, e.g. because a concurrent process downloaded it.
+	 * <p>
+	 * Snapshots and version ranges are never considered complete here; for them,
+	 * {@link #downloadAndVerify(String, Coordinate, boolean)} decides based on
+	 * the age of the metadata whether to look for updates.
+	 * </p>
+	 */
+	protected boolean isDownloaded(final Coordinate dependency,
+		final boolean withJar)
+	{
+		final String version = dependency.version;
+		if (version == null || version.startsWith("[") || isSnapshotVersion(
+			version))
+		{
+			return false;
+		}
+		final File directory = new File(getArtifactDirectory(dependency), version);
+		final File pom = new File(directory, dependency.getPOMName());
+		if (!pom.exists()) return false;
+		return !withJar || new File(directory, dependency.getJarName()).exists() ||
+			isAggregatorPOM(pom);
+	}
+
+	private Throwable downloadHedged(final List<String> urls,
+		final Coordinate dependency, final boolean quiet, final boolean withJar)
+	{
+		final CompletionService<String> completion =
+			new ExecutorCompletionService<String>(getExecutor());
+		final List<Future<String>> futures = new ArrayList<Future<String>>();
+		final List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+		final long hedgeDelay = latencies.percentile(hedgePercentile, 1000, 8);
+		Throwable last = null;
+		int next = 0, pending = 0;
+		try {
+			while (next < urls.size() || pending > 0) {
+				if (pending == 0) {
+					futures.add(completion.submit(downloadTask(urls.get(next++),
+						dependency, quiet, withJar, tasks)));
+					pending++;
+				}
+				final Future<String> done = next < urls.size() ? completion.poll(
+					hedgeDelay, TimeUnit.MILLISECONDS) : completion.take();
+				if (done == null) {
+					if (verbose) {
+						err.println("No response after " + hedgeDelay + "ms, also trying " +
+							urls.get(next));
+					}
+					futures.add(completion.submit(downloadTask(urls.get(next++),
+						dependency, quiet, withJar, tasks)));
+					pending++;
+					continue;
+				}
+				pending--;
+				try {
+					final String url = done.get();
+					if (debug) err.println("Downloaded " + dependency + " from " + url);
+					return null;
+				}
+				catch (final ExecutionException e) {
+					if (debug) e.getCause().printStackTrace(err);
+					last = e.getCause();
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			last = e;
+		}
+		finally {
+			for (final Future<String> future : futures) {
+				future.cancel(true);
+			}
+			awaitCancelled(tasks);
+		}
+		return last;
+	}
+
+	/**
+	 * Waits for cancelled download tasks to finish.
+	 * <p>
+	 * Cancelling only interrupts the tasks; a task blocked in a read notices
+	 * only when the read returns, at the latest after the read timeout. The
+	 * caller must not release the {@link ArtifactLock} before that, lest a
+	 * losing task write to the artifact directory unprotected.
+	 * </p>
+	 */
+	private void awaitCancelled(final List<DownloadTask> tasks) {
+		final long deadline = System.currentTimeMillis() + readTimeout + 1000;
+		boolean interrupted = false;
+		for (final DownloadTask task : tasks) {
+			// tasks that did not start yet never will
+			if (task.started.compareAndSet(false, true)) continue;
+			for (;;) {
+				final long remaining = deadline - System.currentTimeMillis();
+				try {
+					if (!task.finished.await(Math.max(0, remaining),
+						TimeUnit.MILLISECONDS) && verbose)
+					{
+						err.println("Warning: a cancelled download is still running");
+					}
+					break;
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private DownloadTask downloadTask(final String url,
+		final Coordinate dependency, final boolean quiet, final boolean withJar,
+		final List<DownloadTask> tasks)
+	{
+		final DownloadTask task = new DownloadTask(url, dependency, quiet,
+			withJar);
+		tasks.add(task);
+		return task;
+	}
+
+	/**
+	 * One of several concurrent attempts to download an artifact.
+	 */
+	private class DownloadTask implements Callable<String> {
+
+		private final String url;
+		private final Coordinate dependency;
+		private final boolean quiet, withJar;
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		private DownloadTask(final String url, final Coordinate dependency,
+			final boolean quiet, final boolean withJar)
+		{
+			this.url = url;
+			this.dependency = dependency;
+			this.quiet = quiet;
+			this.withJar = withJar;
+		}
+
+		@Override
+		public String call() throws Exception {
+			if (!started.compareAndSet(false, true)) {
+				throw new CancellationException();
+			}
+			try {
+				if (debug) err.println("Trying to download from " + url);
+				downloadAndVerify(url, dependency, quiet, withJar);
+				return url;
+			}
+			finally {
+				finished.countDown();
+			}
+		}
+	}
+
+	private static boolean isNotFound(final IOException e) {
+		if (e instanceof HTTPException) {
+			final int code = ((HTTPException) e).getCode();
+			return code == HttpURLConnection.HTTP_NOT_FOUND ||
+				code == HttpURLConnection.HTTP_GONE;
+		}
+		// file: URLs, and HttpURLConnection for unexpected 404s
+		return e instanceof FileNotFoundException;
+	}
+
+	/**
+	 * Determines whether the given repository was recently found not to have the
+	 * given artifact.
+	 * <p>
+	 * Such negative results are remembered across invocations, so that
+	 * artifacts that are missing from some of the repositories (or from all of
+	 * them, e.g. optional dependencies) do not cost a round trip per repository
+	 * every time. The results expire after the update interval; <tt>-U</tt>
+	 * therefore ignores them.
+	 * </p>
+	 * <p>
+	 * Only the absence of the artifact's primary file (see
+	 * {@link #getPrimaryURL(String, Coordinate)}) is remembered: a missing
+	 * checksum or <tt>.jar</tt> file does not mean that the repository does not
+	 * know the artifact.
+	 * </p>
+	 *
+	 * @param url the URL of the repository
+	 * @param dependency the artifact
+	 * @return whether the artifact is known to be missing
+	 */
+	protected boolean isKnownMissing(final String url,
+		final Coordinate dependency)
+	{
+		final String key = getPrimaryURL(url, dependency);
+		if (missingThisSession.contains(key)) return true;
+		final long time = getKnownMissing().get(key);
+		return time >= 0 && System.currentTimeMillis() - time < updateInterval *
+			60 * 1000l;
+	}
+
+	/**
+	 * Remembers that the given file was not found.
+	 *
+	 * @param url the URL of the primary file of an artifact
+	 */
+	protected void markMissing(final String url) {
+		missingThisSession.add(url);
+		getKnownMissing().put(url, System.currentTimeMillis());
+		if (!batchUpdateChecks) saveKnownMissing();
+	}
+
+	/**
+	 * Returns the URL of the file that tells whether a repository has the given
+	 * artifact at all: the metadata for snapshots and version ranges, the POM
+	 * otherwise.
+	 *
+	 * @param repositoryURL the URL of the repository
+	 * @param dependency the artifact
+	 * @return the URL of the primary file
+	 */
+	protected String getPrimaryURL(final String repositoryURL,
+		final Coordinate dependency)
+	{
+		final String path = repositoryURL + "/" + dependency.groupId.replace('.',
+			'/') + "/" + dependency.artifactId + "/";
+		if (dependency.version.startsWith("[")) return path + "maven-metadata.xml";
+		if (dependency.version.endsWith("-SNAPSHOT")) {
+			return path + dependency.version + "/maven-metadata.xml";
+		}
+		return path + dependency.version + "/" + dependency.getPOMName();
+	}
+
+	// downloads an artifact's primary file, remembering if it is missing
+	private void downloadPrimary(final String url, final File directory,
+		final String fileName, final String message) throws IOException,
+			NoSuchAlgorithmException
+	{
+		try {
+			downloadAndVerify(url, directory, fileName, message);
+		}
+		catch (final IOException e) {
+			if (isNotFound(e)) markMissing(url);
+			throw e;
+		}
+	}
+
+	private synchronized TimestampIndex getKnownMissing() {
+		if (knownMissing == null) {
+			knownMissing = new TimestampIndex(new File(localRepository,
+				".minimaven/missing.txt"));
+		}
+		return knownMissing;
+	}
+
+	private void saveKnownMissing() {
+		try {
+			getKnownMissing().save();
+		}
+		catch (final IOException e) {
+			err.println("Warning: could not write " + getKnownMissing().getFile() +
+				": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the given tasks concurrently, at most {@link #threads} at a time, and
+	 * waits for all of them to finish.
+	 *
+	 * @param tasks the tasks to run
+	 * @return the (completed) futures, in the same order as the tasks
+	 * @throws InterruptedException
+	 */
+	protected <T> List<Future<T>> invokeAll(
+		final Collection<? extends Callable<T>> tasks) throws InterruptedException
+	{
+		final Semaphore permits = new Semaphore(threads);
+		final List<Future<T>> futures = new ArrayList<Future<T>>();
+		try {
+			for (final Callable<T> task : tasks) {
+				permits.acquire();
+				futures.add(getExecutor().submit(new Callable<T>() {
+
+					@Override
+					public T call() throws Exception {
+						try {
+							return task.call();
+						}
+						finally {
+							permits.release();
+						}
+					}
+				}));
+			}
+			for (final Future<T> future : futures) {
+				try {
+					future.get();
+				}
+				catch (final ExecutionException e) {
+					// the caller inspects the futures
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			for (final Future<T> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+		return futures;
+	}
+
+	/**
+	 * Downloads (or checks for updates of) several artifacts concurrently.
+	 * <p>
+	 * Failures are reported, but not fatal: the dependency resolution will try
+	 * again (and fail properly) if the artifact is really needed.
+	 * </p>
+	 *
+	 * @param repositories the base URLs of the repositories
+	 * @param dependencies the artifacts to download
+	 * @param quiet whether to suppress progress messages
+	 * @param withJar whether to download the <tt>.jar</tt> files, too
+	 */
+	protected void downloadAll(final Collection<String> repositories,
+		final Collection<Coordinate> dependencies, final boolean quiet,
+		final boolean withJar)
+	{
+		if (dependencies.isEmpty()) return;
+		final List<Callable<Coordinate>> tasks =
+			new ArrayList<Callable<Coordinate>>();
+		for (final Coordinate dependency : dependencies) {
+			tasks.add(new Callable<Coordinate>() {
+
+				@Override
+				public Coordinate call() throws Exception {
+					download(repositories, dependency, quiet, withJar);
+					return dependency;
+				}
+			});
+		}
+		final List<Future<Coordinate>> futures;
+		try {
+			futures = invokeAll(tasks);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		int i = 0;
+		for (final Coordinate dependency : dependencies) {
+			try {
+				futures.get(i++).get();
+			}
+			catch (final Exception e) {
+				if (!dependency.optional) {
+					final Throwable cause = e instanceof ExecutionException ? e
+						.getCause() : e;
+					err.println("Could not download " + dependency.artifactId + ": " +
+						cause.getMessage());
+					if (debug) cause.printStackTrace(err);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines whether <tt>.jar</tt> files are downloaded only when needed.
+	 * <p>
+	 * Resolving the dependencies only needs the <tt>.pom</tt> files; the
+	 * <tt>.jar</tt> files are downloaded by {@link #materialize} when a class
+	 * path is constructed, or the dependencies are copied or installed.
+	 * Operations like <tt>dependency-tree</tt> therefore do not need to download
+	 * any binaries.
+	 * </p>
+	 * <p>
+	 * As callers of {@link MavenProject#getDependencies()} may expect the
+	 * <tt>.jar</tt> files to be present, lazy downloading is opt-in: set
+	 * <tt>minimaven.lazy</tt> to <tt>true</tt>.
+	 * </p>
+	 *
+	 * @return whether the <tt>.jar</tt> files are downloaded lazily
+	 */
+	protected boolean isLazy() {
+		return lazyJars && downloadAutomatically && !offlineMode;
+	}
+
+	/**
+	 * Downloads the missing <tt>.jar</tt> files of the given projects, in one
+	 * concurrent batch.
+	 *
+	 * @param repositories the base URLs of the repositories
+	 * @param projects the (resolved) projects
+	 * @param quiet whether to suppress progress messages
+	 */
+	protected void materialize(final Collection<String> repositories,
+		final Collection<MavenProject> projects, final boolean quiet)
+	{
+		if (!isLazy()) return;
+		final List<Coordinate> missing = new ArrayList<Coordinate>();
+		for (final MavenProject project : projects) {
+			if (project == null || project.buildFromSource || !project.isJAR() ||
+				project.target == null || exists(project.target) || !isInDirectory(
+					project.directory, localRepository))
+			{
+				continue;
+			}
+			final Coordinate coordinate = project.expand(project.coordinate);
+			missing.add(new Coordinate(coordinate.groupId, coordinate.artifactId,
+				coordinate.version, null, false, null, coordinate.classifier, null));
+		}
+		if (missing.isEmpty()) return;
+		if (verbose) {
+			err.println("Downloading " + missing.size() + " jar" + (missing
+				.size() > 1 ? "s" : ""));
+		}
+		downloadAll(repositories, missing, quiet, true);
+	}
+
+	/**
+	 * Determines whether the given dependency needs to be fetched, or checked for
+	 * updates.
+	 *
+	 * @param dependency the (expanded) dependency
+	 * @return true for missing artifacts, and for snapshots and version ranges
+	 *         that were not checked within the update interval
+	 */
+	protected boolean needsDownload(final Coordinate dependency) {
+		final String version = dependency.version;
+		if (version == null || dependency.groupId == null) return false;
+		final File directory = getArtifactDirectory(dependency);
+		if (version.startsWith("[")) {
+			return !isUpToDate(new File(directory, "maven-metadata-version.xml"));
+		}
+		if (isSnapshotVersion(version)) {
+			return !isUpToDate(new File(directory, version +
+				"/maven-metadata-snapshot.xml"));
+		}
+		final File versionDirectory = new File(directory, version);
+		return !exists(new File(versionDirectory, dependency.getPOMName())) &&
+			!hasEmbeddedPOM(new File(versionDirectory, dependency.getJarName()),
+				dependency) && findInSharedRepositories(dependency) == null;
+	}
+
+	/**
+	 * Determines whether the given metadata was checked for updates recently.
+	 * <p>
+	 * The time of the last check is recorded in a single index file in the local
+	 * repository; for metadata that is not in the index yet, the modification
+	 * time of the metadata file is used instead.
+	 * </p>
+	 *
+	 * @param metadata the local copy of the metadata, e.g.
+	 *          <tt>maven-metadata-snapshot.xml</tt>
+	 * @return whether there is no need to check for updates
+	 */
+	protected boolean isUpToDate(final File metadata) {
+		final String key = getRepositoryPath(metadata);
+		if (checkedThisSession.contains(key)) return true;
+		long checked = getLastChecked().get(key);
+		if (checked < 0) checked = lastModified(metadata);
+		return System.currentTimeMillis() - checked < updateInterval * 60 * 1000l;
+	}
+
+	/**
+	 * Records that the given metadata was just checked for updates.
+	 *
+	 * @param metadata the local copy of the metadata
+	 */
+	protected void markChecked(final File metadata) {
+		final String key = getRepositoryPath(metadata);
+		checkedThisSession.add(key);
+		getLastChecked().put(key, System.currentTimeMillis());
+		if (!batchUpdateChecks) saveLastChecked();
+	}
+
+	/**
+	 * Forgets when the given metadata was checked for updates, so that it is
+	 * checked again the next time it is needed.
+	 *
+	 * @param metadata the local copy of the metadata
+	 */
+	protected void markUnchecked(final File metadata) {
+		final String key = getRepositoryPath(metadata);
+		checkedThisSession.remove(key);
+		getLastChecked().remove(key);
+		if (!batchUpdateChecks) saveLastChecked();
+	}
+
+	/**
+	 * Defers writing the update check index until
+	 * {@link #endBatchUpdateChecks()} is called.
+	 */
+	protected void beginBatchUpdateChecks() {
+		batchUpdateChecks = true;
+	}
+
+	protected void endBatchUpdateChecks() {
+		batchUpdateChecks = false;
+		saveLastChecked();
+		if (getKnownMissing().isDirty()) saveKnownMissing();
+	}
+
+	private synchronized TimestampIndex getLastChecked() {
+		if (lastChecked == null) {
+			lastChecked = new TimestampIndex(new File(localRepository,
+				".minimaven/last-checked.txt"));
+		}
+		return lastChecked;
+	}
+
+	private void saveLastChecked() {
+		try {
+			getLastChecked().save();
+		}
+		catch (final IOException e) {
+			err.println("Warning: could not write " + getLastChecked().getFile() +
+				": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records that an artifact in the local repository was used.
+	 * <p>
+	 * This information is used by {@link RepositoryPruner} to determine which
+	 * artifacts are no longer needed. To keep it cheap, each artifact is
+	 * recorded at most once per day, and the index is written only at the end
+	 * of each command (or, failing that, when the JVM exits).
+	 * </p>
+	 *
+	 * @param directory the version directory of the artifact
+	 */
+	protected void markUsed(final File directory) {
+		if (directory == null || !isInDirectory(directory, localRepository)) return;
+		final String key = getRepositoryPath(directory);
+		if (!usedThisSession.add(key)) return;
+		final long now = System.currentTimeMillis();
+		final TimestampIndex index = getLastUsed();
+		if (now - index.get(key) < 24 * 60 * 60 * 1000l) return;
+		if (index.get(USAGE_TRACKED_SINCE) < 0) index.put(USAGE_TRACKED_SINCE, now);
+		index.put(key, now);
+		saveAtExit(this);
+	}
+
+	/**
+	 * Makes sure that the state of an environment is saved when the JVM exits.
+	 * <p>
+	 * A single shutdown hook serves all environments; it does not keep them
+	 * alive.
+	 * </p>
+	 *
+	 * @param env the environment
+	 */
+	private static void saveAtExit(final BuildEnvironment env) {
+		synchronized (pendingAtExit) {
+			pendingAtExit.put(env, Boolean.TRUE);
+			if (exitHook != null) return;
+			exitHook = new Thread("minimaven-exit") {
+
+				@Override
+				public void run() {
+					final List<BuildEnvironment> environments;
+					synchronized (pendingAtExit) {
+						environments = new ArrayList<BuildEnvironment>(pendingAtExit
+							.keySet());
+					}
+					for (final BuildEnvironment env : environments) {
+						env.onExit();
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(exitHook);
+		}
+	}
+
+	private void onExit() {
+		saveLastUsed();
+		final RepositoryCapture capture = this.capture;
+		if (capture != null) {
+			capture.close();
+			err.println(capture.getSummary());
+		}
+	}
+
+	/**
+	 * Returns when an artifact in the local repository was last used.
+	 *
+	 * @param directory the version directory of the artifact
+	 * @return the time in milliseconds since the epoch, or -1 if unknown
+	 */
+	protected long getLastUsed(final File directory) {
+		final String key = getRepositoryPath(directory);
+		if (usedThisSession.contains(key)) return System.currentTimeMillis();
+		return getLastUsed().get(key);
+	}
+
+	/**
+	 * Returns since when the usage of artifacts is tracked.
+	 *
+	 * @return the time in milliseconds since the epoch; the current time if
+	 *         nothing was tracked yet
+	 */
+	protected long getUsageTrackedSince() {
+		final long since = getLastUsed().get(USAGE_TRACKED_SINCE);
+		return since < 0 ? System.currentTimeMillis() : since;
+	}
+
+	/**
+	 * Forgets about an artifact that was removed from the local repository.
+	 *
+	 * @param directory the version directory of the artifact
+	 */
+	protected void forgetUsed(final File directory) {
+		final String key = getRepositoryPath(directory);
+		usedThisSession.remove(key);
+		getLastUsed().remove(key);
+	}
+
+	private synchronized TimestampIndex getLastUsed() {
+		if (lastUsed == null) {
+			lastUsed = new TimestampIndex(new File(localRepository,
+				".minimaven/last-used.txt"));
+		}
+		return lastUsed;
+	}
+
+	protected void saveLastUsed() {
+		final TimestampIndex index;
+		synchronized (this) {
+			index = lastUsed;
+		}
+		if (index == null || !index.isDirty()) return;
+		try {
+			index.save();
+		}
+		catch (final IOException e) {
+			err.println("Warning: could not write " + index.getFile() + ": " + e
+				.getMessage());
+		}
+	}
+
+	/**
+	 * Locks an artifact directory of the local repository.
+	 * <p>
+	 * The lock files live in <tt>.minimaven/locks/</tt>, named after a hash of
+	 * the directory's path.
+	 * </p>
+	 *
+	 * @param directory the artifact directory
+	 * @param err where to report that we have to wait, or null
+	 * @return the lock; call {@link ArtifactLock#close()} to release it
+	 * @throws IOException if the lock file could not be created
+	 */
+	protected ArtifactLock lockArtifact(final File directory,
+		final PrintStream err) throws IOException
+	{
+		final String hash;
+		try {
+			hash = String.format("%040x", new BigInteger(1, MessageDigest
+				.getInstance("SHA-1").digest(getRepositoryPath(directory).getBytes(
+					"UTF-8"))));
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		return ArtifactLock.lock(directory, new File(localRepository,
+			".minimaven/locks/" + hash + ".lock"), err, verbose);
+	}
+
+	protected String getRepositoryPath(final File file) {
+		final String path = file.getAbsolutePath();
+		final String prefix = localRepository.getPath() + File.separator;
+		final String relative = path.startsWith(prefix) ? path.substring(prefix
+			.length()) : path;
+		return relative.replace(File.separatorChar, '/');
+	}
+
 	protected void downloadAndVerify(final String repositoryURL,
 		final Coordinate dependency, final boolean quiet)
 			throws MalformedURLException, IOException, NoSuchAlgorithmException,
 			ParserConfigurationException, SAXException
+	{
+		downloadAndVerify(repositoryURL, dependency, quiet, true);
+	}
+
+	protected void downloadAndVerify(final String repositoryURL,
+		final Coordinate dependency, final boolean quiet, final boolean withJar)
+			throws MalformedURLException, IOException, NoSuchAlgorithmException,
+			ParserConfigurationException, SAXException
 	{
 		String path = "/" + dependency.groupId.replace('.', '/') + "/" +
 			dependency.artifactId + "/" + dependency.version + "/";
-		File directory = new File(mavenRepository, path);
+		File directory = new File(localRepository, path);
 		if (dependency.version.endsWith("-SNAPSHOT")) {
 			// Only check snapshots once per day
 			final File snapshotMetaData = new File(directory,
 				"maven-metadata-snapshot.xml");
-			if (System.currentTimeMillis() - snapshotMetaData
-				.lastModified() < updateInterval * 60 * 1000l)
-			{
-				return;
+			if (isUpToDate(snapshotMetaData)) {
+				// the .jar file might be needed now, though
+				if (!withJar || !snapshotMetaData.exists()) return;
+				final String snapshotVersion = SnapshotPOMHandler.parse(
+					snapshotMetaData);
+				if (snapshotVersion == null) return;
+				dependency.setSnapshotVersion(snapshotVersion);
 			}
-
-			final String message = quiet ? null : "Checking for new snapshot of " +
-				dependency.artifactId;
-			final String metadataURL = repositoryURL + path + "maven-metadata.xml";
-			downloadAndVerify(metadataURL, directory, snapshotMetaData.getName(),
-				message);
-			final String snapshotVersion = SnapshotPOMHandler.parse(snapshotMetaData);
-			if (snapshotVersion == null) {
-				throw new IOException("No version found in " + metadataURL);
+			else {
+				final String message = quiet ? null : "Checking for new snapshot of " +
+					dependency.artifactId;
+				final String metadataURL = repositoryURL + path + "maven-metadata.xml";
+				downloadPrimary(metadataURL, directory, snapshotMetaData.getName(),
+					message);
+				final String snapshotVersion = SnapshotPOMHandler.parse(
+					snapshotMetaData);
+				if (snapshotVersion == null) {
+					throw new IOException("No version found in " + metadataURL);
+				}
+				dependency.setSnapshotVersion(snapshotVersion);
+				markChecked(snapshotMetaData);
 			}
-			dependency.setSnapshotVersion(snapshotVersion);
-			if (new File(directory, dependency.getJarName()).exists() && new File(
-				directory, dependency.getPOMName()).exists())
+			if ((!withJar || new File(directory, dependency.getJarName())
+				.exists()) && new File(directory, dependency.getPOMName()).exists())
 			{
 				return;
 			}
@@ -407,31 +1963,34 @@ public class BuildEnvironment {
 		else if (dependency.version.startsWith("[")) {
 			path = "/" + dependency.groupId.replace('.', '/') + "/" +
 				dependency.artifactId + "/";
-			directory = new File(mavenRepository, path);
+			directory = new File(localRepository, path);
 
 			// Only check versions once per day
 			final File versionMetaData = new File(directory,
 				"maven-metadata-version.xml");
-			if (System.currentTimeMillis() - versionMetaData
-				.lastModified() < updateInterval * 60 * 1000l)
-			{
-				return;
+			if (isUpToDate(versionMetaData)) {
+				// the .jar file might be needed now, though
+				if (!withJar || !versionMetaData.exists()) return;
+				dependency.snapshotVersion = VersionPOMHandler.parse(versionMetaData);
+				if (dependency.snapshotVersion == null) return;
 			}
-
-			final String message = quiet ? null : "Checking for new version of " +
-				dependency.artifactId;
-			final String metadataURL = repositoryURL + path + "maven-metadata.xml";
-			downloadAndVerify(metadataURL, directory, versionMetaData.getName(),
-				message);
-			dependency.snapshotVersion = VersionPOMHandler.parse(versionMetaData);
-			if (dependency.snapshotVersion == null) {
-				throw new IOException("No version found in " + metadataURL);
+			else {
+				final String message = quiet ? null : "Checking for new version of " +
+					dependency.artifactId;
+				final String metadataURL = repositoryURL + path + "maven-metadata.xml";
+				downloadPrimary(metadataURL, directory, versionMetaData.getName(),
+					message);
+				dependency.snapshotVersion = VersionPOMHandler.parse(versionMetaData);
+				if (dependency.snapshotVersion == null) {
+					throw new IOException("No version found in " + metadataURL);
+				}
+				markChecked(versionMetaData);
 			}
 			path = "/" + dependency.groupId.replace('.', '/') + "/" +
 				dependency.artifactId + "/" + dependency.snapshotVersion + "/";
-			directory = new File(mavenRepository, path);
-			if (new File(directory, dependency.getJarName()).exists() && new File(
-				directory, dependency.getPOMName()).exists())
+			directory = new File(localRepository, path);
+			if ((!withJar || new File(directory, dependency.getJarName())
+				.exists()) && new File(directory, dependency.getPOMName()).exists())
 			{
 				return;
 			}
@@ -439,8 +1998,17 @@ public class BuildEnvironment {
 		final String message = quiet ? null : "Downloading " +
 			dependency.artifactId;
 		final String baseURL = repositoryURL + path;
-		downloadAndVerify(baseURL + dependency.getPOMName(), directory, null);
-		if (!isAggregatorPOM(new File(directory, dependency.getPOMName()))) {
+		final File pom = new File(directory, dependency.getPOMName());
+		if (!pom.exists()) {
+			final String pomURL = baseURL + dependency.getPOMName();
+			if (pomURL.equals(getPrimaryURL(repositoryURL, dependency))) {
+				downloadPrimary(pomURL, directory, null, null);
+			}
+			else downloadAndVerify(pomURL, directory, null);
+		}
+		if (withJar && !isAggregatorPOM(pom) && !new File(directory, dependency
+			.getJarName()).exists())
+		{
 			downloadAndVerify(baseURL + dependency.getJarName(), directory, message);
 		}
 	}
@@ -458,10 +2026,27 @@ public class BuildEnvironment {
 		if (fileName == null) {
 			fileName = url.substring(url.lastIndexOf('/') + 1);
 		}
-		final File sha1 = download(new URL(url + ".sha1"), directory, fileName +
-			".sha1.new", null);
-		final File file = download(new URL(url), directory, fileName + ".new",
-			message);
+		// concurrent (hedged) downloads must not clobber each other's files
+		final String suffix = "-" + processId + "-" + Thread.currentThread()
+			.getId() + ".new";
+		File sha1 = null, file = null;
+		try {
+			file = download(new URL(url), directory, fileName + suffix, message);
+			try {
+				sha1 = download(new URL(url + ".sha1"), directory, fileName + ".sha1" +
+					suffix, null);
+			}
+			catch (final IOException e) {
+				// a missing checksum does not mean that the file is missing
+				if (!isNotFound(e)) throw e;
+				throw new IOException("No checksum for " + url, e);
+			}
+		}
+		catch (final IOException e) {
+			new File(directory, fileName + ".sha1" + suffix).delete();
+			new File(directory, fileName + suffix).delete();
+			throw e;
+		}
 		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
 		FileInputStream fileStream = new FileInputStream(file);
 		final DigestInputStream digestStream = new DigestInputStream(fileStream,
@@ -491,6 +2076,12 @@ public class BuildEnvironment {
 			}
 		}
 		fileStream.close();
+		// a cancelled (hedged) download must not replace the winner's files
+		if (Thread.currentThread().isInterrupted()) {
+			file.delete();
+			sha1.delete();
+			throw new InterruptedIOException("Cancelled downloading " + url);
+		}
 		rename(file, new File(directory, fileName));
 		rename(sha1, new File(directory, fileName + ".sha1"));
 	}
@@ -506,6 +2097,7 @@ public class BuildEnvironment {
 		if (!source.renameTo(target)) {
 			throw new IOException("Could not rename " + source + " to " + target);
 		}
+		updateRepositoryIndex(target);
 	}
 
 	protected boolean isAggregatorPOM(final File xml) {
@@ -604,29 +2196,109 @@ public class BuildEnvironment {
 			name = url.getPath();
 			name = name.substring(name.lastIndexOf('/') + 1);
 		}
+		for (int attempt = 0;; attempt++) {
+			try {
+				final InputStream in = openStream(url);
+				if (message != null && attempt == 0) err.println(message);
+				directory.mkdirs();
+				final File result = new File(directory, name);
+				if (verbose) {
+					err.println("Downloading " + url + " to " + result.getAbsolutePath());
+				}
+				copy(in, result);
+				return result;
+			}
+			catch (final IOException e) {
+				if (attempt >= retries || !isTransient(e)) throw e;
+				// exponential backoff with jitter, to avoid hammering the server
+				final long delay = retryDelay << attempt;
+				final long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(
+					delay / 2 + 1);
+				if (verbose) {
+					err.println("Retrying " + url + " in " + jittered + "ms (" + e
+						.getMessage() + ")");
+				}
+				try {
+					Thread.sleep(jittered);
+				}
+				catch (final InterruptedException e2) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted downloading " + url);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens a connection to the given URL, honoring the configured timeouts.
+	 *
+	 * @param url the URL to open
+	 * @return the stream of the response body
+	 * @throws HTTPException if the server did not respond with <tt>200 OK</tt>
+	 * @throws IOException if the connection failed or timed out
+	 */
+	protected InputStream openStream(final URL url) throws IOException {
+		if (capture != null && capture.isReplay()) return capture.replay(url);
+		final long start = System.currentTimeMillis();
 		final URLConnection connection = url.openConnection();
-		final InputStream in;
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
 		if (connection instanceof HttpURLConnection) {
 			final HttpURLConnection http = (HttpURLConnection) connection;
 			http.setRequestProperty("User-Agent", "MiniMaven/2.0.0-SNAPSHOT");
-			final int code = http.getResponseCode();
+			final int code;
+			try {
+				code = http.getResponseCode();
+			}
+			catch (final IOException e) {
+				if (capture != null) capture.record(url, 0, null);
+				throw e;
+			}
+			latencies.add(System.currentTimeMillis() - start);
 			if (code != HttpURLConnection.HTTP_OK) {
+				if (capture != null) capture.record(url, code, http.getHeaderFields());
 				http.disconnect();
-				throw new IOException("HTTP " + code + " downloading " + url);
+				throw new HTTPException(code, "HTTP " + code + " downloading " + url);
+			}
+			if (capture != null) {
+				return capture.record(url, http.getHeaderFields(), http.getInputStream());
 			}
-			in = http.getInputStream();
+			return http.getInputStream();
 		}
-		else {
-			in = connection.getInputStream();
+		if (capture == null) return connection.getInputStream();
+		try {
+			return capture.record(url, null, connection.getInputStream());
 		}
-		if (message != null) err.println(message);
-		directory.mkdirs();
-		final File result = new File(directory, name);
-		if (verbose) {
-			err.println("Downloading " + url + " to " + result.getAbsolutePath());
+		catch (final FileNotFoundException e) {
+			capture.record(url, 404, null);
+			throw e;
 		}
-		copy(in, result);
-		return result;
+	}
+
+	/**
+	 * Records the traffic to remote repositories, or replays it.
+	 * <p>
+	 * A summary is printed when the process exits.
+	 * </p>
+	 *
+	 * @param capture the capture, or null to access the network normally
+	 */
+	public void setCapture(final RepositoryCapture capture) {
+		this.capture = capture;
+		if (capture != null) saveAtExit(this);
+	}
+
+	public RepositoryCapture getCapture() {
+		return capture;
+	}
+
+	protected static boolean isTransient(final IOException e) {
+		if (e instanceof HTTPException) return ((HTTPException) e).isTransient();
+		if (e instanceof InterruptedIOException) {
+			// a SocketTimeoutException is worth retrying, an interrupt is not
+			return e instanceof SocketTimeoutException;
+		}
+		return e instanceof SocketException;
 	}
 
 	public static void copyFile(final File source, final File target)
@@ -645,13 +2317,21 @@ public class BuildEnvironment {
 		final boolean closeOutput) throws IOException
 	{
 		final byte[] buffer = new byte[131072];
-		for (;;) {
-			final int count = in.read(buffer);
-			if (count < 0) break;
-			out.write(buffer, 0, count);
+		try {
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0) break;
+				out.write(buffer, 0, count);
+				// allow cancelling (hedged) downloads
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Interrupted while copying");
+				}
+			}
+		}
+		finally {
+			in.close();
+			if (closeOutput) out.close();
 		}
-		in.close();
-		if (closeOutput) out.close();
 	}
 
 	protected static boolean isSnapshotVersion(final String version) {
@@ -0,0 +1,267 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which projects had files changed, using a {@link WatchService}.
+ * <p>
+ * Used by the {@link BuildDaemon}: once a project was found to be up-to-date,
+ * it is considered up-to-date until a file in its source directories (or its
+ * <tt>pom.xml</tt>) changes, without walking the source tree again.
+ * </p>
+ * <p>
+ * To avoid missing changes made while a project is checked, callers obtain a
+ * {@link #now() time stamp} before checking, and the project is only marked
+ * clean as of that time stamp.
+ * </p>
+ * <p>
+ * Events arrive asynchronously (on some platforms, the file system is only
+ * polled every few seconds), and the outputs are not watched at all. A clean
+ * project is therefore not necessarily up-to-date; callers need to check the
+ * modification times against the {@link #getCleanTime(File, String) time}
+ * the project was marked clean, which is still much cheaper than a full
+ * up-to-date check.
+ * </p>
+ */
+public class ChangeJournal implements Closeable {
+
+	private final WatchService watcher;
+	private final Map<WatchKey, Watched> keys = new HashMap<WatchKey, Watched>();
+	private final Set<File> projects = new HashSet<File>();
+	// the sequence number of the last event, by project
+	private final Map<File, Long> lastChange = new HashMap<File, Long>();
+	// since when a project is known to be up-to-date, by project and kind
+	private final Map<String, Long> cleanSince = new HashMap<String, Long>();
+	// the same, as wall-clock time
+	private final Map<String, Long> cleanTime = new HashMap<String, Long>();
+	private long sequence;
+	private boolean pomChanged;
+
+	private static class Watched {
+
+		private final File directory, project;
+		// whether this is the project directory, in which only some files count
+		private final boolean isProjectDirectory;
+
+		private Watched(final File directory, final File project,
+			final boolean isProjectDirectory)
+		{
+			this.directory = directory;
+			this.project = project;
+			this.isProjectDirectory = isProjectDirectory;
+		}
+	}
+
+	public ChangeJournal() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		final Thread thread = new Thread("change-journal") {
+
+			@Override
+			public void run() {
+				for (;;) {
+					final WatchKey key;
+					try {
+						key = watcher.take();
+					}
+					catch (final InterruptedException e) {
+						return;
+					}
+					catch (final ClosedWatchServiceException e) {
+						return;
+					}
+					handle(key);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts watching a project, unless it is watched already.
+	 *
+	 * @param project the project
+	 * @throws IOException
+	 */
+	public synchronized void watch(final MavenProject project)
+		throws IOException
+	{
+		final File directory = project.getDirectory().getAbsoluteFile();
+		if (!projects.add(directory)) return;
+		register(directory, directory, true);
+		final File source = project.getSourceDirectory().getAbsoluteFile();
+		registerRecursively(source, directory);
+		registerRecursively(new File(source.getParentFile(), "resources"),
+			directory);
+		final File src = new File(directory, "src");
+		if (!source.getPath().startsWith(src.getPath())) {
+			registerRecursively(src, directory);
+		}
+	}
+
+	/**
+	 * @return a time stamp to pass to {@link #markClean(File, String, long)}
+	 */
+	public synchronized long now() {
+		return sequence;
+	}
+
+	/**
+	 * Determines whether a project is known to be up-to-date.
+	 *
+	 * @param project the project directory
+	 * @param kind what is up-to-date, e.g. the classes or the jar
+	 * @return whether nothing changed since the project was marked clean
+	 */
+	public synchronized boolean isClean(final File project, final String kind) {
+		final File directory = project.getAbsoluteFile();
+		final Long since = cleanSince.get(directory + "\t" + kind);
+		if (since == null) return false;
+		final Long changed = lastChange.get(directory);
+		return changed == null || changed < since;
+	}
+
+	/**
+	 * Returns when a project was last found to be up-to-date.
+	 *
+	 * @param project the project directory
+	 * @param kind what is up-to-date, e.g. the classes or the jar
+	 * @return the time in milliseconds since the epoch when the check started,
+	 *         or -1 if the project is not clean
+	 */
+	public synchronized long getCleanTime(final File project,
+		final String kind)
+	{
+		final Long time = cleanTime.get(project.getAbsoluteFile() + "\t" + kind);
+		return time == null ? -1 : time;
+	}
+
+	/**
+	 * Records that a project was up-to-date.
+	 *
+	 * @param project the project directory
+	 * @param kind what is up-to-date, e.g. the classes or the jar
+	 * @param timestamp the value of {@link #now()} before the check started
+	 * @param time the wall-clock time before the check started
+	 */
+	public synchronized void markClean(final File project, final String kind,
+		final long timestamp, final long time)
+	{
+		final File directory = project.getAbsoluteFile();
+		if (!projects.contains(directory)) return;
+		cleanSince.put(directory + "\t" + kind, timestamp + 1);
+		cleanTime.put(directory + "\t" + kind, time);
+	}
+
+	/**
+	 * Reports whether a <tt>pom.xml</tt> changed, and resets the flag.
+	 *
+	 * @return whether a watched <tt>pom.xml</tt> changed since the last call
+	 */
+	public synchronized boolean pomChanged() {
+		final boolean result = pomChanged;
+		pomChanged = false;
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	private synchronized void handle(final WatchKey key) {
+		final Watched watched = keys.get(key);
+		for (final WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events were lost; anything may have changed
+				sequence++;
+				for (final File project : projects) {
+					lastChange.put(project, sequence);
+				}
+				pomChanged = true;
+				continue;
+			}
+			if (watched == null) continue;
+			final String name = ((Path) event.context()).toString();
+			if (watched.isProjectDirectory) {
+				if (name.equals("pom.xml")) pomChanged = true;
+				else if (!name.equals("src")) continue;
+			}
+			lastChange.put(watched.project, ++sequence);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				final File file = new File(watched.directory, name);
+				if (file.isDirectory() && !watched.isProjectDirectory) try {
+					registerRecursively(file, watched.project);
+				}
+				catch (final IOException e) {
+					// cannot watch it; treat the project as always dirty
+					projects.remove(watched.project);
+				}
+			}
+		}
+		if (!key.reset()) keys.remove(key);
+	}
+
+	private void registerRecursively(final File directory, final File project)
+		throws IOException
+	{
+		if (!directory.isDirectory()) return;
+		register(directory, project, false);
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		for (final File file : list) {
+			if (file.isDirectory()) registerRecursively(file, project);
+		}
+	}
+
+	private void register(final File directory, final File project,
+		final boolean isProjectDirectory) throws IOException
+	{
+		final WatchKey key = directory.toPath().register(watcher,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_DELETE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+		keys.put(key, new Watched(directory, project, isProjectDirectory));
+	}
+}
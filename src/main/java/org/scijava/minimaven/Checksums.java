@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes and verifies the <tt>.sha1</tt> checksums of artifacts.
+ */
+public class Checksums {
+
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+	// the size of the windows to map when hashing large files
+	private final static long MAP_SIZE = 64 << 20;
+
+	private Checksums() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Computes the SHA-1 of a file.
+	 *
+	 * @param file the file
+	 * @return the SHA-1 as 40 lower-case hex digits
+	 * @throws IOException
+	 */
+	public static String sha1(final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			return sha1(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Computes the SHA-1 of a file, using memory-mapped reads.
+	 * <p>
+	 * This avoids copying the contents into a Java buffer, which matters when
+	 * hashing many files in parallel. Note that on Windows, a mapped file cannot
+	 * be deleted or renamed until the mapping is garbage collected.
+	 * </p>
+	 *
+	 * @param file the file
+	 * @return the SHA-1 as 40 lower-case hex digits
+	 * @throws IOException
+	 */
+	public static String sha1Mapped(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final MessageDigest digest = newSHA1();
+			final long size = channel.size();
+			for (long offset = 0; offset < size; offset += MAP_SIZE) {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math
+					.min(MAP_SIZE, size - offset)));
+			}
+			return toHex(digest.digest());
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Computes the SHA-1 of a stream's contents.
+	 * <p>
+	 * The stream is not closed.
+	 * </p>
+	 *
+	 * @param in the stream
+	 * @return the SHA-1 as 40 lower-case hex digits
+	 * @throws IOException
+	 */
+	public static String sha1(final InputStream in) throws IOException {
+		final MessageDigest digest = newSHA1();
+		final byte[] buffer = new byte[65536];
+		for (;;) {
+			final int count = in.read(buffer);
+			if (count < 0) break;
+			digest.update(buffer, 0, count);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Reads a <tt>.sha1</tt> file.
+	 * <p>
+	 * Such files contain the checksum as 40 hex digits, optionally followed by
+	 * white space and a file name.
+	 * </p>
+	 *
+	 * @param file the <tt>.sha1</tt> file
+	 * @return the checksum as 40 lower-case hex digits, or null if the file does
+	 *         not contain a valid checksum
+	 * @throws IOException
+	 */
+	public static String readSHA1(final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[40];
+			int offset = 0;
+			while (offset < buffer.length) {
+				final int count = in.read(buffer, offset, buffer.length - offset);
+				if (count < 0) return null;
+				offset += count;
+			}
+			final String result = new String(buffer, "US-ASCII").toLowerCase();
+			return result.matches("[0-9a-f]{40}") ? result : null;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Verifies a file against its <tt>.sha1</tt> file.
+	 *
+	 * @param file the file to verify
+	 * @param sha1 the file containing the expected checksum
+	 * @return whether the checksum matches
+	 * @throws IOException
+	 */
+	public static boolean verify(final File file, final File sha1)
+		throws IOException
+	{
+		final String expected = readSHA1(sha1);
+		return expected != null && expected.equals(sha1(file));
+	}
+
+	public static MessageDigest newSHA1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-1
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(final byte[] bytes) {
+		final char[] result = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			result[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			result[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+}
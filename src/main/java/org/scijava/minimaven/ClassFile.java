@@ -0,0 +1,452 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal parser for <tt>.class</tt> files.
+ * <p>
+ * It extracts just what is needed to decide what to recompile: the name of
+ * the class, the source file it was compiled from, the classes it refers to,
+ * the values of its compile-time constants (which <tt>javac</tt> inlines
+ * into the referring classes, leaving no trace in their constant pools) and
+ * its application binary interface.
+ * </p>
+ */
+public class ClassFile {
+
+	private final static int MAGIC = 0xcafebabe;
+	private final static int ACC_PUBLIC = 0x0001, ACC_PROTECTED = 0x0004,
+			ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SYNTHETIC = 0x1000;
+	// the access flags that matter to other classes: visibility, static,
+	// final, abstract, varargs, interface, annotation and enum
+	private final static int CLASS_MASK = 0x6611, FIELD_MASK = 0x001d,
+			METHOD_MASK = 0x049d;
+
+	// class names inside descriptors and signatures
+	private final static Pattern DESCRIPTOR_CLASS = Pattern.compile(
+		"L([^;<>.\\[\\s]+)[;<]");
+
+	protected String name, superName, sourceFile;
+	protected int access;
+	protected String[] interfaces;
+	private final Set<String> references = new TreeSet<String>();
+	private final Map<String, String> constants = new TreeMap<String, String>();
+	// the description of the class, and of its public and protected members
+	private final List<String> abi = new ArrayList<String>();
+
+	// the constant pool
+	private byte[] tags;
+	private Object[] pool;
+
+	public ClassFile(final InputStream in) throws IOException {
+		final DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) throw new IOException("Not a class file");
+		data.readUnsignedShort(); // minor version
+		data.readUnsignedShort(); // major version
+		readConstantPool(data);
+
+		access = data.readUnsignedShort();
+		name = getClassName(data.readUnsignedShort());
+		superName = getClassName(data.readUnsignedShort());
+		interfaces = new String[data.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaces[i] = getClassName(data.readUnsignedShort());
+		}
+
+		final int fieldCount = data.readUnsignedShort();
+		for (int i = 0; i < fieldCount; i++) {
+			final int fieldAccess = data.readUnsignedShort();
+			final String fieldName = getUTF8(data.readUnsignedShort());
+			final String descriptor = getUTF8(data.readUnsignedShort());
+			final StringBuilder member = isABI(fieldAccess) ? new StringBuilder(
+				"field " + (fieldAccess & FIELD_MASK) + " " + fieldName + " " +
+					descriptor) : null;
+			final int attributeCount = data.readUnsignedShort();
+			for (int j = 0; j < attributeCount; j++) {
+				final String attribute = getUTF8(data.readUnsignedShort());
+				final int length = data.readInt();
+				if ("ConstantValue".equals(attribute)) {
+					final int index = data.readUnsignedShort();
+					final String value = tags[index] + ":" + pool[index];
+					if ((fieldAccess & (ACC_STATIC | ACC_FINAL)) == (ACC_STATIC |
+						ACC_FINAL))
+					{
+						constants.put(fieldName, value);
+					}
+					if (member != null) member.append(" = ").append(value);
+				}
+				else readABIAttribute(data, attribute, length, member);
+			}
+			if (member != null) abi.add(member.toString());
+		}
+
+		final int methodCount = data.readUnsignedShort();
+		for (int i = 0; i < methodCount; i++) {
+			final int methodAccess = data.readUnsignedShort();
+			final String methodName = getUTF8(data.readUnsignedShort());
+			final String descriptor = getUTF8(data.readUnsignedShort());
+			final StringBuilder member = isABI(methodAccess) ? new StringBuilder(
+				"method " + (methodAccess & METHOD_MASK) + " " + methodName +
+					descriptor) : null;
+			final int attributeCount = data.readUnsignedShort();
+			for (int j = 0; j < attributeCount; j++) {
+				final String attribute = getUTF8(data.readUnsignedShort());
+				readABIAttribute(data, attribute, data.readInt(), member);
+			}
+			if (member != null) abi.add(member.toString());
+		}
+
+		final StringBuilder header = new StringBuilder("class " +
+			(access & CLASS_MASK) + " " + name + " extends " + superName);
+		final String[] sorted = interfaces.clone();
+		Arrays.sort(sorted);
+		for (final String iface : sorted) {
+			header.append(" implements ").append(iface);
+		}
+		final int attributeCount = data.readUnsignedShort();
+		for (int i = 0; i < attributeCount; i++) {
+			final String attribute = getUTF8(data.readUnsignedShort());
+			final int length = data.readInt();
+			if ("SourceFile".equals(attribute)) {
+				sourceFile = getUTF8(data.readUnsignedShort());
+			}
+			else readABIAttribute(data, attribute, length, header);
+		}
+		Collections.sort(abi);
+		abi.add(0, header.toString());
+
+		references.remove(name);
+	}
+
+	public static ClassFile read(final File file) throws IOException {
+		final InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return new ClassFile(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the internal name of the class, e.g. <tt>java/lang/Object</tt>
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getSuperName() {
+		return superName;
+	}
+
+	/**
+	 * @return the name of the source file (without directory), or null
+	 */
+	public String getSourceFile() {
+		return sourceFile;
+	}
+
+	/**
+	 * Returns the path of the source file relative to the source directory,
+	 * assuming that the directory layout follows the package structure.
+	 *
+	 * @return the relative path, e.g. <tt>org/scijava/Example.java</tt>, or null
+	 */
+	public String getSourcePath() {
+		if (sourceFile == null) return null;
+		final int slash = name.lastIndexOf('/');
+		return slash < 0 ? sourceFile : name.substring(0, slash + 1) + sourceFile;
+	}
+
+	/**
+	 * Returns the internal names of all classes this class refers to.
+	 * <p>
+	 * This includes the classes mentioned only in descriptors and generic
+	 * signatures; it may include a few false positives, but no false negatives
+	 * except for inlined constants.
+	 * </p>
+	 *
+	 * @return the referenced classes
+	 */
+	public Set<String> getReferences() {
+		return Collections.unmodifiableSet(references);
+	}
+
+	/**
+	 * Returns the application binary interface of this class.
+	 * <p>
+	 * This is a canonical description of everything other modules can see of
+	 * the class: the signatures, constant values and annotations of the class
+	 * and of its public and protected members. Changes to method bodies or to
+	 * private members do not change it, so dependent modules need not be
+	 * recompiled for them.
+	 * </p>
+	 *
+	 * @return the description, or null if the class is not public
+	 */
+	public String getABI() {
+		if ((access & ACC_PUBLIC) == 0 || (access & ACC_SYNTHETIC) != 0) {
+			return null;
+		}
+		final StringBuilder builder = new StringBuilder();
+		for (final String line : abi) {
+			builder.append(line).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the values of the compile-time constants, by field name
+	 */
+	public Map<String, String> getConstants() {
+		return Collections.unmodifiableMap(constants);
+	}
+
+	private void readConstantPool(final DataInputStream data)
+		throws IOException
+	{
+		final int count = data.readUnsignedShort();
+		tags = new byte[count];
+		pool = new Object[count];
+		final int[] classIndices = new int[count];
+		int classCount = 0;
+		for (int i = 1; i < count; i++) {
+			final byte tag = data.readByte();
+			tags[i] = tag;
+			switch (tag) {
+				case 1: // UTF-8
+					pool[i] = data.readUTF();
+					break;
+				case 3: // Integer
+					pool[i] = data.readInt();
+					break;
+				case 4: // Float
+					pool[i] = data.readFloat();
+					break;
+				case 5: // Long
+					pool[i] = data.readLong();
+					i++;
+					break;
+				case 6: // Double
+					pool[i] = data.readDouble();
+					i++;
+					break;
+				case 7: // Class
+					pool[i] = data.readUnsignedShort();
+					classIndices[classCount++] = i;
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					pool[i] = data.readUnsignedShort();
+					break;
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					data.readInt();
+					break;
+				case 15: // MethodHandle
+					data.readByte();
+					data.readUnsignedShort();
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+
+		// resolve the strings
+		for (int i = 1; i < count; i++) {
+			if (tags[i] == 8) pool[i] = pool[(Integer) pool[i]];
+		}
+		for (int i = 0; i < classCount; i++) {
+			final int index = classIndices[i];
+			pool[index] = pool[(Integer) pool[index]];
+			final String className = (String) pool[index];
+			if (className.startsWith("[")) addDescriptorReferences(className);
+			else references.add(className);
+		}
+		for (int i = 1; i < count; i++) {
+			if (tags[i] == 1) addDescriptorReferences((String) pool[i]);
+		}
+	}
+
+	private static boolean isABI(final int memberAccess) {
+		return (memberAccess & (ACC_PUBLIC | ACC_PROTECTED)) != 0 &&
+			(memberAccess & ACC_SYNTHETIC) == 0;
+	}
+
+	/**
+	 * Appends the attributes that are part of the ABI to the description of a
+	 * class or member, skipping all others.
+	 */
+	private void readABIAttribute(final DataInputStream data,
+		final String attribute, final int length, final StringBuilder builder)
+		throws IOException
+	{
+		if (builder == null) {
+			skip(data, length);
+		}
+		else if ("Signature".equals(attribute)) {
+			builder.append(" signature ").append(getUTF8(data.readUnsignedShort()));
+		}
+		else if ("Exceptions".equals(attribute)) {
+			final String[] exceptions = new String[data.readUnsignedShort()];
+			for (int i = 0; i < exceptions.length; i++) {
+				exceptions[i] = getClassName(data.readUnsignedShort());
+			}
+			Arrays.sort(exceptions);
+			builder.append(" throws ").append(Arrays.toString(exceptions));
+		}
+		else if ("RuntimeVisibleAnnotations".equals(attribute) ||
+			"RuntimeInvisibleAnnotations".equals(attribute))
+		{
+			builder.append(' ').append(attribute);
+			readAnnotations(data, builder);
+		}
+		else if ("RuntimeVisibleParameterAnnotations".equals(attribute) ||
+			"RuntimeInvisibleParameterAnnotations".equals(attribute))
+		{
+			builder.append(' ').append(attribute);
+			final int count = data.readUnsignedByte();
+			for (int i = 0; i < count; i++) {
+				builder.append(" #").append(i);
+				readAnnotations(data, builder);
+			}
+		}
+		else if ("AnnotationDefault".equals(attribute)) {
+			builder.append(" default ");
+			readElementValue(data, builder);
+		}
+		else {
+			skip(data, length);
+		}
+	}
+
+	private void readAnnotations(final DataInputStream data,
+		final StringBuilder builder) throws IOException
+	{
+		final int count = data.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			builder.append(' ');
+			readAnnotation(data, builder);
+		}
+	}
+
+	private void readAnnotation(final DataInputStream data,
+		final StringBuilder builder) throws IOException
+	{
+		builder.append('@').append(getUTF8(data.readUnsignedShort())).append('(');
+		final int count = data.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) builder.append(", ");
+			builder.append(getUTF8(data.readUnsignedShort())).append('=');
+			readElementValue(data, builder);
+		}
+		builder.append(')');
+	}
+
+	private void readElementValue(final DataInputStream data,
+		final StringBuilder builder) throws IOException
+	{
+		final char tag = (char) data.readUnsignedByte();
+		switch (tag) {
+			case 'e':
+				builder.append(getUTF8(data.readUnsignedShort())).append('.').append(
+					getUTF8(data.readUnsignedShort()));
+				break;
+			case 'c':
+				builder.append(getUTF8(data.readUnsignedShort())).append(".class");
+				break;
+			case '@':
+				readAnnotation(data, builder);
+				break;
+			case '[':
+				builder.append('{');
+				final int count = data.readUnsignedShort();
+				for (int i = 0; i < count; i++) {
+					if (i > 0) builder.append(", ");
+					readElementValue(data, builder);
+				}
+				builder.append('}');
+				break;
+			default:
+				// a constant
+				builder.append(tag).append(':').append(pool[data
+					.readUnsignedShort()]);
+		}
+	}
+
+	private void addDescriptorReferences(final String descriptor) {
+		if (descriptor.indexOf(';') < 0) return;
+		final Matcher matcher = DESCRIPTOR_CLASS.matcher(descriptor);
+		while (matcher.find()) {
+			references.add(matcher.group(1));
+		}
+	}
+
+	private String getClassName(final int index) {
+		return index == 0 ? null : (String) pool[index];
+	}
+
+	private String getUTF8(final int index) {
+		return (String) pool[index];
+	}
+
+	private static void skip(final DataInputStream data, final int count)
+		throws IOException
+	{
+		int remaining = count;
+		while (remaining > 0) {
+			final int skipped = data.skipBytes(remaining);
+			if (skipped <= 0) throw new IOException("Truncated class file");
+			remaining -= skipped;
+		}
+	}
+}
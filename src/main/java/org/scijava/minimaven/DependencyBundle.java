@@ -0,0 +1,388 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Packs the resolved dependencies of a project into a single archive, and
+ * unpacks such archives into the local repository.
+ * <p>
+ * The archive contains the POMs (including parent POMs), jars,
+ * <tt>.sha1</tt> files and metadata in the layout of the local repository.
+ * This allows resolving the dependencies once and shipping the result to
+ * machines without network access, or to fresh CI nodes, where importing it
+ * replaces hundreds of downloads with a single sequential read.
+ * </p>
+ */
+public class DependencyBundle {
+
+	protected final BuildEnvironment env;
+
+	public DependencyBundle(final BuildEnvironment env) {
+		this.env = env;
+	}
+
+	/**
+	 * Writes the dependencies of the given project (and of its modules) into an
+	 * archive.
+	 *
+	 * @param project the project whose dependencies to pack
+	 * @param bundle the archive to write
+	 * @return the number of files written
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	public int export(final MavenProject project, final File bundle)
+		throws IOException, ParserConfigurationException, SAXException
+	{
+		// sorted by path, so that the archive lists each directory contiguously
+		final Map<String, File> files = new TreeMap<String, File>();
+		final Stack<MavenProject> stack = new Stack<MavenProject>();
+		stack.push(project);
+		while (!stack.empty()) {
+			final MavenProject pom = stack.pop();
+			addParents(files, pom);
+			if ("pom".equals(pom.getPackaging())) {
+				for (final MavenProject child : pom.getChildren()) {
+					if (child != null && child.getBuildFromSource()) stack.push(child);
+				}
+				continue;
+			}
+			for (final MavenProject dependency : pom.materialize(pom.getDependencies(
+				true, env.downloadAutomatically)))
+			{
+				addArtifact(files, dependency);
+				addParents(files, dependency);
+			}
+		}
+
+		final File tmp = new File(bundle.getPath() + ".tmp");
+		final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+			new FileOutputStream(tmp)));
+		try {
+			// the jars are compressed already
+			out.setLevel(Deflater.BEST_SPEED);
+			for (final Map.Entry<String, File> entry : files.entrySet()) {
+				final ZipEntry zipEntry = new ZipEntry(entry.getKey());
+				zipEntry.setTime(entry.getValue().lastModified());
+				out.putNextEntry(zipEntry);
+				BuildEnvironment.copy(new FileInputStream(entry.getValue()), out,
+					false);
+				out.closeEntry();
+			}
+		}
+		catch (final IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+		out.close();
+		env.rename(tmp, bundle);
+		return files.size();
+	}
+
+	private void addParents(final Map<String, File> files, MavenProject pom) {
+		for (pom = pom.getParent(); pom != null; pom = pom.getParent()) {
+			if (!addArtifact(files, pom)) break;
+		}
+	}
+
+	private boolean addArtifact(final Map<String, File> files,
+		final MavenProject pom)
+	{
+		final File directory = pom.getDirectory();
+		if (directory == null || !env.isInRepository(directory)) return false;
+		final File jar = pom.getTarget();
+		addWithChecksum(files, jar);
+		File pomFile = new File(directory, pom.getCoordinate().getPOMName());
+		if (!pomFile.exists() && jar != null && jar.getName().endsWith(".jar")) {
+			// snapshots use time-stamped file names
+			String baseName = jar.getName();
+			baseName = baseName.substring(0, baseName.length() - 4);
+			final String classifier = pom.getCoordinate().classifier;
+			if (classifier != null && baseName.endsWith("-" + classifier)) {
+				baseName = baseName.substring(0, baseName.length() - 1 - classifier
+					.length());
+			}
+			pomFile = new File(directory, baseName + ".pom");
+		}
+		addWithChecksum(files, pomFile);
+		addWithChecksum(files, new File(directory, "maven-metadata-snapshot.xml"));
+		addWithChecksum(files, new File(directory.getParentFile(),
+			"maven-metadata-version.xml"));
+		return true;
+	}
+
+	private void addWithChecksum(final Map<String, File> files,
+		final File file)
+	{
+		if (file == null || !file.isFile()) return;
+		final String path = getRepositoryPath(file);
+		if (path == null) return;
+		files.put(path, file);
+		final File sha1 = new File(file.getPath() + ".sha1");
+		if (sha1.isFile()) files.put(path + ".sha1", sha1);
+	}
+
+	// the path relative to the (local or shared) repository containing the file
+	private String getRepositoryPath(final File file) {
+		final List<File> roots = new ArrayList<File>();
+		roots.add(env.localRepository);
+		roots.addAll(env.sharedRepositories);
+		final String path = file.getAbsolutePath();
+		for (final File root : roots) {
+			final String prefix = root.getPath() + File.separator;
+			if (path.startsWith(prefix)) {
+				return path.substring(prefix.length()).replace(File.separatorChar,
+					'/');
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Unpacks an archive into the local repository.
+	 * <p>
+	 * The archive is read sequentially; the checksums of the unpacked files are
+	 * verified in parallel before the files are moved into place. Artifacts that
+	 * exist already are left alone, but metadata is updated.
+	 * </p>
+	 *
+	 * @param bundle the archive
+	 * @return the number of files that failed verification
+	 * @throws IOException
+	 */
+	public int importBundle(final File bundle) throws IOException {
+		final List<File> unpacked = new ArrayList<File>();
+		final byte[] buffer = new byte[65536];
+		int skipped = 0;
+		final ZipInputStream in = new ZipInputStream(new BufferedInputStream(
+			new FileInputStream(bundle)));
+		try {
+			for (;;) {
+				final ZipEntry entry = in.getNextEntry();
+				if (entry == null) break;
+				if (entry.isDirectory()) continue;
+				final String name = entry.getName();
+				if (!isValid(name)) {
+					throw new IOException("Invalid entry in " + bundle + ": " + name);
+				}
+				final File target = new File(env.localRepository, name);
+				if (target.exists() && !isMetadata(target)) {
+					skipped++;
+					continue;
+				}
+				final File directory = target.getParentFile();
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Could not make directory " + directory);
+				}
+				final File tmp = new File(target.getPath() + ".new");
+				final OutputStream out = new FileOutputStream(tmp);
+				unpacked.add(target);
+				try {
+					for (;;) {
+						final int count = in.read(buffer);
+						if (count < 0) break;
+						out.write(buffer, 0, count);
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		final AtomicInteger unverified = new AtomicInteger();
+		final List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		for (final File target : unpacked) {
+			if (target.getName().endsWith(".sha1")) continue;
+			tasks.add(new Callable<String>() {
+
+				@Override
+				public String call() throws Exception {
+					return verifyAndMove(target, unverified);
+				}
+			});
+		}
+		int failed = 0;
+		try {
+			for (final Future<String> future : env.invokeAll(tasks)) {
+				try {
+					final String error = future.get();
+					if (error != null) {
+						env.err.println(error);
+						failed++;
+					}
+				}
+				catch (final ExecutionException e) {
+					env.err.println("Could not import: " + e.getCause());
+					failed++;
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		// checksums of artifacts that were present already
+		for (final File target : unpacked) {
+			final File tmp = new File(target.getPath() + ".new");
+			if (!tmp.exists()) continue;
+			final ArtifactLock lock = env.lockArtifact(getArtifactDirectory(target),
+				null);
+			try {
+				if (target.exists()) tmp.delete();
+				else env.rename(tmp, target);
+			}
+			finally {
+				lock.close();
+			}
+		}
+		if (env.verbose || failed > 0 || unverified.get() > 0) {
+			env.err.println("Imported " + (unpacked.size() - failed) + " files (" +
+				skipped + " present already, " + failed + " failed verification, " +
+				unverified.get() + " without checksum)");
+		}
+		return failed;
+	}
+
+	/**
+	 * Verifies an unpacked file and moves it (and its checksum) into place.
+	 *
+	 * @return an error message, or null
+	 */
+	private String verifyAndMove(final File target,
+		final AtomicInteger unverified) throws IOException
+	{
+		final File tmp = new File(target.getPath() + ".new");
+		File sha1 = new File(target.getPath() + ".sha1.new");
+		final boolean newChecksum = sha1.exists();
+		if (!newChecksum) sha1 = new File(target.getPath() + ".sha1");
+		if (sha1.exists() && !Checksums.verify(tmp, sha1)) {
+			tmp.delete();
+			if (newChecksum) sha1.delete();
+			return "SHA1 mismatch: " + target;
+		}
+		if (!sha1.exists()) {
+			unverified.incrementAndGet();
+			env.err.println("Warning: no checksum for " + target);
+		}
+		// do not race with a concurrent download of the same artifact
+		final ArtifactLock lock = env.lockArtifact(getArtifactDirectory(target),
+			null);
+		try {
+			if (target.exists() && !isMetadata(target)) {
+				tmp.delete();
+				if (newChecksum) sha1.delete();
+				return null;
+			}
+			env.rename(tmp, target);
+			if (newChecksum) {
+				env.rename(sha1, new File(target.getPath() + ".sha1"));
+			}
+		}
+		finally {
+			lock.close();
+		}
+		return null;
+	}
+
+	// the directory locked by BuildEnvironment#download for this file
+	private static File getArtifactDirectory(final File file) {
+		final String name = file.getName();
+		// maven-metadata-version.xml lives in the artifact directory itself
+		if (name.startsWith("maven-metadata-version.xml")) {
+			return file.getParentFile();
+		}
+		return file.getParentFile().getParentFile();
+	}
+
+	private static boolean isMetadata(final File file) {
+		return file.getName().startsWith("maven-metadata-");
+	}
+
+	private static boolean isValid(final String name) {
+		if (name.startsWith("/") || name.indexOf('\\') >= 0 || name.indexOf(
+			':') >= 0)
+		{
+			return false;
+		}
+		for (final String segment : name.split("/", -1)) {
+			if (segment.equals("") || segment.startsWith(".") || segment.endsWith(
+				".new"))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the archive to use, as configured via the <tt>minimaven.bundle</tt>
+	 * system property (default: <tt>dependencies.zip</tt>).
+	 *
+	 * @param directory the directory relative paths are resolved against
+	 * @return the archive
+	 */
+	public static File getBundleFile(final File directory) {
+		final String path = System.getProperty("minimaven.bundle");
+		final File file = new File(path == null || path.equals("")
+			? "dependencies.zip" : path);
+		return file.isAbsolute() ? file : new File(directory, file.getPath());
+	}
+}
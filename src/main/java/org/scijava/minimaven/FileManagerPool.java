@@ -0,0 +1,194 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Keeps <tt>javac</tt>'s file managers around between compilations.
+ * <p>
+ * A file manager caches the opened jars of the class path and their
+ * directory listings, so reusing it saves every compilation from reopening
+ * and rescanning the same jars. All modules of a build benefit from it; the
+ * idle file managers are {@link #invalidate() closed} at the end of each
+ * command, lest they keep the jars open (which would lock them on Windows).
+ * </p>
+ * <p>
+ * Each file manager is used by one compilation at a time. Since options such
+ * as <tt>-encoding</tt> stick to a file manager, the pool is keyed by the
+ * compiler options, minus class path and output directory (which are set
+ * anew for every compilation). Every file manager remembers the modification
+ * times of the class path elements it has seen, directories included; it is
+ * only reused if none of the elements on the new class path changed.
+ * </p>
+ */
+public class FileManagerPool {
+
+	// file managers that have seen more class path elements are not reused
+	private final static int MAX_CLASS_PATH_ELEMENTS = 1024;
+
+	private final static Map<String, Deque<StandardJavaFileManager>> idle =
+		new HashMap<String, Deque<StandardJavaFileManager>>();
+	private final static Map<StandardJavaFileManager, Integer> generations =
+		new IdentityHashMap<StandardJavaFileManager, Integer>();
+	// the modification times of the class path elements, by file manager
+	private final static Map<StandardJavaFileManager, Map<File, Long>> seen =
+		new IdentityHashMap<StandardJavaFileManager, Map<File, Long>>();
+	private static int generation;
+
+	private FileManagerPool() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Obtains a file manager for exclusive use.
+	 *
+	 * @param compiler the compiler
+	 * @param key the compiler options that are not set anew for every
+	 *          compilation
+	 * @param classPath the class path of the compilation
+	 * @return the file manager; it must be handed back via
+	 *         {@link #release(String, StandardJavaFileManager)}
+	 */
+	public static StandardJavaFileManager acquire(
+		final javax.tools.JavaCompiler compiler, final String key,
+		final List<File> classPath)
+	{
+		final Map<File, Long> timestamps = new HashMap<File, Long>();
+		for (final File file : classPath) {
+			if (file.exists()) timestamps.put(file, getLastModified(file));
+		}
+		synchronized (FileManagerPool.class) {
+			final Deque<StandardJavaFileManager> deque = idle.get(key);
+			StandardJavaFileManager result = null;
+			while (result == null && deque != null && !deque.isEmpty()) {
+				result = deque.pop();
+				if (!isCurrent(seen.get(result), timestamps)) {
+					seen.remove(result);
+					close(result);
+					result = null;
+				}
+			}
+			if (result == null) {
+				result = compiler.getStandardFileManager(null, null, null);
+				seen.put(result, new HashMap<File, Long>());
+			}
+			seen.get(result).putAll(timestamps);
+			generations.put(result, generation);
+			return result;
+		}
+	}
+
+	/**
+	 * Hands back a file manager.
+	 *
+	 * @param key the key passed to {@link #acquire}
+	 * @param fileManager the file manager
+	 */
+	public static synchronized void release(final String key,
+		final StandardJavaFileManager fileManager)
+	{
+		final Integer acquired = generations.remove(fileManager);
+		final Map<File, Long> timestamps = seen.get(fileManager);
+		if (acquired == null || acquired != generation || timestamps == null ||
+			timestamps.size() > MAX_CLASS_PATH_ELEMENTS)
+		{
+			seen.remove(fileManager);
+			close(fileManager);
+			return;
+		}
+		Deque<StandardJavaFileManager> deque = idle.get(key);
+		if (deque == null) {
+			deque = new ArrayDeque<StandardJavaFileManager>();
+			idle.put(key, deque);
+		}
+		deque.push(fileManager);
+	}
+
+	/**
+	 * Discards all file managers.
+	 * <p>
+	 * File managers in use are closed when they are released.
+	 * </p>
+	 */
+	public static synchronized void invalidate() {
+		generation++;
+		final List<StandardJavaFileManager> list =
+			new ArrayList<StandardJavaFileManager>();
+		for (final Deque<StandardJavaFileManager> deque : idle.values()) {
+			list.addAll(deque);
+		}
+		idle.clear();
+		for (final StandardJavaFileManager fileManager : list) {
+			seen.remove(fileManager);
+			close(fileManager);
+		}
+	}
+
+	private static boolean isCurrent(final Map<File, Long> seen,
+		final Map<File, Long> timestamps)
+	{
+		if (seen == null) return false;
+		for (final Map.Entry<File, Long> entry : timestamps.entrySet()) {
+			final Long previous = seen.get(entry.getKey());
+			if (previous != null && !previous.equals(entry.getValue())) return false;
+		}
+		return true;
+	}
+
+	// the newest modification time of a jar, or of a directory tree
+	private static long getLastModified(final File file) {
+		long result = file.lastModified();
+		final File[] list = file.listFiles();
+		if (list == null) return result;
+		for (final File child : list) {
+			result = Math.max(result, getLastModified(child));
+		}
+		return result;
+	}
+
+	private static void close(final StandardJavaFileManager fileManager) {
+		try {
+			fileManager.close();
+		}
+		catch (final IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Detects changes of files by their contents rather than their time stamps.
+ * <p>
+ * <tt>git checkout</tt>, <tt>touch</tt>, <tt>rsync</tt> and unpacking
+ * container layers all change modification times without changing the
+ * contents, which makes time stamp based up-to-date checks rebuild in vain;
+ * conversely, skewed clocks on network file systems can make modified files
+ * appear older than their outputs.
+ * </p>
+ * <p>
+ * This database remembers size, modification time and content hash of each
+ * file it was asked about, and derives a <i>content time</i>: the time the
+ * contents last changed, as far as can be told. It stays the same when only
+ * the modification time changes, and it is set to the current time when the
+ * contents changed but the modification time did not advance. The hash is
+ * only recomputed when size or modification time differ from the recorded
+ * ones.
+ * </p>
+ */
+public class FingerprintDatabase {
+
+	private final static String HEADER = "# MiniMaven fingerprints v1";
+
+	protected final File file;
+	private Map<String, Fingerprint> fingerprints;
+	private boolean dirty;
+
+	private static class Fingerprint {
+
+		private final long size, lastModified, contentTime;
+		private final String hash;
+
+		private Fingerprint(final long size, final long lastModified,
+			final long contentTime, final String hash)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentTime = contentTime;
+			this.hash = hash;
+		}
+	}
+
+	public FingerprintDatabase(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the time the contents of a file last changed.
+	 * <p>
+	 * Use this instead of {@link File#lastModified()} to compare an input with
+	 * its outputs.
+	 * </p>
+	 *
+	 * @param file the file
+	 * @return the content time, or 0 if the file does not exist
+	 */
+	public synchronized long lastModified(final File file) {
+		final long lastModified = file.lastModified();
+		if (lastModified == 0) return 0;
+		final long size = file.length();
+		if (fingerprints == null) fingerprints = read(this.file);
+		final String path = file.getAbsolutePath();
+		final Fingerprint previous = fingerprints.get(path);
+		if (previous != null && previous.size == size &&
+			previous.lastModified == lastModified)
+		{
+			return previous.contentTime;
+		}
+		final String hash;
+		try {
+			hash = Checksums.sha1(file);
+		}
+		catch (final IOException e) {
+			return lastModified;
+		}
+		final long contentTime;
+		if (previous == null) contentTime = lastModified;
+		else if (previous.hash.equals(hash)) contentTime = previous.contentTime;
+		else if (lastModified > previous.contentTime) contentTime = lastModified;
+		else {
+			// modified, but the time stamp did not advance (e.g. clock skew)
+			contentTime = Math.max(previous.contentTime + 1, System
+				.currentTimeMillis());
+		}
+		fingerprints.put(path, new Fingerprint(size, lastModified, contentTime,
+			hash));
+		dirty = true;
+		return contentTime;
+	}
+
+	/**
+	 * Writes the database, if anything changed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) return;
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not make directory " + directory);
+		}
+		final File tmp = new File(directory, file.getName() + ".tmp");
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8"));
+		out.println(HEADER);
+		for (final Map.Entry<String, Fingerprint> entry : fingerprints
+			.entrySet())
+		{
+			final Fingerprint fingerprint = entry.getValue();
+			out.println(fingerprint.size + "\t" + fingerprint.lastModified + "\t" +
+				fingerprint.contentTime + "\t" + fingerprint.hash + "\t" + entry
+					.getKey());
+		}
+		out.close();
+		if (out.checkError()) {
+			tmp.delete();
+			throw new IOException("Could not write " + tmp);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		}
+		dirty = false;
+	}
+
+	private static Map<String, Fingerprint> read(final File file) {
+		final Map<String, Fingerprint> result = new TreeMap<String, Fingerprint>();
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine())) return result;
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final String[] list = line.split("\t", 5);
+					if (list.length != 5) continue;
+					try {
+						result.put(list[4], new Fingerprint(Long.parseLong(list[0]), Long
+							.parseLong(list[1]), Long.parseLong(list[2]), list[3]));
+					}
+					catch (final NumberFormatException e) {
+						// ignore corrupt line
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final FileNotFoundException e) {
+			// no database yet
+		}
+		catch (final IOException e) {
+			// treat an unreadable database as empty; it will be rewritten
+		}
+		return result;
+	}
+}
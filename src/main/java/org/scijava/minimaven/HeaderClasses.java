@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes header classes: class files stripped down to their signatures.
+ * <p>
+ * Much like <tt>ijar</tt>, this removes the method bodies, the private
+ * members and the static initializers from class files. What remains is
+ * enough for <tt>javac</tt> to compile against, and it changes only when the
+ * interface of a module changes. Dependent modules can therefore be compiled
+ * against the header classes of the previous build while a module is still
+ * being rebuilt.
+ * </p>
+ */
+public class HeaderClasses {
+
+	private final static int MAGIC = 0xcafebabe;
+	private final static int ACC_PRIVATE = 0x0002;
+
+	private HeaderClasses() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Writes the header classes for all class files in a directory.
+	 * <p>
+	 * The output directory is replaced.
+	 * </p>
+	 *
+	 * @param classes the directory containing the class files
+	 * @param headers the output directory
+	 * @return the number of header classes written
+	 * @throws IOException
+	 */
+	public static int write(final File classes, final File headers)
+		throws IOException
+	{
+		if (headers.isDirectory()) BuildEnvironment.rmRF(headers);
+		return write(classes, headers, 0);
+	}
+
+	private static int write(final File directory, final File headers,
+		final int count) throws IOException
+	{
+		int result = count;
+		final File[] list = directory.listFiles();
+		if (list == null) return result;
+		for (final File file : list) {
+			final String name = file.getName();
+			if (file.isDirectory()) {
+				result = write(file, new File(headers, name), result);
+			}
+			else if (name.endsWith(".class")) {
+				if (!headers.isDirectory() && !headers.mkdirs()) {
+					throw new IOException("Could not make directory " + headers);
+				}
+				final InputStream in = new BufferedInputStream(new FileInputStream(
+					file));
+				final OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					new File(headers, name)));
+				try {
+					strip(in, out);
+				}
+				finally {
+					in.close();
+					out.close();
+				}
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Strips a class file down to its signatures.
+	 *
+	 * @param in the class file
+	 * @param out the stream to write the header class to
+	 * @throws IOException
+	 */
+	public static void strip(final InputStream in, final OutputStream out)
+		throws IOException
+	{
+		final DataInputStream data = new DataInputStream(in);
+		final DataOutputStream result = new DataOutputStream(out);
+		if (data.readInt() != MAGIC) throw new IOException("Not a class file");
+		result.writeInt(MAGIC);
+		result.writeShort(data.readUnsignedShort()); // minor version
+		result.writeShort(data.readUnsignedShort()); // major version
+
+		// the constant pool is copied verbatim; unused entries do not hurt
+		final int count = data.readUnsignedShort();
+		result.writeShort(count);
+		final String[] utf8 = new String[count];
+		for (int i = 1; i < count; i++) {
+			final int tag = data.readUnsignedByte();
+			result.writeByte(tag);
+			switch (tag) {
+				case 1: // UTF-8
+					utf8[i] = data.readUTF();
+					result.writeUTF(utf8[i]);
+					break;
+				case 5: // Long
+				case 6: // Double
+					result.writeLong(data.readLong());
+					i++;
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					result.writeInt(data.readInt());
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					result.writeShort(data.readUnsignedShort());
+					break;
+				case 15: // MethodHandle
+					result.writeByte(data.readUnsignedByte());
+					result.writeShort(data.readUnsignedShort());
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+
+		result.writeShort(data.readUnsignedShort()); // access
+		result.writeShort(data.readUnsignedShort()); // this class
+		result.writeShort(data.readUnsignedShort()); // super class
+		final int interfaceCount = data.readUnsignedShort();
+		result.writeShort(interfaceCount);
+		for (int i = 0; i < interfaceCount; i++) {
+			result.writeShort(data.readUnsignedShort());
+		}
+
+		copyMembers(data, result, utf8); // fields
+		copyMembers(data, result, utf8); // methods
+		copyAttributes(data, result, utf8, false);
+		result.flush();
+	}
+
+	private static void copyMembers(final DataInputStream data,
+		final DataOutputStream result, final String[] utf8) throws IOException
+	{
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream members = new DataOutputStream(buffer);
+		int kept = 0;
+		final int count = data.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			final int access = data.readUnsignedShort();
+			final int name = data.readUnsignedShort();
+			final int descriptor = data.readUnsignedShort();
+			final boolean keep = (access & ACC_PRIVATE) == 0 && !"<clinit>".equals(
+				utf8[name]);
+			if (keep) {
+				members.writeShort(access);
+				members.writeShort(name);
+				members.writeShort(descriptor);
+				kept++;
+			}
+			copyAttributes(data, keep ? members : null, utf8, true);
+		}
+		members.flush();
+		result.writeShort(kept);
+		buffer.writeTo(result);
+	}
+
+	/**
+	 * Copies attributes, dropping method bodies.
+	 *
+	 * @param result where to copy to, or null to skip the attributes
+	 */
+	private static void copyAttributes(final DataInputStream data,
+		final DataOutputStream result, final String[] utf8,
+		final boolean dropCode) throws IOException
+	{
+		final int count = data.readUnsignedShort();
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream attributes = new DataOutputStream(buffer);
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			final int name = data.readUnsignedShort();
+			final int length = data.readInt();
+			final byte[] contents = new byte[length];
+			data.readFully(contents);
+			if (result == null || (dropCode && "Code".equals(utf8[name]))) continue;
+			attributes.writeShort(name);
+			attributes.writeInt(length);
+			attributes.write(contents);
+			kept++;
+		}
+		if (result == null) return;
+		attributes.flush();
+		result.writeShort(kept);
+		buffer.writeTo(result);
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Indexes the <tt>.jar</tt> files of an ImageJ.app/ directory.
+ * <p>
+ * An ImageJ.app/ directory stores its libraries in <tt>jars/</tt> (and
+ * subdirectories thereof) and its plugins in <tt>plugins/</tt>, under file
+ * names of the form <tt>&lt;artifactId&gt;-&lt;version&gt;.jar</tt>. This
+ * class maps artifactIds and versions to those files, so that artifacts that
+ * are available there already do not need to be downloaded.
+ * </p>
+ * <p>
+ * The coordinates are taken from the <tt>pom.properties</tt> files embedded by
+ * Maven, falling back to parsing the file names. As opening every
+ * <tt>.jar</tt> file is expensive, the index is persisted, and only rebuilt
+ * when one of the indexed directories was modified.
+ * </p>
+ */
+public class ImageJAppIndex {
+
+	private final static String HEADER = "# MiniMaven ImageJ.app index v1";
+	private final static String[] DIRECTORIES = { "jars", "plugins" };
+
+	// same as FileUtils.getAllVersions(): <base>-<version>-<classifier>.jar
+	private final static Pattern VERSIONED_FILENAME = Pattern.compile("(.+?)" +
+		"(-\\d+(\\.\\d+|\\d{7})+[a-z]?\\d?(-[A-Za-z0-9.]+?|\\.GA)*?)?" +
+		"((-((swing|swt|shaded|sources|javadoc|natives?-?\\w*|(natives-)?" +
+		"(android|linux|macosx|macos|solaris|windows)-" +
+		"(aarch64|amd64|arm64|armv6hf|armv6|arm|i386|i486|i586|i686|universal|" +
+		"x86[_-]32|x86[_-]64|x86))))?(\\.jar(-[a-z]*)?))");
+
+	protected final File directory, indexFile;
+	// the modification times of the indexed directories
+	private final Map<String, Long> directories =
+		new LinkedHashMap<String, Long>();
+	private final Map<String, List<Entry>> entries =
+		new HashMap<String, List<Entry>>();
+
+	private static class Entry {
+
+		private String path, groupId, artifactId, version, classifier;
+		private long lastModified;
+	}
+
+	/**
+	 * Loads the index of an ImageJ.app/ directory, (re-)building it if needed.
+	 *
+	 * @param directory the ImageJ.app/ directory
+	 * @param indexFile where to persist the index
+	 * @param env the build environment, for reporting
+	 * @return the index
+	 */
+	public static ImageJAppIndex load(final File directory, final File indexFile,
+		final BuildEnvironment env)
+	{
+		final ImageJAppIndex index = new ImageJAppIndex(directory, indexFile);
+		try {
+			if (index.read() && index.isUpToDate()) return index;
+		}
+		catch (final IOException e) {
+			if (env.debug) e.printStackTrace(env.err);
+		}
+		if (env.verbose) env.err.println("Indexing " + directory);
+		index.rebuild();
+		try {
+			index.write();
+		}
+		catch (final IOException e) {
+			env.err.println("Warning: could not write " + indexFile + ": " + e
+				.getMessage());
+		}
+		return index;
+	}
+
+	protected ImageJAppIndex(final File directory, final File indexFile) {
+		this.directory = directory;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Looks up an artifact.
+	 * <p>
+	 * Just like for projects found in multi-project roots, newer versions than
+	 * the requested one are accepted.
+	 * </p>
+	 *
+	 * @param dependency the (expanded) dependency
+	 * @return the <tt>.jar</tt> file, or null if the artifact is not available
+	 */
+	public File find(final Coordinate dependency) {
+		final List<Entry> list = entries.get(dependency.artifactId);
+		final String version = dependency.getVersion();
+		if (list == null || version == null || version.startsWith("[")) {
+			return null;
+		}
+		Entry best = null;
+		for (final Entry entry : list) {
+			if (entry.version == null) continue;
+			if (entry.groupId != null && dependency.groupId != null && !entry.groupId
+				.equals(dependency.groupId))
+			{
+				continue;
+			}
+			if (dependency.classifier == null ? entry.classifier != null
+				: !dependency.classifier.equals(entry.classifier))
+			{
+				continue;
+			}
+			if (BuildEnvironment.compareVersion(version, entry.version) > 0) {
+				continue;
+			}
+			if (best == null || BuildEnvironment.compareVersion(best.version,
+				entry.version) < 0)
+			{
+				best = entry;
+			}
+		}
+		if (best == null) return null;
+		final File file = new File(directory, best.path);
+		return file.lastModified() == best.lastModified ? file : null;
+	}
+
+	private boolean isUpToDate() {
+		final Map<String, Long> current = new LinkedHashMap<String, Long>();
+		listDirectories(current);
+		return current.equals(directories);
+	}
+
+	private void listDirectories(final Map<String, Long> result) {
+		for (final String name : DIRECTORIES) {
+			final File dir = new File(directory, name);
+			if (!dir.isDirectory()) continue;
+			result.put(name, dir.lastModified());
+			final File[] list = dir.listFiles();
+			if (list == null) continue;
+			Arrays.sort(list);
+			for (final File file : list) {
+				if (file.isDirectory()) {
+					result.put(name + "/" + file.getName(), file.lastModified());
+				}
+			}
+		}
+	}
+
+	private void rebuild() {
+		directories.clear();
+		entries.clear();
+		listDirectories(directories);
+		for (final String path : directories.keySet()) {
+			final File[] list = new File(directory, path).listFiles();
+			if (list == null) continue;
+			for (final File file : list) {
+				if (file.isFile() && file.getName().endsWith(".jar")) {
+					add(index(file, path + "/" + file.getName()));
+				}
+			}
+		}
+	}
+
+	private void add(final Entry entry) {
+		if (entry == null) return;
+		List<Entry> list = entries.get(entry.artifactId);
+		if (list == null) {
+			list = new ArrayList<Entry>();
+			entries.put(entry.artifactId, list);
+		}
+		list.add(entry);
+	}
+
+	private static Entry index(final File file, final String path) {
+		final Matcher matcher = VERSIONED_FILENAME.matcher(file.getName());
+		if (!matcher.matches()) return null;
+		final Entry entry = new Entry();
+		entry.path = path;
+		entry.lastModified = file.lastModified();
+		entry.artifactId = matcher.group(1);
+		if (matcher.group(2) != null) entry.version = matcher.group(2).substring(1);
+		entry.classifier = matcher.group(7);
+
+		// prefer the coordinates recorded by Maven
+		final Properties properties = readPOMProperties(file, entry.artifactId);
+		if (properties != null) {
+			entry.groupId = properties.getProperty("groupId");
+			final String artifactId = properties.getProperty("artifactId");
+			final String version = properties.getProperty("version");
+			if (artifactId != null && version != null) {
+				entry.artifactId = artifactId;
+				entry.version = version;
+			}
+		}
+		return entry;
+	}
+
+	private static Properties readPOMProperties(final File file,
+		final String artifactId)
+	{
+		ZipFile zip = null;
+		try {
+			zip = new ZipFile(file);
+			ZipEntry match = null;
+			int count = 0;
+			for (final Enumeration<? extends ZipEntry> iter = zip.entries(); iter
+				.hasMoreElements();)
+			{
+				final ZipEntry entry = iter.nextElement();
+				final String name = entry.getName();
+				if (!name.startsWith("META-INF/maven/") || !name.endsWith(
+					"/pom.properties"))
+				{
+					continue;
+				}
+				count++;
+				// shaded jars contain the pom.properties of other artifacts, too
+				if (name.endsWith("/" + artifactId + "/pom.properties")) {
+					match = entry;
+					break;
+				}
+				match = entry;
+			}
+			if (match == null || (count > 1 && !match.getName().endsWith("/" +
+				artifactId + "/pom.properties")))
+			{
+				return null;
+			}
+			final Properties properties = new Properties();
+			properties.load(zip.getInputStream(match));
+			return properties;
+		}
+		catch (final IOException e) {
+			return null;
+		}
+		finally {
+			if (zip != null) try {
+				zip.close();
+			}
+			catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private boolean read() throws IOException {
+		if (!indexFile.exists()) return false;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(indexFile), "UTF-8"));
+		try {
+			if (!HEADER.equals(reader.readLine())) return false;
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null) break;
+				final String[] fields = line.split("\t", -1);
+				if (fields.length == 3 && fields[0].equals("D")) {
+					directories.put(fields[2], Long.parseLong(fields[1]));
+				}
+				else if (fields.length == 7 && fields[0].equals("J")) {
+					final Entry entry = new Entry();
+					entry.lastModified = Long.parseLong(fields[1]);
+					entry.path = fields[2];
+					entry.groupId = nullIfEmpty(fields[3]);
+					entry.artifactId = fields[4];
+					entry.version = nullIfEmpty(fields[5]);
+					entry.classifier = nullIfEmpty(fields[6]);
+					add(entry);
+				}
+			}
+			return true;
+		}
+		catch (final NumberFormatException e) {
+			return false;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private void write() throws IOException {
+		final File parent = indexFile.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not make directory " + parent);
+		}
+		final File tmp = new File(indexFile.getPath() + ".tmp");
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8"));
+		out.println(HEADER);
+		for (final Map.Entry<String, Long> entry : directories.entrySet()) {
+			out.println("D\t" + entry.getValue() + "\t" + entry.getKey());
+		}
+		for (final List<Entry> list : entries.values()) {
+			for (final Entry entry : list) {
+				out.println("J\t" + entry.lastModified + "\t" + entry.path + "\t" +
+					emptyIfNull(entry.groupId) + "\t" + entry.artifactId + "\t" +
+					emptyIfNull(entry.version) + "\t" + emptyIfNull(entry.classifier));
+			}
+		}
+		out.close();
+		if (out.checkError()) {
+			tmp.delete();
+			throw new IOException("Could not write " + tmp);
+		}
+		if (!tmp.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile)) {
+				throw new IOException("Could not rename " + tmp + " to " + indexFile);
+			}
+		}
+	}
+
+	private static String nullIfEmpty(final String string) {
+		return string.equals("") ? null : string;
+	}
+
+	private static String emptyIfNull(final String string) {
+		return string == null ? "" : string;
+	}
+}
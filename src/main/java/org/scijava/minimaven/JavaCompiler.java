@@ -29,13 +29,22 @@
 
 package org.scijava.minimaven;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
+import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
 import org.scijava.util.ClassUtils;
@@ -52,68 +61,96 @@ public class JavaCompiler {
 
 	protected PrintStream err, out;
 	protected static Method javac;
+	private static Semaphore concurrency = new Semaphore(
+		getDefaultConcurrency());
 	private final static String CLASS_NAME = "com.sun.tools.javac.Main";
+	// the options followed by a value, to tell them apart from source files
+	private final static Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(
+		Arrays.asList("-classpath", "-cp", "--class-path", "-d", "-s", "-h",
+			"-source", "--source", "-target", "--target", "--release", "-encoding",
+			"-sourcepath", "--source-path", "-bootclasspath", "--boot-class-path",
+			"-processorpath", "--processor-path", "-processor", "-extdirs",
+			"-endorseddirs"));
+	private final static Set<String> CLASS_PATH_OPTIONS = new HashSet<String>(
+		Arrays.asList("-classpath", "-cp", "--class-path"));
 
 	public JavaCompiler(final PrintStream err, final PrintStream out) {
 		this.err = err;
 		this.out = out;
 	}
 
-	// this function handles the javac singleton
 	public void call(final String[] arguments, final boolean verbose)
 		throws CompileError
 	{
 		call(arguments, verbose, false);
 	}
 
+	/**
+	 * Compiles.
+	 * <p>
+	 * This method may be called concurrently; the number of in-process
+	 * compilations running at the same time is limited by
+	 * {@link #setMaxConcurrency(int)}. The compiler's messages are collected
+	 * per invocation and printed in one go when it is done, so that the
+	 * messages of concurrent compilations do not interleave.
+	 * </p>
+	 *
+	 * @param arguments the command-line arguments for <tt>javac</tt>
+	 * @param verbose whether to report problems finding a compiler
+	 * @param debug whether to report which compiler is used
+	 * @throws CompileError
+	 */
 	public void call(final String[] arguments, final boolean verbose,
 		final boolean debug) throws CompileError
 	{
-		synchronized (this) {
-			try {
-				final javax.tools.JavaCompiler sysc = ToolProvider
-					.getSystemJavaCompiler();
-				if (sysc != null) {
-					if (debug) {
-						err.print("Found tools compiler: " + sysc.getClass());
-						err.print(ClassUtils.getLocation(sysc.getClass()));
-					}
-					sysc.run(null, out, err, arguments);
-					return;
+		try {
+			final javax.tools.JavaCompiler sysc = ToolProvider
+				.getSystemJavaCompiler();
+			if (sysc != null) {
+				if (debug) {
+					err.print("Found tools compiler: " + sysc.getClass());
+					err.print(ClassUtils.getLocation(sysc.getClass()));
 				}
-
-				if (verbose) {
-					err.println(
-						"No javax.tools.JavaCompiler available. Checking for explicit javac.");
+				final Semaphore semaphore = acquire();
+				try {
+					compile(sysc, arguments);
 				}
-
-				if (javac == null) {
-					final JarClassLoader loader = discoverJavac();
-					final Class<?> main = loader == null ? Thread.currentThread()
-						.getContextClassLoader().loadClass(CLASS_NAME) : loader
-							.forceLoadClass(CLASS_NAME);
-					final Class<?>[] argsType = new Class[] { arguments.getClass(),
-						PrintWriter.class };
-					javac = main.getMethod("compile", argsType);
+				finally {
+					semaphore.release();
 				}
-
-				final Writer writer = new PrintWriter(err);
-				final Object result = javac.invoke(null, new Object[] { arguments,
-					writer });
-				writer.flush();
-				if (!result.equals(new Integer(0))) throw new CompileError(result);
 				return;
 			}
-			catch (final CompileError e) {
-				/* re-throw */
-				throw e;
+
+			if (verbose) {
+				err.println(
+					"No javax.tools.JavaCompiler available. Checking for explicit javac.");
 			}
-			catch (final Exception e) {
-				if (verbose) {
-					e.printStackTrace(err);
-					err.println("Could not find javac " + e +
-						", falling back to system javac");
-				}
+
+			final Method method = getJavacMethod();
+			final StringWriter buffer = new StringWriter();
+			final Writer writer = new PrintWriter(buffer);
+			final Object result;
+			final Semaphore semaphore = acquire();
+			try {
+				result = method.invoke(null, new Object[] { arguments, writer });
+			}
+			finally {
+				semaphore.release();
+				writer.flush();
+				print(buffer.toString());
+			}
+			if (!result.equals(new Integer(0))) throw new CompileError(result);
+			return;
+		}
+		catch (final CompileError e) {
+			/* re-throw */
+			throw e;
+		}
+		catch (final Exception e) {
+			if (verbose) {
+				e.printStackTrace(err);
+				err.println("Could not find javac " + e +
+					", falling back to system javac");
 			}
 		}
 
@@ -130,6 +167,123 @@ public class JavaCompiler {
 		}
 	}
 
+	/**
+	 * Compiles via the {@link javax.tools.JavaCompiler.CompilationTask} API,
+	 * reusing a file manager from the {@link FileManagerPool}.
+	 */
+	private void compile(final javax.tools.JavaCompiler compiler,
+		final String[] arguments) throws CompileError
+	{
+		final List<String> options = new ArrayList<String>();
+		final List<String> files = new ArrayList<String>();
+		final List<File> classPath = new ArrayList<File>();
+		final StringBuilder key = new StringBuilder();
+		for (int i = 0; i < arguments.length; i++) {
+			final String argument = arguments[i];
+			if (OPTIONS_WITH_VALUE.contains(argument) && i + 1 < arguments.length) {
+				final String value = arguments[++i];
+				options.add(argument);
+				options.add(value);
+				key.append(argument).append(' ');
+				if (CLASS_PATH_OPTIONS.contains(argument)) {
+					for (final String path : value.split(File.pathSeparator)) {
+						if (!path.equals("")) classPath.add(new File(path));
+					}
+					key.append("* ");
+				}
+				else if (argument.equals("-d")) key.append("* ");
+				else key.append(value).append(' ');
+			}
+			else if (!argument.startsWith("-") && argument.endsWith(".java")) {
+				files.add(argument);
+			}
+			else {
+				options.add(argument);
+				key.append(argument).append(' ');
+			}
+		}
+
+		final StandardJavaFileManager fileManager = FileManagerPool.acquire(
+			compiler, key.toString(), classPath);
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final PrintWriter writer = new PrintWriter(buffer);
+		boolean success;
+		try {
+			success = compiler.getTask(writer, fileManager, null, options, null,
+				fileManager.getJavaFileObjectsFromStrings(files)).call();
+		}
+		catch (final IllegalArgumentException e) {
+			// let javac report the invalid option
+			success = compiler.run(null, buffer, buffer, arguments) == 0;
+		}
+		finally {
+			writer.flush();
+			FileManagerPool.release(key.toString(), fileManager);
+			print(buffer.toString());
+		}
+		if (!success) throw new CompileError(1);
+	}
+
+	private void print(final String messages) {
+		if (messages.length() == 0) return;
+		synchronized (err) {
+			err.print(messages);
+			err.flush();
+		}
+	}
+
+	private static Method getJavacMethod() throws Exception {
+		synchronized (JavaCompiler.class) {
+			if (javac == null) {
+				final JarClassLoader loader = discoverJavac();
+				final Class<?> main = loader == null ? Thread.currentThread()
+					.getContextClassLoader().loadClass(CLASS_NAME) : loader
+						.forceLoadClass(CLASS_NAME);
+				javac = main.getMethod("compile", new Class[] { String[].class,
+					PrintWriter.class });
+			}
+			return javac;
+		}
+	}
+
+	/**
+	 * Limits the number of concurrent in-process compilations.
+	 * <p>
+	 * By default, as many compilations as there are cores may run at the same
+	 * time, but no more than one per 256 MB of maximum heap size, as
+	 * <tt>javac</tt> needs quite a bit of memory.
+	 * </p>
+	 *
+	 * @param count the maximal number of concurrent compilations
+	 */
+	public static synchronized void setMaxConcurrency(final int count) {
+		concurrency = new Semaphore(Math.max(1, count));
+	}
+
+	private static int getDefaultConcurrency() {
+		final long perCompilation = 256l << 20;
+		final long byHeap = Runtime.getRuntime().maxMemory() / perCompilation;
+		return (int) Math.max(1, Math.min(Runtime.getRuntime()
+			.availableProcessors(), byHeap));
+	}
+
+	private static synchronized Semaphore getConcurrency() {
+		return concurrency;
+	}
+
+	private static Semaphore acquire() throws CompileError {
+		// the semaphore might be replaced while compiling; release the same one
+		final Semaphore semaphore = getConcurrency();
+		try {
+			semaphore.acquire();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompileError("interrupted");
+		}
+		return semaphore;
+	}
+
 	public static class CompileError extends Exception {
 
 		private static final long serialVersionUID = 1L;
@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of the most recent response times of the remote repositories.
+ * <p>
+ * The tracked latencies are used to decide when a download is slow enough to
+ * warrant a hedged request to the next repository.
+ * </p>
+ */
+public class LatencyTracker {
+
+	protected final long[] samples;
+	protected int count;
+
+	public LatencyTracker(final int capacity) {
+		samples = new long[capacity];
+	}
+
+	public synchronized void add(final long millis) {
+		samples[count++ % samples.length] = millis;
+	}
+
+	public synchronized int size() {
+		return Math.min(count, samples.length);
+	}
+
+	/**
+	 * Returns the given percentile of the recorded latencies.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @param defaultValue the value to return if fewer than
+	 *          <tt>minimumSamples</tt> latencies were recorded
+	 * @param minimumSamples the number of samples needed for a sensible estimate
+	 * @return the latency in milliseconds
+	 */
+	public synchronized long percentile(final double percentile,
+		final long defaultValue, final int minimumSamples)
+	{
+		final int size = size();
+		if (size < minimumSamples || size == 0) return defaultValue;
+		final long[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		final int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+		return sorted[Math.max(0, Math.min(size - 1, index))];
+	}
+}
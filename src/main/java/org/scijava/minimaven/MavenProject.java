@@ -35,17 +35,25 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarEntry;
@@ -98,9 +106,14 @@ public class MavenProject implements Comparable<MavenProject> {
 
 	private BooleanState upToDate = BooleanState.UNKNOWN, jarUpToDate =
 		BooleanState.UNKNOWN;
+	private FingerprintDatabase fingerprintDatabase;
 
 	private static Name CREATED_BY = new Name("Created-By");
 
+	// the time stamp of all .jar entries, for reproducible .jar files
+	private final static long JAR_ENTRY_TIME = new GregorianCalendar(2000,
+		Calendar.JANUARY, 1).getTimeInMillis();
+
 	protected MavenProject addModule(final String name) throws IOException,
 		ParserConfigurationException, SAXException
 	{
@@ -155,7 +168,15 @@ public class MavenProject implements Comparable<MavenProject> {
 		{
 			if (child != null) child.clean(ijDir);
 		}
-		if (target.isDirectory()) BuildEnvironment.rmRF(target);
+		if (target.isDirectory()) {
+			BuildEnvironment.rmRF(target);
+			for (final String name : new String[] { "minimaven", "headers",
+				"speculative" })
+			{
+				final File file = new File(target.getParentFile(), name);
+				if (file.isDirectory()) BuildEnvironment.rmRF(file);
+			}
+		}
 		else if (target.exists()) target.delete();
 		final File jar = getTarget();
 		if (jar.exists()) jar.delete();
@@ -169,36 +190,131 @@ public class MavenProject implements Comparable<MavenProject> {
 	public void downloadDependencies() throws IOException,
 		ParserConfigurationException, SAXException
 	{
-		getDependencies(true, true, "test");
+		materialize(getDependencies(true, true, "test"));
 		download();
 	}
 
 	protected void download() throws FileNotFoundException {
 		if (buildFromSource || target.exists()) return;
-		download(coordinate, true);
+		env.download(getRoot().getRepositories(), coordinate, true, true);
 	}
 
+	/**
+	 * Downloads an artifact.
+	 * <p>
+	 * If the <tt>.jar</tt> files are downloaded lazily, only the <tt>.pom</tt>
+	 * file is downloaded.
+	 * </p>
+	 *
+	 * @see #materialize(Collection)
+	 */
 	protected void download(final Coordinate dependency, final boolean quiet)
 		throws FileNotFoundException
 	{
-		Exception last = null;
-		for (final String url : getRoot().getRepositories()) {
-			try {
-				if (env.debug) {
-					env.err.println("Trying to download from " + url);
+		env.download(getRoot().getRepositories(), dependency, quiet, !env
+			.isLazy());
+	}
+
+	/**
+	 * Downloads the <tt>.jar</tt> files of the given projects, if they have not
+	 * been downloaded yet.
+	 *
+	 * @param projects the projects whose <tt>.jar</tt> files are needed
+	 * @return the projects
+	 */
+	protected <T extends Collection<MavenProject>> T materialize(
+		final T projects)
+	{
+		env.materialize(getRoot().getRepositories(), projects, !env.verbose);
+		return projects;
+	}
+
+	/**
+	 * Checks all snapshot and version range dependencies for updates, and
+	 * fetches missing ones, before resolving the dependencies.
+	 * <p>
+	 * Rather than issuing one request after the other while resolving the
+	 * dependency graph, this method walks the graph level by level and checks
+	 * all stale coordinates of each level concurrently. The subsequent
+	 * resolution then finds everything up-to-date and works on local data only.
+	 * </p>
+	 *
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	public void checkForUpdates() throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		if (!env.getDownloadAutomatically() || env.ignoreMavenRepositories) return;
+		final Set<String> repositories = getRoot().getRepositories();
+		final String ijDir = expand(getProperty(
+			BuildEnvironment.IMAGEJ_APP_DIRECTORY));
+		final File ijApp = ijDir == null ? null : new File(ijDir);
+		final Set<String> seen = new HashSet<String>();
+		final Set<MavenProject> visited = new HashSet<MavenProject>();
+		List<MavenProject> level = new ArrayList<MavenProject>();
+		addWithModules(level, this);
+		env.beginBatchUpdateChecks();
+		try {
+			while (!level.isEmpty()) {
+				final List<MavenProject> poms = new ArrayList<MavenProject>();
+				final List<Coordinate> coordinates = new ArrayList<Coordinate>();
+				final List<Coordinate> stale = new ArrayList<Coordinate>();
+				for (final MavenProject pom : level) {
+					if (!visited.add(pom)) continue;
+					for (final Coordinate dependency : pom.dependencies) {
+						if (dependency.optional) continue;
+						final String scope = pom.expand(dependency.scope);
+						if ("test".equals(scope) || "system".equals(scope)) continue;
+						final Coordinate expanded = pom.expand(dependency);
+						if (expanded.groupId == null || expanded.version == null) continue;
+						if (!seen.add(expanded.getKey() + ":" + expanded.version)) continue;
+						poms.add(pom);
+						coordinates.add(expanded);
+						if (env.needsDownload(expanded) && !isAvailableLocally(expanded,
+							ijApp))
+						{
+							stale.add(expanded);
+						}
+					}
 				}
-				env.downloadAndVerify(url, dependency, quiet);
-				return;
-			}
-			catch (final Exception e) {
-				if (env.debug) e.printStackTrace(env.err);
-				last = e;
+				if (env.verbose && !stale.isEmpty()) {
+					env.err.println("Checking " + stale.size() + " artifact" + (stale
+						.size() > 1 ? "s" : "") + " for updates");
+				}
+				env.downloadAll(repositories, stale, !env.verbose, !env.isLazy());
+
+				final List<MavenProject> next = new ArrayList<MavenProject>();
+				for (int i = 0; i < poms.size(); i++) {
+					final MavenProject dependency = poms.get(i).findPOM(coordinates.get(
+						i), true, false);
+					if (dependency != null) next.add(dependency);
+				}
+				level = next;
 			}
 		}
-		final FileNotFoundException ex = new FileNotFoundException(
-			"Could not download " + dependency.getJarName());
-		if (last != null) ex.initCause(last);
-		throw ex;
+		finally {
+			env.endBatchUpdateChecks();
+		}
+	}
+
+	// whether the dependency is resolved without consulting the repositories
+	private boolean isAvailableLocally(final Coordinate dependency,
+		final File ijApp)
+	{
+		final MavenProject local = env.localPOMCache.get(dependency.getKey());
+		if (local != null && local.buildFromSource) return true;
+		return ijApp != null && env.findInImageJApp(ijApp, dependency) != null;
+	}
+
+	private static void addWithModules(final List<MavenProject> list,
+		final MavenProject pom)
+	{
+		list.add(pom);
+		for (final MavenProject child : pom.getChildren()) {
+			if (child != null) addWithModules(list, child);
+		}
 	}
 
 	public boolean upToDate(final boolean includingJar) throws IOException,
@@ -216,6 +332,15 @@ public class MavenProject implements Comparable<MavenProject> {
 		return upToDate == BooleanState.YES;
 	}
 
+	/**
+	 * Forgets what is known about the build state, e.g. before the next build in
+	 * a {@link BuildDaemon}.
+	 */
+	protected void resetBuildState() {
+		upToDate = jarUpToDate = BooleanState.UNKNOWN;
+		built = false;
+	}
+
 	public boolean checkUpToDate(final boolean includingJar) throws IOException,
 		ParserConfigurationException, SAXException
 	{
@@ -232,11 +357,96 @@ public class MavenProject implements Comparable<MavenProject> {
 			}
 		}
 
+		if (env.abiFingerprints) {
+			final Map<String, String> compiledAgainst = readUpstreamFingerprints();
+			if (compiledAgainst != null && !compiledAgainst.equals(
+				getUpstreamFingerprints()))
+			{
+				if (env.verbose) {
+					env.err.println(getArtifactId() + " not up-to-date because the " +
+						"ABI of a dependency changed");
+				}
+				return false;
+			}
+		}
+
+		final ChangeJournal journal = env.journal;
+		if (journal == null) return checkSourcesUpToDate(includingJar);
+
+		// in the daemon, a project stays up-to-date until one of its files changes
+		final String kind = includingJar ? "jar" : "classes";
+		if (target.isDirectory() && (!includingJar || getTarget().exists()) &&
+			journal.isClean(directory, kind) && !isModifiedSince(journal
+				.getCleanTime(directory, kind), includingJar))
+		{
+			return true;
+		}
+		journal.watch(this);
+		final long timestamp = journal.now();
+		final long time = System.currentTimeMillis();
+		if (!checkSourcesUpToDate(includingJar)) return false;
+		journal.markClean(directory, kind, timestamp, time);
+		return true;
+	}
+
+	/**
+	 * Determines whether any source or output was modified since the given time.
+	 * <p>
+	 * The {@link ChangeJournal} might not have seen recent changes yet, and it
+	 * does not watch the outputs.
+	 * </p>
+	 */
+	private boolean isModifiedSince(final long time,
+		final boolean includingJar)
+	{
+		if (time < 0) return true;
+		// allow for file systems with a coarse modification time
+		final long since = time - 2000;
+		if (isModifiedSince(target, since)) return true;
+		if (includingJar && getTarget().lastModified() >= since) return true;
+		if (new File(directory, "pom.xml").lastModified() >= since) return true;
+		final File source = getSourceDirectory();
+		return isModifiedSince(source, since) || isModifiedSince(new File(source
+			.getParentFile(), "resources"), since);
+	}
+
+	private static boolean isModifiedSince(final File file, final long time) {
+		if (file.lastModified() >= time) return true;
+		final File[] list = file.listFiles();
+		if (list == null) return false;
+		for (final File child : list) {
+			if (isModifiedSince(child, time)) return true;
+		}
+		return false;
+	}
+
+	private boolean checkSourcesUpToDate(final boolean includingJar)
+		throws IOException
+	{
+		try {
+			return compareWithOutputs(includingJar);
+		}
+		finally {
+			saveFingerprintDatabase();
+		}
+	}
+
+	private boolean compareWithOutputs(final boolean includingJar)
+		throws IOException
+	{
 		final File source = getSourceDirectory();
 
 		final List<String> notUpToDates = new ArrayList<String>();
 		long lastModified = addRecursively(notUpToDates, source, ".java", target,
 			".class", false);
+		if (env.incremental) {
+			// also catch the dependents of modified sources, and removed sources
+			notUpToDates.clear();
+			final SourceDependencies dependencies = getSourceDependencies();
+			final Set<String> sources = getSourcePaths(source);
+			notUpToDates.addAll(dependencies.getStaleSources(sources));
+			notUpToDates.addAll(dependencies.getRemovedSources(sources));
+		}
 		int count = notUpToDates.size();
 
 		// ugly work-around for Bio-Formats: EFHSSF.java only contains commented-out
@@ -298,6 +508,17 @@ public class MavenProject implements Comparable<MavenProject> {
 	{
 		final File[] list = directory.listFiles();
 		if (list == null) return;
+		// a stable order, with the manifest first, makes the .jar reproducible
+		Arrays.sort(list, new Comparator<File>() {
+
+			@Override
+			public int compare(final File a, final File b) {
+				final boolean first1 = isManifestPath(prefix + a.getName());
+				final boolean first2 = isManifestPath(prefix + b.getName());
+				if (first1 != first2) return first1 ? -1 : 1;
+				return a.getName().compareTo(b.getName());
+			}
+		});
 		for (final File file : list) {
 			if (file.isFile()) {
 				// For backwards-compatibility with the Fiji Updater, let's not include
@@ -305,7 +526,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				if (file.getAbsolutePath().endsWith(
 					"/Fiji_Updater/target/classes/META-INF/maven/sc.fiji/Fiji_Updater/pom.properties"))
 					continue;
-				out.putNextEntry(new ZipEntry(prefix + file.getName()));
+				out.putNextEntry(newJarEntry(prefix + file.getName()));
 				BuildEnvironment.copy(new FileInputStream(file), out, false);
 			}
 			else if (file.isDirectory()) {
@@ -314,6 +535,23 @@ public class MavenProject implements Comparable<MavenProject> {
 		}
 	}
 
+	private static boolean isManifestPath(final String path) {
+		return path.equals("META-INF") || path.equals("META-INF/MANIFEST.MF");
+	}
+
+	/**
+	 * Creates a <tt>.jar</tt> entry with a fixed time stamp.
+	 * <p>
+	 * The time is given in local time, as that is how <tt>.zip</tt> files store
+	 * it, so that the bytes do not depend on the time zone either.
+	 * </p>
+	 */
+	private static ZipEntry newJarEntry(final String name) {
+		final ZipEntry entry = new ZipEntry(name);
+		entry.setTime(JAR_ENTRY_TIME);
+		return entry;
+	}
+
 	/**
 	 * Builds the artifact and installs it and its dependencies into
 	 * ${imagej.app.directory}.
@@ -387,8 +625,8 @@ public class MavenProject implements Comparable<MavenProject> {
 			final Set<MavenProject> dependencies = getDependencies(true, false,
 				"test", "provided", "system");
 			if (dependencies != null && dependencies.size() > 0) {
-				for (final MavenProject project : getDependencies(true, false, "test",
-					"provided", "system"))
+				for (final MavenProject project : materialize(getDependencies(true,
+					false, "test", "provided", "system")))
 				{
 					project.copyToImageJAppDirectory(ijDir, true);
 				}
@@ -398,8 +636,8 @@ public class MavenProject implements Comparable<MavenProject> {
 
 		build(true, forceBuild);
 
-		for (final MavenProject project : getDependencies(true, false, "test",
-			"provided", "system"))
+		for (final MavenProject project : materialize(getDependencies(true, false,
+			"test", "provided", "system")))
 		{
 			project.copyToImageJAppDirectory(ijDir, true);
 		}
@@ -486,14 +724,28 @@ public class MavenProject implements Comparable<MavenProject> {
 		}
 		if (!buildFromSource || built) return;
 		boolean forceFullBuild = false;
+		final Map<String, String> compiledAgainst = env.abiFingerprints
+			? readUpstreamFingerprints() : null;
+		final SpeculativeCompilation speculation = speculate(makeJar,
+			compiledAgainst);
 		for (final MavenProject child : getDependencies(true,
 			env.downloadAutomatically, "test"))
 		{
 			if (child != null && !child.upToDate(makeJar)) {
 				child.build(makeJar);
-				forceFullBuild = true;
+				// without fingerprints, any change could matter
+				if (compiledAgainst == null) forceFullBuild = true;
 			}
 		}
+		final Map<String, String> upstream = env.abiFingerprints
+			? getUpstreamFingerprints() : null;
+		if (compiledAgainst != null && !compiledAgainst.equals(upstream)) {
+			if (env.verbose) {
+				env.err.println("Recompiling " + getArtifactId() +
+					" because the ABI of a dependency changed");
+			}
+			forceFullBuild = true;
+		}
 
 		// do not build aggregator projects
 		final File source = getSourceDirectory();
@@ -502,48 +754,56 @@ public class MavenProject implements Comparable<MavenProject> {
 
 		target.mkdirs();
 
-		final List<String> arguments = new ArrayList<String>();
 		// classpath
 		final String classPath = getClassPath(true);
-		MavenProject pom2 = this;
-		while (pom2 != null && pom2.sourceVersion == null)
-			pom2 = pom2.parent;
-		if (pom2 != null) {
-			arguments.add("-source");
-			arguments.add(pom2.sourceVersion);
+		final List<String> arguments = getCompilerArguments(classPath, target);
+		final File pom = new File(directory, "pom.xml");
+		final String manifestClassPath = getManifestClassPath();
+
+		final String cacheKey = env.buildCache == null ? null : getBuildCacheKey(
+			arguments, manifestClassPath);
+		final BuildCache.Entry cached = cacheKey == null || forceBuild ? null
+			: env.buildCache.get(cacheKey);
+		final int prefix = arguments.size();
+		if (cached != null) {
+			env.err.println("Restoring " + directory + " from the build cache");
+			cached.restoreClasses(target);
+			if (env.incremental) {
+				// the recorded dependencies refer to the replaced class files
+				new File(target.getParentFile(), "minimaven/dependencies.tsv")
+					.delete();
+				final SourceDependencies dependencies = getSourceDependencies();
+				dependencies.update(getSourcePaths(source), Collections
+					.<String, String> emptyMap());
+				dependencies.save();
+			}
+		}
+		else if (speculation != null && speculation.finish(upstream, target,
+			env.err))
+		{
+			env.err.println("Using the speculative compilation of " + directory);
 		}
-		pom2 = this;
-		while (pom2 != null && pom2.targetVersion == null)
-			pom2 = pom2.parent;
-		if (pom2 != null) {
-			arguments.add("-target");
-			arguments.add(pom2.targetVersion);
+		else if (env.incremental) {
+			compileIncrementally(arguments, prefix, source, classPath,
+				forceFullBuild);
 		}
-		arguments.add("-classpath");
-		arguments.add(classPath);
-		// output directory
-		arguments.add("-d");
-		arguments.add(target.getPath());
-		// the files
-		int count = arguments.size();
-		addRecursively(arguments, source, ".java", target, ".class",
-			!forceFullBuild);
-		count = arguments.size() - count;
-
-		if (count > 0) {
-			env.err.println("Compiling " + count + " file" + (count > 1 ? "s" : "") +
-				" in " + directory);
-			if (env.verbose) {
-				env.err.println(arguments.toString());
-				env.err.println("using the class path: " + classPath);
+		else {
+			// without a dependency graph, recompile everything if anything changed
+			final List<String> sources = new ArrayList<String>();
+			addRecursively(sources, source, ".java", target, ".class",
+				forceFullBuild);
+			if (!sources.isEmpty() && !forceFullBuild) {
+				sources.clear();
+				addRecursively(sources, source, ".java", target, ".class", true);
 			}
-			final String[] array = arguments.toArray(new String[arguments.size()]);
-			if (env.javac != null) env.javac.call(array, env.verbose, env.debug);
+			arguments.addAll(sources);
+			compile(arguments, sources.size(), classPath);
 		}
+		if (upstream != null) writeUpstreamFingerprints(upstream);
+		if (env.pipeline) writeHeaders();
 
 		updateRecursively(resources, target, false);
 
-		final File pom = new File(directory, "pom.xml");
 		if (pom.exists()) {
 			final File targetFile = new File(target, "META-INF/maven/" +
 				coordinate.groupId + "/" + coordinate.artifactId + "/pom.xml");
@@ -551,7 +811,6 @@ public class MavenProject implements Comparable<MavenProject> {
 			BuildEnvironment.copyFile(pom, targetFile);
 		}
 
-		final String manifestClassPath = getManifestClassPath();
 		final File file = new File(target, "META-INF/MANIFEST.MF");
 		Manifest manifest = null;
 		if (file.exists()) {
@@ -575,23 +834,368 @@ public class MavenProject implements Comparable<MavenProject> {
 		manifest.write(manifestOut);
 		manifestOut.close();
 
-		if (makeJar) {
-			final OutputStream jarOut = new FileOutputStream(getTarget());
-			final JarOutputStream out = new JarOutputStream(jarOut);
-			addToJarRecursively(out, target, "");
-			if (includeSources) {
-				if (pom.exists()) {
-					out.putNextEntry(new ZipEntry("pom.xml"));
-					BuildEnvironment.copy(new FileInputStream(pom), out, false);
+		// a cached jar was built from the restored classes
+		final boolean jarWritten = makeJar && (cached == null || includeSources ||
+			!cached.restoreJar(getTarget()));
+		if (jarWritten) writeJar(pom, source, resources, includeSources);
+		if (cacheKey != null && (cached == null || jarWritten && !includeSources)) {
+			env.buildCache.put(cacheKey, target, jarWritten && !includeSources
+				? getTarget() : null);
+		}
+		saveFingerprintDatabase();
+
+		built = true;
+	}
+
+	private void writeJar(final File pom, final File source,
+		final File resources, final boolean includeSources) throws IOException
+	{
+		final OutputStream jarOut = new FileOutputStream(getTarget());
+		final JarOutputStream out = new JarOutputStream(jarOut);
+		addToJarRecursively(out, target, "");
+		if (includeSources) {
+			if (pom.exists()) {
+				out.putNextEntry(newJarEntry("pom.xml"));
+				BuildEnvironment.copy(new FileInputStream(pom), out, false);
+			}
+			addToJarRecursively(out, source, "src/main/java/");
+			addToJarRecursively(out, resources, "src/main/resources/");
+		}
+		out.close();
+		jarOut.close();
+	}
+
+	/**
+	 * Computes the key of this project's outputs in the {@link BuildCache}.
+	 * <p>
+	 * The key covers the sources, resources and <tt>pom.xml</tt>, the compiler
+	 * options, the manifest, the Java version and the class path, where
+	 * dependencies built from source contribute their ABI fingerprint.
+	 * </p>
+	 */
+	private String getBuildCacheKey(final List<String> arguments,
+		final String manifestClassPath) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final BuildCache.KeyBuilder key = new BuildCache.KeyBuilder();
+		key.add("project", getGAV());
+		key.add("java", System.getProperty("java.version"));
+		for (int i = 0; i < arguments.size(); i++) {
+			final String argument = arguments.get(i);
+			if (argument.equals("-classpath") || argument.equals("-d")) i++;
+			else key.add("option", argument);
+		}
+		key.add("main-class", "" + mainClass);
+		key.add("manifest-class-path", "" + manifestClassPath);
+		if (includeImplementationBuild && !getArtifactId().equals("Fiji_Updater")) {
+			key.add("implementation-build", env.getImplementationBuild(directory));
+		}
+		key.addFile("pom.xml", new File(directory, "pom.xml"));
+		final File source = getSourceDirectory();
+		key.addDirectory("sources", source);
+		key.addDirectory("resources", new File(source.getParentFile(),
+			"resources"));
+		for (final MavenProject pom : materialize(getDependencies(true,
+			env.downloadAutomatically, "test", "runtime")))
+		{
+			if (pom.buildFromSource) {
+				key.add("abi " + pom.getGAV(), pom.getABIFingerprint());
+			}
+			else key.addFile("jar " + pom.getGAV(), pom.getTarget());
+		}
+		return key.get();
+	}
+
+	private List<String> getCompilerArguments(final String classPath,
+		final File output)
+	{
+		final List<String> arguments = new ArrayList<String>();
+		MavenProject pom2 = this;
+		while (pom2 != null && pom2.sourceVersion == null)
+			pom2 = pom2.parent;
+		if (pom2 != null) {
+			arguments.add("-source");
+			arguments.add(pom2.sourceVersion);
+		}
+		pom2 = this;
+		while (pom2 != null && pom2.targetVersion == null)
+			pom2 = pom2.parent;
+		if (pom2 != null) {
+			arguments.add("-target");
+			arguments.add(pom2.targetVersion);
+		}
+		arguments.add("-classpath");
+		arguments.add(classPath);
+		// output directory
+		arguments.add("-d");
+		arguments.add(output.getPath());
+		return arguments;
+	}
+
+	/**
+	 * Starts compiling against the header classes of the dependencies, if some
+	 * of them need to be rebuilt first.
+	 * <p>
+	 * This is only done when <tt>minimaven.pipeline</tt> is set to
+	 * <tt>true</tt>, all dependencies built from source have header classes,
+	 * and this project needs to be compiled. Incremental builds do not
+	 * speculate.
+	 * </p>
+	 *
+	 * @return the speculative compilation, or null
+	 */
+	private SpeculativeCompilation speculate(final boolean makeJar,
+		final Map<String, String> compiledAgainst) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		if (!env.pipeline || env.incremental || env.javac == null ||
+			compiledAgainst == null)
+		{
+			return null;
+		}
+		boolean rebuilding = false;
+		final Map<String, String> assumed = new TreeMap<String, String>();
+		for (final MavenProject child : getDependencies(true,
+			env.downloadAutomatically, "test"))
+		{
+			if (child == null || !child.buildFromSource) continue;
+			final String fingerprint = child.readHeaderFingerprint();
+			if (fingerprint == null) return null;
+			assumed.put(child.getGroupId() + ":" + child.getArtifactId(),
+				fingerprint);
+			if (!child.upToDate(makeJar)) rebuilding = true;
+		}
+		if (!rebuilding) return null;
+
+		final File source = getSourceDirectory();
+		final List<String> sources = new ArrayList<String>();
+		addRecursively(sources, source, ".java", target, ".class", false);
+		// nothing to compile unless the sources or the dependencies' ABIs changed
+		if (sources.isEmpty() && assumed.equals(compiledAgainst)) return null;
+		sources.clear();
+		addRecursively(sources, source, ".java", target, ".class", true);
+		if (sources.isEmpty()) return null;
+
+		final File output = new File(target.getParentFile(), "speculative");
+		if (output.isDirectory()) BuildEnvironment.rmRF(output);
+		output.mkdirs();
+		final List<String> arguments = getCompilerArguments(getClassPath(true,
+			true), output);
+		arguments.addAll(sources);
+		env.err.println("Speculatively compiling " + sources.size() + " file" +
+			(sources.size() > 1 ? "s" : "") + " in " + directory);
+		return new SpeculativeCompilation(arguments, assumed, output,
+			getArtifactId());
+	}
+
+	public File getHeaderDirectory() {
+		return new File(target.getParentFile(), "headers");
+	}
+
+	/**
+	 * Returns the ABI fingerprint the header classes correspond to.
+	 *
+	 * @return the fingerprint, or null if there are no header classes
+	 */
+	protected String readHeaderFingerprint() {
+		final File file = new File(target.getParentFile(), "minimaven/headers.txt");
+		if (!file.exists() || !getHeaderDirectory().isDirectory()) return null;
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				return reader.readLine();
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the header classes, unless they are up-to-date already.
+	 *
+	 * @throws IOException
+	 */
+	protected void writeHeaders() throws IOException {
+		final String fingerprint = getABIFingerprint();
+		if (fingerprint.equals(readHeaderFingerprint())) return;
+		final File file = new File(target.getParentFile(), "minimaven/headers.txt");
+		file.delete();
+		HeaderClasses.write(target, getHeaderDirectory());
+		file.getParentFile().mkdirs();
+		final PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println(fingerprint);
+		out.close();
+	}
+
+	private void compile(final List<String> arguments, final int count,
+		final String classPath) throws CompileError
+	{
+		if (count == 0) return;
+		env.err.println("Compiling " + count + " file" + (count > 1 ? "s" : "") +
+			" in " + directory);
+		if (env.verbose) {
+			env.err.println(arguments.toString());
+			env.err.println("using the class path: " + classPath);
+		}
+		final String[] array = arguments.toArray(new String[arguments.size()]);
+		if (env.javac != null) env.javac.call(array, env.verbose, env.debug);
+	}
+
+	/**
+	 * Compiles only the sources that changed, and the sources depending on them.
+	 * <p>
+	 * The class files of removed sources are deleted, as are the class files of
+	 * the sources to recompile (so that no stale inner classes remain). If the
+	 * value of a compile-time constant changes, all sources are recompiled, as
+	 * <tt>javac</tt> inlines those values.
+	 * </p>
+	 */
+	private void compileIncrementally(final List<String> arguments,
+		final int prefix, final File source, final String classPath,
+		final boolean full) throws CompileError, IOException
+	{
+		final SourceDependencies dependencies = getSourceDependencies();
+		final Set<String> sources = getSourcePaths(source);
+		final Set<String> stale = full ? sources : dependencies.getStaleSources(
+			sources);
+		final Map<String, String> constants = dependencies.getConstants(stale);
+		dependencies.deleteClasses(dependencies.getRemovedSources(sources));
+		dependencies.deleteClasses(stale);
+		for (final String path : stale) {
+			arguments.add(new File(source, path).getPath());
+		}
+		compile(arguments, stale.size(), classPath);
+		if (dependencies.update(sources, constants) && stale.size() < sources
+			.size())
+		{
+			env.err.println("Compile-time constants changed; recompiling all of " +
+				directory);
+			arguments.subList(prefix, arguments.size()).clear();
+			dependencies.deleteClasses(sources);
+			for (final String path : sources) {
+				arguments.add(new File(source, path).getPath());
+			}
+			compile(arguments, sources.size(), classPath);
+			dependencies.update(sources, constants);
+		}
+		dependencies.save();
+	}
+
+	/**
+	 * Returns the fingerprint of the ABI of the classes built by this project.
+	 *
+	 * @return the fingerprint
+	 * @throws IOException
+	 */
+	public String getABIFingerprint() throws IOException {
+		return ABIFingerprint.get(target, new File(target.getParentFile(),
+			"minimaven/abi.txt"));
+	}
+
+	/**
+	 * Returns the ABI fingerprints of the dependencies built from source.
+	 *
+	 * @return the fingerprints, by <tt>groupId:artifactId</tt>
+	 */
+	protected Map<String, String> getUpstreamFingerprints() throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final Map<String, String> result = new TreeMap<String, String>();
+		for (final MavenProject child : getDependencies(true,
+			env.downloadAutomatically, "test"))
+		{
+			if (child == null || !child.buildFromSource) continue;
+			result.put(child.getGroupId() + ":" + child.getArtifactId(), child
+				.getABIFingerprint());
+		}
+		return result;
+	}
+
+	private File getUpstreamFingerprintsFile() {
+		return new File(target.getParentFile(), "minimaven/upstream.tsv");
+	}
+
+	/**
+	 * Reads the ABI fingerprints of the dependencies as of the last compilation.
+	 *
+	 * @return the fingerprints, or null if they were not recorded
+	 */
+	protected Map<String, String> readUpstreamFingerprints() {
+		final File file = getUpstreamFingerprintsFile();
+		if (!file.exists()) return null;
+		final Map<String, String> result = new TreeMap<String, String>();
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final int tab = line.indexOf('\t');
+					if (tab > 0) {
+						result.put(line.substring(tab + 1), line.substring(0, tab));
+					}
 				}
-				addToJarRecursively(out, source, "src/main/java/");
-				addToJarRecursively(out, resources, "src/main/resources/");
 			}
-			out.close();
-			jarOut.close();
+			finally {
+				reader.close();
+			}
 		}
+		catch (final IOException e) {
+			return null;
+		}
+		return result;
+	}
 
-		built = true;
+	private void writeUpstreamFingerprints(final Map<String, String> fingerprints)
+		throws IOException
+	{
+		final File file = getUpstreamFingerprintsFile();
+		file.getParentFile().mkdirs();
+		final PrintWriter out = new PrintWriter(new FileWriter(file));
+		for (final Map.Entry<String, String> entry : fingerprints.entrySet()) {
+			out.println(entry.getValue() + "\t" + entry.getKey());
+		}
+		out.close();
+	}
+
+	protected SourceDependencies getSourceDependencies() {
+		final SourceDependencies result = new SourceDependencies(new File(target
+			.getParentFile(), "minimaven/dependencies.tsv"), getSourceDirectory(),
+			target);
+		result.setFingerprintDatabase(getFingerprintDatabase());
+		return result;
+	}
+
+	/**
+	 * Lists the sources to compile, relative to the source directory.
+	 *
+	 * @param directory the source directory
+	 * @return the relative paths
+	 */
+	protected static Set<String> getSourcePaths(final File directory) {
+		final Set<String> result = new TreeSet<String>();
+		addSourcePaths(result, directory, "");
+		return result;
+	}
+
+	private static void addSourcePaths(final Set<String> result,
+		final File directory, final String prefix)
+	{
+		final File[] files = directory.listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			final String name = file.getName();
+			if (file.isDirectory()) {
+				addSourcePaths(result, file, prefix + name + "/");
+			}
+			else if (name.endsWith(".java") && !name.equals("package-info.java")) {
+				result.add(prefix + name);
+			}
+		}
 	}
 
 	protected long addRecursively(final List<String> list, final File directory,
@@ -616,7 +1220,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				}
 				final File targetFile = new File(targetDirectory, name.substring(0, name
 					.length() - extension.length()) + targetExtension);
-				final long lastModified2 = file.lastModified();
+				final long lastModified2 = lastModified(file);
 				if (lastModified < lastModified2) lastModified = lastModified2;
 				if (includeUpToDates || !targetFile.exists() || targetFile
 					.lastModified() < lastModified2)
@@ -628,6 +1232,34 @@ public class MavenProject implements Comparable<MavenProject> {
 		return lastModified;
 	}
 
+	/**
+	 * Returns when an input file was last modified.
+	 * <p>
+	 * If <tt>minimaven.fingerprints</tt> is <tt>true</tt>, this is the time the
+	 * contents last changed (see {@link FingerprintDatabase}).
+	 * </p>
+	 */
+	private long lastModified(final File file) {
+		final FingerprintDatabase database = getFingerprintDatabase();
+		return database == null ? file.lastModified() : database.lastModified(
+			file);
+	}
+
+	protected synchronized FingerprintDatabase getFingerprintDatabase() {
+		if (!env.fingerprintDatabase) return null;
+		if (fingerprintDatabase == null) {
+			fingerprintDatabase = new FingerprintDatabase(new File(target
+				.getParentFile(), "minimaven/fingerprints.tsv"));
+		}
+		return fingerprintDatabase;
+	}
+
+	private void saveFingerprintDatabase() throws IOException {
+		if (fingerprintDatabase != null && target.getParentFile().isDirectory()) {
+			fingerprintDatabase.save();
+		}
+	}
+
 	protected long updateRecursively(final File source, final File target,
 		final boolean dryRun) throws IOException
 	{
@@ -641,7 +1273,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				if (lastModified < lastModified2) lastModified = lastModified2;
 			}
 			else if (file.isFile()) {
-				final long lastModified2 = file.lastModified();
+				final long lastModified2 = lastModified(file);
 				if (lastModified < lastModified2) lastModified = lastModified2;
 				if (dryRun || (targetFile.exists() && targetFile
 					.lastModified() >= lastModified2))
@@ -711,6 +1343,21 @@ public class MavenProject implements Comparable<MavenProject> {
 
 	public String getClassPath(final boolean forCompile) throws IOException,
 		ParserConfigurationException, SAXException
+	{
+		return getClassPath(forCompile, false);
+	}
+
+	/**
+	 * Returns the class path.
+	 *
+	 * @param forCompile whether the class path is used to compile
+	 * @param headers whether to use the header classes of the dependencies
+	 *          built from source, where available
+	 * @return the class path
+	 */
+	protected String getClassPath(final boolean forCompile,
+		final boolean headers) throws IOException, ParserConfigurationException,
+		SAXException
 	{
 		final StringBuilder builder = new StringBuilder();
 		builder.append(target);
@@ -718,14 +1365,17 @@ public class MavenProject implements Comparable<MavenProject> {
 			env.err.println("Get classpath for " + coordinate + " for " + (forCompile
 				? "compile" : "runtime"));
 		}
-		for (final MavenProject pom : getDependencies(true,
-			env.downloadAutomatically, "test", forCompile ? "runtime" : "provided"))
+		for (final MavenProject pom : materialize(getDependencies(true,
+			env.downloadAutomatically, "test", forCompile ? "runtime" : "provided")))
 		{
 			if (env.debug) {
 				env.err.println("Adding dependency " + pom.coordinate +
 					" to classpath");
 			}
-			builder.append(File.pathSeparator).append(pom.getTarget());
+			final File headerDirectory = pom.getHeaderDirectory();
+			builder.append(File.pathSeparator).append(headers &&
+				pom.buildFromSource && headerDirectory.isDirectory() ? headerDirectory
+					: pom.getTarget());
 		}
 		return builder.toString();
 	}
@@ -869,8 +1519,8 @@ public class MavenProject implements Comparable<MavenProject> {
 	public void copyDependencies(final File directory, final boolean onlyNewer)
 		throws IOException, ParserConfigurationException, SAXException
 	{
-		for (final MavenProject pom : getDependencies(true,
-			env.downloadAutomatically, "test", "provided"))
+		for (final MavenProject pom : materialize(getDependencies(true,
+			env.downloadAutomatically, "test", "provided")))
 		{
 			final File file = pom.getTarget();
 			final File destination = new File(directory, pom.coordinate.artifactId +
@@ -926,7 +1576,9 @@ public class MavenProject implements Comparable<MavenProject> {
 			if (pom == null && systemPath != null) {
 				final File file = new File(systemPath);
 				if (file.exists()) {
-					result.add(env.fakePOM(file, expanded));
+					final MavenProject embedded = env.parseEmbeddedPOM(file, expanded);
+					result.add(embedded != null ? embedded : env.fakePOM(file,
+						expanded));
 					continue;
 				}
 			}
@@ -934,7 +1586,7 @@ public class MavenProject implements Comparable<MavenProject> {
 			if (!env.offlineMode && downloadAutomatically && pom != null &&
 				pom.coordinate.version != null && (pom.coordinate.version.startsWith(
 					"[") || pom.coordinate.version.endsWith("-SNAPSHOT")) && pom.directory
-						.getPath().startsWith(BuildEnvironment.mavenRepository.getPath()))
+						.getPath().startsWith(env.localRepository.getPath()))
 			{
 				if (maybeDownloadAutomatically(pom.coordinate, !env.verbose,
 					downloadAutomatically))
@@ -1171,8 +1823,8 @@ public class MavenProject implements Comparable<MavenProject> {
 	protected void getRepositories(final Set<String> result) {
 		// add a default to the root
 		if (parent == null) {
-			result.add("https://maven.scijava.org/content/groups/public");
-			result.add("https://repo1.maven.org/maven2");
+			result.add(BuildEnvironment.SCIJAVA_REPOSITORY);
+			result.add(BuildEnvironment.CENTRAL_REPOSITORY);
 		}
 		result.addAll(repositories);
 		for (final MavenProject child : getChildren()) {
@@ -1234,10 +1886,23 @@ public class MavenProject implements Comparable<MavenProject> {
 			}
 		}
 
-		// fall back to Fiji's modules/ and $HOME/.m2/repository/
+		// fall back to Fiji's modules/, ImageJ.app/, the shared repositories and
+		// $HOME/.m2/repository/
 		final MavenProject pom = findInMultiProjects(dependency);
 		if (pom != null) return pom;
 
+		final String ijDir = expand(getProperty(
+			BuildEnvironment.IMAGEJ_APP_DIRECTORY));
+		if (ijDir != null) {
+			final File jar = env.findInImageJApp(new File(ijDir), dependency);
+			if (jar != null) {
+				if (env.debug) env.err.println("Using " + jar + " for " + dependency);
+				final MavenProject embedded = env.parseEmbeddedPOM(jar, dependency);
+				return cacheAndReturn(key, embedded != null ? embedded : env.fakePOM(
+					jar, dependency));
+			}
+		}
+
 		if (env.ignoreMavenRepositories) {
 			if (!quiet && !dependency.optional) {
 				env.err.println("Skipping artifact " + dependency.artifactId +
@@ -1246,7 +1911,7 @@ public class MavenProject implements Comparable<MavenProject> {
 			return cacheAndReturn(key, null);
 		}
 
-		String path = BuildEnvironment.mavenRepository.getPath() + "/" +
+		String path = env.localRepository.getPath() + "/" +
 			dependency.groupId.replace('.', '/') + "/" + dependency.artifactId + "/";
 		if (dependency.version == null) {
 			env.err.println("Skipping invalid dependency (version unset): " +
@@ -1271,6 +1936,19 @@ public class MavenProject implements Comparable<MavenProject> {
 		}
 		path += (dependency.version.endsWith("-SNAPSHOT") ? dependency.version
 			: dependency.getVersion()) + "/";
+		if (!env.exists(new File(path, dependency.getPOMName()))) {
+			// use the artifact from a shared repository in place, if possible
+			final File shared = env.findInSharedRepositories(dependency);
+			if (shared != null) {
+				if (!env.exists(new File(shared, dependency.getPOMName()))) {
+					final File jar = new File(shared, dependency.getJarName());
+					final MavenProject embedded = env.parseEmbeddedPOM(jar, dependency);
+					return cacheAndReturn(key, embedded != null ? embedded : env.fakePOM(
+						jar, dependency));
+				}
+				path = shared.getPath() + "/";
+			}
+		}
 		if (dependency.version.endsWith("-SNAPSHOT")) {
 			try {
 				if (!maybeDownloadAutomatically(dependency, quiet,
@@ -1281,7 +1959,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				if (dependency.version.endsWith("-SNAPSHOT")) {
 					final File xml = new File(path, "maven-metadata-snapshot.xml");
 					if (env.verbose) env.err.println("Parsing " + xml);
-					if (xml.exists()) {
+					if (env.exists(xml)) {
 						try {
 							dependency.setSnapshotVersion(SnapshotPOMHandler.parse(xml));
 						}
@@ -1302,7 +1980,11 @@ public class MavenProject implements Comparable<MavenProject> {
 		}
 
 		final File file = new File(path, dependency.getPOMName());
-		if (!file.exists()) {
+		if (!env.exists(file)) {
+			// avoid downloading the .pom file if the .jar file has it embedded
+			final MavenProject embedded = env.parseEmbeddedPOM(new File(path,
+				dependency.getJarName()), dependency);
+			if (embedded != null) return cacheAndReturn(key, embedded);
 			if (downloadAutomatically) {
 				if (!maybeDownloadAutomatically(dependency, quiet,
 					downloadAutomatically))
@@ -1310,7 +1992,8 @@ public class MavenProject implements Comparable<MavenProject> {
 					return null;
 				}
 			}
-			else {
+			else if (!file.exists()) {
+				// the repository index might be out of date
 				if (!quiet && !dependency.optional && !"system".equals(
 					dependency.scope))
 				{
@@ -1330,9 +2013,14 @@ public class MavenProject implements Comparable<MavenProject> {
 				result.target = new File(result.directory, dependency.getJarName());
 			}
 			if (result.parent == null) result.parent = getRoot();
-			if (result.isJAR() && !new File(path, dependency.getJarName()).exists()) {
-				if (downloadAutomatically) download(dependency, quiet);
-				else {
+			if (result.isJAR() && !env.exists(new File(path, dependency
+				.getJarName())))
+			{
+				if (env.isLazy()) {
+					// the .jar file is downloaded when it is needed
+				}
+				else if (downloadAutomatically) download(dependency, quiet);
+				else if (!new File(path, dependency.getJarName()).exists()) {
 					env.localPOMCache.remove(key);
 					return null;
 				}
@@ -1390,8 +2078,8 @@ public class MavenProject implements Comparable<MavenProject> {
 		throws IOException
 	{
 		final File file = new File(path, "maven-metadata-local.xml");
-		if (!file.exists()) {
-			final String[] list = new File(path).list();
+		if (!env.exists(file)) {
+			final String[] list = env.list(new File(path));
 			return list != null && list.length > 0 ? list[0] : null;
 		}
 		final BufferedReader reader = new BufferedReader(new FileReader(file));
@@ -1490,6 +2178,7 @@ public class MavenProject implements Comparable<MavenProject> {
 		protected Coordinate latestDependency = new Coordinate();
 		protected boolean isCurrentProfile;
 		protected String currentPluginName;
+		protected String repositoryId, repositoryURL;
 		private Coordinate latestExclusion = new Coordinate();
 
 		// XML parsing
@@ -1568,6 +2257,12 @@ public class MavenProject implements Comparable<MavenProject> {
 			else if (prefix.equals(">project>profiles>profile")) {
 				isCurrentProfile = false;
 			}
+			else if (prefix.equals(">project>repositories>repository")) {
+				if (repositoryId != null && repositoryURL != null) {
+					env.repositoryIds.put(repositoryURL, repositoryId);
+				}
+				repositoryId = repositoryURL = null;
+			}
 			prefix = prefix.substring(0, prefix.length() - 1 - qualifiedName
 				.length());
 			if (env.debug) {
@@ -1713,8 +2408,12 @@ public class MavenProject implements Comparable<MavenProject> {
 				}
 				isCurrentProfile = negate ^ (expand("${" + string + "}") != null);
 			}
+			else if (prefix.equals(">project>repositories>repository>id")) {
+				repositoryId = string;
+			}
 			else if (prefix.equals(">project>repositories>repository>url")) {
 				repositories.add(string);
+				repositoryURL = string;
 			}
 			else if (prefix.equals(">project>build>sourceDirectory")) {
 				sourceDirectory = string;
@@ -32,8 +32,12 @@ package org.scijava.minimaven;
 import java.io.File;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
@@ -50,8 +54,8 @@ import java.util.TreeSet;
  */
 public class MiniMaven {
 
-	private final static void usage() {
-		System.err.println("Usage: MiniMaven [options...] [command]\n\n" +
+	private final static int usage(final PrintStream err) {
+		err.println("Usage: MiniMaven [options...] [command]\n\n" +
 			"Supported commands:\n" + //
 			"compile\n" + //
 			"\tcompile the project\n" + //
@@ -67,17 +71,55 @@ public class MiniMaven {
 			"\tclean the project\n" + //
 			"get-dependencies\n" + //
 			"\tdownload the dependencies of the project\n" + //
+			"export-dependencies\n" + //
+			"\tpack the dependencies into a bundle (see minimaven.bundle)\n" + //
+			"import-dependencies\n" + //
+			"\tunpack a bundle into the local repository\n" + //
 			"list\n" + //
 			"\tshow list of projects\n" + //
 			"dependency-tree\n" + //
-			"\tshow the tree of depending projects\n\n" + //
+			"\tshow the tree of depending projects\n" + //
+			"serve\n" + //
+			"\tserve the local repository over HTTP (see minimaven.serve.*)\n" + //
+			"serve-cache\n" + //
+			"\tserve the build cache over HTTP (see minimaven.serve.*)\n" + //
+			"prune-repository\n" + //
+			"\tdelete unused artifacts from the local repository (see\n" + //
+			"\tminimaven.prune.*)\n" + //
+			"verify-repository\n" + //
+			"\tcheck the checksums of the local repository (see\n" + //
+			"\tminimaven.verify.action)\n" + //
+			"daemon\n" + //
+			"\tkeep running, serving builds to clients that set\n" + //
+			"\tminimaven.daemon=true\n" + //
+			"stop-daemon\n" + //
+			"\tstop the running daemon\n\n" + //
 			"Options:\n" + //
 			"-D<key>=<value>\n" + //
 			"\tset a system property");
-		System.exit(1);
+		return 1;
 	}
 
 	public static void main(final String[] args) throws Exception {
+		final int status = execute(args, new File(System.getProperty("user.dir")),
+			System.err, null);
+		if (status != 0) System.exit(status);
+	}
+
+	/**
+	 * Executes a MiniMaven command.
+	 *
+	 * @param args the command-line arguments
+	 * @param directory the directory containing the project
+	 * @param err where to print messages to
+	 * @param daemon the daemon providing the build environment, or null when
+	 *          not running in a daemon
+	 * @return the exit status
+	 * @throws Exception
+	 */
+	public static int execute(final String[] args, final File directory,
+		final PrintStream err, final BuildDaemon daemon) throws Exception
+	{
 		int offset;
 		for (offset = 0; offset < args.length && args[offset].charAt(
 			0) == '-'; offset++)
@@ -95,21 +137,65 @@ public class MiniMaven {
 				System.setProperty("minimaven.updateinterval", "0");
 			}
 			else {
-				System.err.println("Unknown command: " + option);
-				usage();
+				err.println("Unknown command: " + option);
+				return usage(err);
 			}
 		}
 		String command = "compile-and-run";
 		if (args.length == offset + 1) command = args[offset];
-		else if (args.length > offset + 1) usage();
+		else if (args.length > offset + 1) return usage(err);
 
-		final PrintStream err = System.err;
-		final BuildEnvironment env = new BuildEnvironment(err, //
-			"true".equals(getSystemProperty("minimaven.download.automatically",
-				"true")), //
-			"true".equals(getSystemProperty("minimaven.verbose", "false")), //
-			"true".equals(getSystemProperty("minimaven.debug", "false")));
-		final MavenProject root = env.parse(new File("pom.xml"), null);
+		if (daemon == null) {
+			if ("true".equals(System.getProperty("minimaven.daemon")) &&
+				BuildDaemon.COMMANDS.contains(command))
+			{
+				final Integer status = BuildDaemon.send(args, directory, err);
+				if (status != null) return status;
+			}
+			if (command.equals("daemon")) {
+				new BuildDaemon(err).serve();
+				return 0;
+			}
+			if (command.equals("stop-daemon")) return BuildDaemon.stop(err);
+		}
+
+		final BuildEnvironment env = daemon != null ? daemon.getEnvironment(
+			directory, err) : newBuildEnvironment(err);
+		try {
+			return execute(command, env, directory, err);
+		}
+		finally {
+			// the shutdown hook would not run for a daemon, or after a crash
+			env.saveLastUsed();
+			// do not keep the jars open (and on Windows, locked) between commands
+			FileManagerPool.invalidate();
+		}
+	}
+
+	private static int execute(String command, final BuildEnvironment env,
+		final File directory, final PrintStream err) throws Exception
+	{
+		if (command.equals("serve")) {
+			serve(env);
+			return 0;
+		}
+		if (command.equals("serve-cache")) return serveCache(env);
+		if (command.equals("verify-repository")) {
+			final RepositoryVerifier verifier = new RepositoryVerifier(env);
+			verifier.setAction(getSystemProperty("minimaven.verify.action",
+				"quarantine"));
+			return verifier.verify() > 0 ? 1 : 0;
+		}
+		if (command.equals("prune-repository")) {
+			prune(env, directory);
+			return 0;
+		}
+		if (command.equals("import-dependencies")) {
+			final int failed = new DependencyBundle(env).importBundle(
+				DependencyBundle.getBundleFile(directory));
+			return failed > 0 ? 1 : 0;
+		}
+		final MavenProject root = env.parse(new File(directory, "pom.xml"), null);
 		final String artifactId = getSystemProperty("artifactId", root
 			.getArtifactId().equals("pom-ij-base") || root.getArtifactId().equals(
 				"pom-imagej") ? "ij-app" : root.getArtifactId());
@@ -118,46 +204,54 @@ public class MiniMaven {
 		if (pom == null) {
 			final String specifiedArtifactId = System.getProperty("artifactId");
 			if (specifiedArtifactId != null) {
-				System.err.println("Could not find project for artifactId '" +
-					artifactId + "'!");
-				System.exit(1);
+				err.println("Could not find project for artifactId '" + artifactId +
+					"'!");
+				return 1;
 			}
 			pom = root;
 		}
+		if (!command.equals("clean") && !command.equals("list")) {
+			pom.checkForUpdates();
+		}
 		if (command.equals("compile") || command.equals("build") || command.equals(
 			"compile-and-run"))
 		{
 			pom.build();
 			if (command.equals("compile-and-run")) command = "run";
-			else return;
+			else return 0;
 		}
 		else if (command.equals("jar") || command.equals("jars")) {
 			if (!pom.getBuildFromSource()) {
-				System.err.println("Cannot build " + pom + " from source");
-				System.exit(1);
+				err.println("Cannot build " + pom + " from source");
+				return 1;
 			}
 			pom.buildJar();
 			if (command.equals("jars")) pom.copyDependencies(pom.getTarget(), true);
-			return;
+			return 0;
 		}
 		else if (command.equals("install")) try {
 			pom.buildAndInstall();
-			return;
+			return 0;
 		}
 		catch (final Throwable t) {
-			t.printStackTrace();
-			System.exit(1);
+			t.printStackTrace(err);
+			return 1;
 		}
 		if (command.equals("clean")) pom.clean();
 		else if (command.equals("get") || command.equals("get-dependencies")) {
 			pom.downloadDependencies();
 		}
+		else if (command.equals("export-dependencies")) {
+			final File bundle = DependencyBundle.getBundleFile(directory);
+			final int count = new DependencyBundle(env).export(pom, bundle);
+			err.println("Wrote " + count + " files to " + bundle);
+		}
 		else if (command.equals("run")) {
 			final String mainClass = getSystemProperty("mainClass", pom
 				.getMainClass());
 			if (mainClass == null) {
 				err.println("No main class specified in pom " + pom.getCoordinate());
-				System.exit(1);
+				return 1;
 			}
 			final String[] paths = pom.getClassPath(false).split(File.pathSeparator);
 			final URL[] urls = new URL[paths.length];
@@ -187,7 +281,7 @@ public class MiniMaven {
 				}
 			}
 			for (final MavenProject pom2 : result)
-				System.err.println(pom2);
+				err.println(pom2);
 		}
 		else if (command.equals("dependency-tree")) {
 			final MavenProject parent = pom.getParent();
@@ -198,8 +292,128 @@ public class MiniMaven {
 		}
 		else {
 			err.println("Unhandled command: " + command);
-			usage();
+			return usage(err);
+		}
+		return 0;
+	}
+
+	protected static BuildEnvironment newBuildEnvironment(final PrintStream err) {
+		return new BuildEnvironment(err, //
+			"true".equals(getSystemProperty("minimaven.download.automatically",
+				"true")), //
+			"true".equals(getSystemProperty("minimaven.verbose", "false")), //
+			"true".equals(getSystemProperty("minimaven.debug", "false")));
+	}
+
+	/**
+	 * Serves the local repository over HTTP until the process is killed.
+	 * <p>
+	 * The port is configured via <tt>minimaven.serve.port</tt> (default: 8081),
+	 * the address to listen on via <tt>minimaven.serve.address</tt> (default:
+	 * the loopback interface only; use <tt>0.0.0.0</tt> to serve the LAN).
+	 * Setting <tt>minimaven.serve.upstream</tt> to <tt>true</tt> fetches missing
+	 * artifacts from the default repositories; alternatively, it can be set to a
+	 * comma-separated list of repository URLs.
+	 * </p>
+	 */
+	protected static void serve(final BuildEnvironment env) throws Exception {
+		final int port = Integer.parseInt(getSystemProperty("minimaven.serve.port",
+			"8081"));
+		final String address = System.getProperty("minimaven.serve.address");
+		final List<String> upstream = new ArrayList<String>();
+		final String upstreamProperty = System.getProperty(
+			"minimaven.serve.upstream");
+		if ("true".equalsIgnoreCase(upstreamProperty)) {
+			upstream.add(BuildEnvironment.SCIJAVA_REPOSITORY);
+			upstream.add(BuildEnvironment.CENTRAL_REPOSITORY);
+		}
+		else if (upstreamProperty != null && !upstreamProperty.equals("") &&
+			!"false".equalsIgnoreCase(upstreamProperty))
+		{
+			for (final String url : upstreamProperty.split(",")) {
+				if (!url.trim().equals("")) upstream.add(url.trim());
+			}
+		}
+		if (env.offlineMode) upstream.clear();
+		// only serve other machines when asked to
+		final RepositoryServer server = new RepositoryServer(env,
+			address == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port) : new InetSocketAddress(address, port), upstream);
+		env.err.println("Serving " + env.getMavenRepository() + " on port " +
+			server.getPort() + (upstream.isEmpty() ? "" : " (upstream: " +
+				upstream + ")"));
+		server.serve();
+	}
+
+	/**
+	 * Serves the build cache over HTTP until the process is killed.
+	 * <p>
+	 * The port is configured via <tt>minimaven.serve.port</tt> (default: 8082),
+	 * the address to listen on via <tt>minimaven.serve.address</tt> (default:
+	 * the loopback interface only). The cache is served read-only unless
+	 * <tt>minimaven.serve.readonly</tt> is set to <tt>false</tt>; uploads then
+	 * need to send the secret configured via <tt>minimaven.serve.token</tt>
+	 * (clients set <tt>minimaven.cache.remote.token</tt>).
+	 * </p>
+	 *
+	 * @return the exit status
+	 */
+	protected static int serveCache(final BuildEnvironment env)
+		throws Exception
+	{
+		final int port = Integer.parseInt(getSystemProperty("minimaven.serve.port",
+			"8082"));
+		final String address = System.getProperty("minimaven.serve.address");
+		final BuildCache cache = env.buildCache != null ? env.buildCache
+			: new BuildCache(BuildCache.getDefaultDirectory());
+		final String token = System.getProperty("minimaven.serve.token");
+		final boolean readOnly = !"false".equalsIgnoreCase(System.getProperty(
+			"minimaven.serve.readonly"));
+		if (!readOnly && (token == null || token.equals(""))) {
+			env.err.println("Accepting uploads requires minimaven.serve.token");
+			return 1;
+		}
+		final BuildCacheServer server = new BuildCacheServer(cache,
+			address == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port) : new InetSocketAddress(address, port), AbstractHTTPServer
+					.newExecutor("cache-server", AbstractHTTPServer.MAX_CONNECTIONS), env
+						.getErr());
+		server.setVerbose(env.verbose);
+		server.setReadOnly(readOnly);
+		server.setToken(token);
+		env.err.println("Serving the build cache " + cache.getDirectory() +
+			" on port " + server.getPort());
+		server.serve();
+		return 0;
+	}
+
+	/**
+	 * Deletes unused artifacts from the local repository.
+	 * <p>
+	 * Artifacts not used for <tt>minimaven.prune.days</tt> days (default: 90)
+	 * are deleted, unless they are listed in the file specified by
+	 * <tt>minimaven.prune.keep</tt>, or needed by the project in the given
+	 * directory. Setting <tt>minimaven.prune.dryrun</tt> to <tt>true</tt> only
+	 * reports what would be deleted.
+	 * </p>
+	 */
+	protected static void prune(final BuildEnvironment env,
+		final File directory) throws Exception
+	{
+		final RepositoryPruner pruner = new RepositoryPruner(env);
+		pruner.setDays(Integer.parseInt(getSystemProperty("minimaven.prune.days",
+			"90")));
+		pruner.setDryRun("true".equals(getSystemProperty("minimaven.prune.dryrun",
+			"false")));
+		final String keep = System.getProperty("minimaven.prune.keep");
+		if (keep != null) {
+			final File file = new File(keep);
+			pruner.readKeepFile(file.isAbsolute() ? file : new File(directory,
+				keep));
 		}
+		final File pom = new File(directory, "pom.xml");
+		if (pom.exists()) pruner.keepClosure(env.parse(pom, null));
+		pruner.prune();
 	}
 
 	protected static void showDependencyTree(final PrintStream err,
@@ -0,0 +1,361 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the responses of remote repositories, or replays recorded ones.
+ * <p>
+ * In record mode, every request made by {@link BuildEnvironment#openStream}
+ * is logged to <tt>requests.tsv</tt> in the capture directory: the status, the
+ * SHA-1 and the length of the payload, the URL and the response headers, one
+ * request per line, separated by tabs. The payloads are stored in
+ * <tt>objects/</tt>, named after their SHA-1.
+ * </p>
+ * <p>
+ * In replay mode, no network connections are made: the responses are served
+ * from the capture, in the order they were recorded (per URL; the last
+ * response for a URL is repeated). Requests for URLs that were not recorded
+ * fail with <tt>404 Not Found</tt>, and are counted, so that a change that
+ * makes the resolver probe more URLs shows up.
+ * </p>
+ */
+public class RepositoryCapture {
+
+	private final static String HEADER = "# MiniMaven capture v1";
+	private final static String NO_PAYLOAD = "-";
+	// requests that were interrupted before the payload was complete
+	private final static int ABORTED = -1;
+
+	protected final File directory;
+	protected final boolean replay;
+	private final File objects;
+	private final long start = System.currentTimeMillis();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private PrintWriter log;
+	private Map<String, List<Record>> records;
+	private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+
+	private static class Record {
+
+		private int status;
+		private String sha1;
+	}
+
+	private RepositoryCapture(final File directory, final boolean replay) {
+		this.directory = directory;
+		this.replay = replay;
+		objects = new File(directory, "objects");
+	}
+
+	/**
+	 * Starts recording into the given directory.
+	 * <p>
+	 * If the directory contains a capture already, the new requests are
+	 * appended.
+	 * </p>
+	 *
+	 * @param directory the capture directory
+	 * @return the capture
+	 * @throws IOException
+	 */
+	public static RepositoryCapture record(final File directory)
+		throws IOException
+	{
+		final RepositoryCapture result = new RepositoryCapture(directory, false);
+		if (!result.objects.isDirectory() && !result.objects.mkdirs()) {
+			throw new IOException("Could not make directory " + result.objects);
+		}
+		final File file = new File(directory, "requests.tsv");
+		final boolean isNew = !file.exists();
+		result.log = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+			file, true), "UTF-8"));
+		if (isNew) result.log.println(HEADER);
+		result.log.flush();
+		return result;
+	}
+
+	/**
+	 * Loads a capture for replay.
+	 *
+	 * @param directory the capture directory
+	 * @return the capture
+	 * @throws IOException
+	 */
+	public static RepositoryCapture replay(final File directory)
+		throws IOException
+	{
+		final RepositoryCapture result = new RepositoryCapture(directory, true);
+		result.records = new HashMap<String, List<Record>>();
+		final File file = new File(directory, "requests.tsv");
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) throw new IOException("Not a capture: " + file);
+			for (;;) {
+				line = reader.readLine();
+				if (line == null) break;
+				final String[] fields = line.split("\t");
+				if (fields.length < 4) continue;
+				final Record record = new Record();
+				try {
+					record.status = Integer.parseInt(fields[0]);
+				}
+				catch (final NumberFormatException e) {
+					continue;
+				}
+				if (record.status == ABORTED) continue;
+				record.sha1 = fields[1];
+				List<Record> list = result.records.get(fields[3]);
+				if (list == null) {
+					list = new ArrayList<Record>();
+					result.records.put(fields[3], list);
+				}
+				list.add(record);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	public boolean isReplay() {
+		return replay;
+	}
+
+	/**
+	 * Serves a recorded response.
+	 *
+	 * @param url the URL
+	 * @return the recorded payload
+	 * @throws HTTPException if the recorded status was not <tt>200 OK</tt>, or
+	 *           if the URL was not recorded
+	 * @throws IOException
+	 */
+	public InputStream replay(final URL url) throws IOException {
+		requests.incrementAndGet();
+		final String key = url.toString();
+		final Record record;
+		synchronized (this) {
+			final List<Record> list = records.get(key);
+			if (list == null) {
+				misses.incrementAndGet();
+				throw new HTTPException(404, "Not in capture: " + url);
+			}
+			final Integer cursor = cursors.get(key);
+			final int index = cursor == null ? 0 : cursor;
+			record = list.get(Math.min(index, list.size() - 1));
+			cursors.put(key, index + 1);
+		}
+		if (record.status != 200) {
+			throw new HTTPException(record.status, "HTTP " + record.status +
+				" downloading " + url + " (replayed)");
+		}
+		final File object = new File(objects, record.sha1);
+		if (!object.exists()) {
+			throw new FileNotFoundException("Missing payload " + object + " for " +
+				url);
+		}
+		return new FileInputStream(object);
+	}
+
+	/**
+	 * Records a response without payload, e.g. a <tt>404 Not Found</tt>.
+	 *
+	 * @param url the URL
+	 * @param status the status code
+	 * @param headers the response headers, or null
+	 */
+	public void record(final URL url, final int status,
+		final Map<String, List<String>> headers)
+	{
+		requests.incrementAndGet();
+		log(url, status, NO_PAYLOAD, 0, headers);
+	}
+
+	/**
+	 * Records a response with payload.
+	 * <p>
+	 * The payload is recorded while the returned stream is read. If the stream
+	 * is closed prematurely, the rest of the payload is read, too, unless the
+	 * download was cancelled by interrupting the thread.
+	 * </p>
+	 *
+	 * @param url the URL
+	 * @param headers the response headers, or null
+	 * @param in the payload
+	 * @return a stream returning the same payload
+	 * @throws IOException
+	 */
+	public InputStream record(final URL url,
+		final Map<String, List<String>> headers, final InputStream in)
+		throws IOException
+	{
+		requests.incrementAndGet();
+		final File tmp = File.createTempFile("payload-", ".tmp", objects);
+		final OutputStream out = new FileOutputStream(tmp);
+		final MessageDigest digest = Checksums.newSHA1();
+		return new FilterInputStream(in) {
+
+			private long length;
+			private boolean eof, closed;
+
+			@Override
+			public int read() throws IOException {
+				final int b = in.read();
+				if (b < 0) eof = true;
+				else {
+					digest.update((byte) b);
+					out.write(b);
+					length++;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException
+			{
+				final int result = in.read(buffer, offset, count);
+				if (result < 0) eof = true;
+				else {
+					digest.update(buffer, offset, result);
+					out.write(buffer, offset, result);
+					length += result;
+				}
+				return result;
+			}
+
+			@Override
+			public long skip(final long count) throws IOException {
+				final byte[] buffer = new byte[(int) Math.min(count, 65536)];
+				final int result = read(buffer, 0, buffer.length);
+				return result < 0 ? 0 : result;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) return;
+				closed = true;
+				boolean complete = eof;
+				try {
+					final byte[] buffer = new byte[65536];
+					while (!eof && !Thread.currentThread().isInterrupted()) {
+						read(buffer, 0, buffer.length);
+					}
+					complete = eof;
+				}
+				catch (final IOException e) {
+					// the payload is incomplete
+				}
+				finally {
+					in.close();
+					out.close();
+				}
+				if (!complete) {
+					tmp.delete();
+					log(url, ABORTED, NO_PAYLOAD, length, headers);
+					return;
+				}
+				final String sha1 = Checksums.toHex(digest.digest());
+				final File object = new File(objects, sha1);
+				if (object.exists() || !tmp.renameTo(object)) tmp.delete();
+				log(url, 200, sha1, length, headers);
+			}
+		};
+	}
+
+	private synchronized void log(final URL url, final int status,
+		final String sha1, final long length,
+		final Map<String, List<String>> headers)
+	{
+		final StringBuilder builder = new StringBuilder();
+		builder.append(status).append('\t').append(sha1).append('\t').append(
+			length).append('\t').append(url);
+		if (headers != null) {
+			for (final Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				// the status line has no name
+				if (entry.getKey() == null) continue;
+				for (final String value : entry.getValue()) {
+					builder.append('\t').append(entry.getKey()).append(": ").append(
+						value.replace('\t', ' '));
+				}
+			}
+		}
+		log.println(builder.toString());
+		log.flush();
+	}
+
+	/**
+	 * @return the number of requests recorded or replayed so far
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests for URLs that were not in the capture
+	 */
+	public int getMissCount() {
+		return misses.get();
+	}
+
+	public String getSummary() {
+		return (replay ? "Replayed " : "Recorded ") + requests.get() +
+			" requests" + (replay ? " (" + misses.get() + " not in capture)" : "") +
+			" in " + (System.currentTimeMillis() - start) + "ms " + (replay ? "from "
+				: "to ") + directory;
+	}
+
+	public synchronized void close() {
+		if (log != null) log.close();
+	}
+}
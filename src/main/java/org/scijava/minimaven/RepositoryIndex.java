@@ -0,0 +1,435 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Indexes the files of the local repository.
+ * <p>
+ * Resolving a dependency probes the local repository for a number of files:
+ * <tt>.pom</tt> and <tt>.jar</tt> files, and several kinds of metadata. When
+ * the local repository lives on a network file system, each of those probes
+ * is a round trip to the server. This class maps the paths of all files in
+ * the repository (relative to it) to their modification times and sizes, so
+ * that the probes become simple look-ups in memory.
+ * </p>
+ * <p>
+ * The index is built by walking the repository in parallel and is persisted
+ * in a binary file which is memory-mapped when loading it: a header (magic,
+ * version, creation time) followed by one record per file, consisting of the
+ * length of the UTF-8 encoded path, the path itself, the modification time
+ * and the size. Files written by MiniMaven are appended as new records (a
+ * negative modification time marks a removed file), under an
+ * {@link ArtifactLock}; later records override earlier ones. The index is
+ * rebuilt from scratch once it is older than the given maximal age, to pick
+ * up changes made by other tools.
+ * </p>
+ */
+public class RepositoryIndex {
+
+	private final static int MAGIC = 0x4d4d5249; // "MMRI"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 16;
+	private final static String UTF8 = "UTF-8";
+
+	protected final File repository, indexFile;
+	private long created;
+	// maps relative paths of files and directories to their entries
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private static class Entry {
+
+		private long lastModified, length;
+		// the names of the children; null for files
+		private Set<String> children;
+	}
+
+	/**
+	 * Loads the index of a local repository, (re-)building it if needed.
+	 *
+	 * @param repository the local repository
+	 * @param indexFile where to persist the index
+	 * @param maxAge the age (in milliseconds) after which the index is rebuilt
+	 * @param threads the number of threads to walk the repository with
+	 * @param env the build environment, for reporting
+	 * @return the index
+	 */
+	public static RepositoryIndex load(final File repository,
+		final File indexFile, final long maxAge, final int threads,
+		final BuildEnvironment env)
+	{
+		final RepositoryIndex index = new RepositoryIndex(repository, indexFile);
+		try {
+			if (index.read() && System.currentTimeMillis() - index.created < maxAge) {
+				return index;
+			}
+		}
+		catch (final IOException e) {
+			if (env.debug) e.printStackTrace(env.err);
+		}
+		if (env.verbose) env.err.println("Indexing " + repository);
+		final long start = System.currentTimeMillis();
+		index.rebuild(threads);
+		if (env.verbose) {
+			env.err.println("Indexed " + index.entries.size() + " entries in " +
+				(System.currentTimeMillis() - start) + "ms");
+		}
+		try {
+			index.write();
+		}
+		catch (final IOException e) {
+			env.err.println("Warning: could not write " + indexFile + ": " + e
+				.getMessage());
+		}
+		return index;
+	}
+
+	protected RepositoryIndex(final File repository, final File indexFile) {
+		this.repository = repository;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Determines whether a file or directory exists.
+	 *
+	 * @param path the path relative to the repository, with forward slashes
+	 * @return whether the index knows about the path
+	 */
+	public synchronized boolean exists(final String path) {
+		return entries.containsKey(path);
+	}
+
+	/**
+	 * Returns the modification time of a file.
+	 *
+	 * @param path the path relative to the repository, with forward slashes
+	 * @return the modification time, or 0 if the file does not exist (just like
+	 *         {@link File#lastModified()})
+	 */
+	public synchronized long lastModified(final String path) {
+		final Entry entry = entries.get(path);
+		return entry == null ? 0 : entry.lastModified;
+	}
+
+	/**
+	 * Lists the contents of a directory.
+	 *
+	 * @param path the path relative to the repository, with forward slashes
+	 * @return the names of the files and subdirectories, or null if the path is
+	 *         not a directory (just like {@link File#list()})
+	 */
+	public synchronized String[] list(final String path) {
+		final Entry entry = entries.get(path);
+		if (entry == null || entry.children == null) return null;
+		return entry.children.toArray(new String[entry.children.size()]);
+	}
+
+	/**
+	 * Records that a file was written to, or removed from, the repository.
+	 * <p>
+	 * The change is appended to the index file right away, so that other
+	 * MiniMaven processes see it the next time they load the index.
+	 * </p>
+	 *
+	 * @param path the path relative to the repository, with forward slashes
+	 * @param file the file
+	 * @throws IOException
+	 */
+	public synchronized void update(final String path, final File file)
+		throws IOException
+	{
+		final BasicFileAttributes attributes = stat(file);
+		final long lastModified = attributes == null ? -1 : attributes
+			.lastModifiedTime().toMillis();
+		final long length = attributes == null ? 0 : attributes.size();
+		final Entry entry = entries.get(path);
+		if (entry == null ? lastModified < 0 : entry.lastModified == lastModified &&
+			entry.length == length)
+		{
+			return;
+		}
+		put(path, lastModified, length);
+		if (!indexFile.exists()) return;
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(buffer);
+		writeRecord(out, path, lastModified, length);
+		out.close();
+		final ArtifactLock lock = ArtifactLock.lock(indexFile.getParentFile(),
+			null, false);
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+				long position = channel.size();
+				while (bytes.hasRemaining()) {
+					position += channel.write(bytes, position);
+				}
+			}
+			finally {
+				raf.close();
+			}
+		}
+		finally {
+			lock.close();
+		}
+	}
+
+	private void put(final String path, final long lastModified,
+		final long length)
+	{
+		if (lastModified < 0) {
+			final Entry entry = entries.remove(path);
+			if (entry == null) return;
+			final int slash = path.lastIndexOf('/');
+			final Entry parent = entries.get(slash < 0 ? "" : path.substring(0,
+				slash));
+			if (parent != null && parent.children != null) {
+				parent.children.remove(path.substring(slash + 1));
+			}
+			return;
+		}
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(path, entry);
+			// register with the parent directories
+			String child = path;
+			for (;;) {
+				final int slash = child.lastIndexOf('/');
+				final String parentPath = slash < 0 ? "" : child.substring(0, slash);
+				Entry parent = entries.get(parentPath);
+				final boolean isNew = parent == null;
+				if (isNew) {
+					parent = new Entry();
+					entries.put(parentPath, parent);
+				}
+				if (parent.children == null) {
+					parent.children = new LinkedHashSet<String>();
+				}
+				parent.children.add(child.substring(slash + 1));
+				if (!isNew || slash < 0) break;
+				child = parentPath;
+			}
+		}
+		entry.lastModified = lastModified;
+		entry.length = length;
+	}
+
+	/**
+	 * Reads the persisted index.
+	 *
+	 * @return whether the index could be read completely
+	 * @throws IOException
+	 */
+	protected synchronized boolean read() throws IOException {
+		if (!indexFile.exists()) return false;
+		final RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				0, channel.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC ||
+				buffer.getInt() != VERSION)
+			{
+				return false;
+			}
+			created = buffer.getLong();
+			byte[] bytes = new byte[256];
+			while (buffer.hasRemaining()) {
+				if (buffer.remaining() < 2) return false;
+				final int length = buffer.getShort() & 0xffff;
+				// a truncated record, e.g. when a process was killed while appending
+				if (buffer.remaining() < length + 16) return false;
+				if (bytes.length < length) bytes = new byte[length];
+				buffer.get(bytes, 0, length);
+				final String path = new String(bytes, 0, length, UTF8);
+				final long lastModified = buffer.getLong();
+				put(path, lastModified, buffer.getLong());
+			}
+			return true;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the complete index, replacing the index file atomically.
+	 *
+	 * @throws IOException
+	 */
+	protected synchronized void write() throws IOException {
+		final File directory = indexFile.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		final ArtifactLock lock = ArtifactLock.lock(directory, null, false);
+		try {
+			final File tmp = new File(directory, indexFile.getName() + ".tmp");
+			final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(created);
+				for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+					final Entry value = entry.getValue();
+					if (value.children != null) continue;
+					writeRecord(out, entry.getKey(), value.lastModified, value.length);
+				}
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(indexFile)) {
+				indexFile.delete();
+				if (!tmp.renameTo(indexFile)) {
+					throw new IOException("Could not rename " + tmp + " to " +
+						indexFile);
+				}
+			}
+		}
+		finally {
+			lock.close();
+		}
+	}
+
+	private static void writeRecord(final DataOutputStream out,
+		final String path, final long lastModified, final long length)
+		throws IOException
+	{
+		final byte[] bytes = path.getBytes(UTF8);
+		if (bytes.length > 0xffff) throw new IOException("Path too long: " + path);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+		out.writeLong(lastModified);
+		out.writeLong(length);
+	}
+
+	/**
+	 * Walks the repository, in parallel.
+	 *
+	 * @param threads the number of threads to use
+	 */
+	protected synchronized void rebuild(final int threads) {
+		entries.clear();
+		created = System.currentTimeMillis();
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			final List<Object[]> files = pool.invoke(new Walker(repository, ""));
+			for (final Object[] file : files) {
+				put((String) file[0], (Long) file[1], (Long) file[2]);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Lists a directory recursively, forking a task per subdirectory.
+	 * <p>
+	 * Hidden files and directories (such as <tt>.minimaven/</tt> and the
+	 * <tt>.minimaven.lock</tt> files) as well as partial downloads are skipped.
+	 * </p>
+	 */
+	private static class Walker extends RecursiveTask<List<Object[]>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+		private final String prefix;
+
+		private Walker(final File directory, final String prefix) {
+			this.directory = directory;
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected List<Object[]> compute() {
+			final List<Object[]> result = new ArrayList<Object[]>();
+			final File[] list = directory.listFiles();
+			if (list == null) return result;
+			final List<Walker> subtasks = new ArrayList<Walker>();
+			for (final File file : list) {
+				final String name = file.getName();
+				if (name.startsWith(".") || name.endsWith(".new") || name.endsWith(
+					".tmp"))
+				{
+					continue;
+				}
+				final BasicFileAttributes attributes = stat(file);
+				if (attributes == null) continue;
+				if (attributes.isDirectory()) {
+					final Walker walker = new Walker(file, prefix + name + "/");
+					walker.fork();
+					subtasks.add(walker);
+				}
+				else if (attributes.isRegularFile()) {
+					result.add(new Object[] { prefix + name, attributes
+						.lastModifiedTime().toMillis(), attributes.size() });
+				}
+			}
+			for (final Walker walker : subtasks) {
+				result.addAll(walker.join());
+			}
+			return result;
+		}
+	}
+
+	private static BasicFileAttributes stat(final File file) {
+		try {
+			return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		}
+		catch (final IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Removes artifacts that are no longer used from the local repository.
+ * <p>
+ * MiniMaven records when the artifacts in the local repository are used (see
+ * {@link BuildEnvironment#markUsed(File)}). Artifacts that were not used for a
+ * given number of days are deleted, as are superseded builds of snapshots,
+ * i.e. timestamped files other than the ones the snapshot metadata refers to.
+ * </p>
+ * <p>
+ * Artifacts listed in a keep file (one <tt>groupId:artifactId[:version]</tt>
+ * per line) are never deleted, and neither are the dependencies of the
+ * current project.
+ * </p>
+ */
+public class RepositoryPruner {
+
+	private final static Pattern SNAPSHOT_BUILD = Pattern.compile(
+		"(\\d{8}\\.\\d{6})-(\\d+)([-.].*)");
+
+	protected final BuildEnvironment env;
+	protected int days = 90;
+	protected boolean dryRun;
+	// groupId:artifactId or groupId:artifactId:version
+	private final Set<String> keep = new HashSet<String>();
+	// version directories needed by the current project
+	private final Set<File> closure = new HashSet<File>();
+	private int prunedArtifacts, prunedBuilds;
+	private long prunedBytes;
+
+	public RepositoryPruner(final BuildEnvironment env) {
+		this.env = env;
+	}
+
+	public void setDays(final int days) {
+		this.days = days;
+	}
+
+	public void setDryRun(final boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Keeps an artifact, or all versions of an artifact.
+	 *
+	 * @param coordinate <tt>groupId:artifactId</tt> or
+	 *          <tt>groupId:artifactId:version</tt>
+	 */
+	public void keep(final String coordinate) {
+		keep.add(coordinate);
+	}
+
+	/**
+	 * Reads a keep file.
+	 * <p>
+	 * Empty lines and lines starting with <tt>#</tt> are ignored.
+	 * </p>
+	 *
+	 * @param file the file listing the artifacts to keep
+	 * @throws IOException
+	 */
+	public void readKeepFile(final File file) throws IOException {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			for (;;) {
+				String line = reader.readLine();
+				if (line == null) break;
+				line = line.trim();
+				if (line.equals("") || line.startsWith("#")) continue;
+				keep(line);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Keeps the dependencies of a project and its modules, as well as their
+	 * parent POMs.
+	 *
+	 * @param project the project
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	public void keepClosure(final MavenProject project) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		addToClosure(project);
+		for (final MavenProject dependency : project.getDependencies(false,
+			false))
+		{
+			addToClosure(dependency);
+		}
+		for (final MavenProject child : project.getChildren()) {
+			keepClosure(child);
+		}
+	}
+
+	private void addToClosure(MavenProject project) {
+		for (; project != null; project = project.getParent()) {
+			if (project.directory != null) closure.add(project.directory);
+		}
+	}
+
+	/**
+	 * Prunes the local repository.
+	 *
+	 * @return the number of bytes freed (or that would be freed, in a dry run)
+	 */
+	public long prune() {
+		final File repository = env.getMavenRepository();
+		final List<File> versionDirectories = new ArrayList<File>();
+		findVersionDirectories(repository, versionDirectories);
+		final long now = System.currentTimeMillis();
+		final long since = env.getUsageTrackedSince();
+		prunedArtifacts = prunedBuilds = 0;
+		prunedBytes = 0;
+		for (final File directory : versionDirectories) {
+			try {
+				if (isKept(directory)) {
+					pruneSnapshotBuilds(directory);
+					continue;
+				}
+				// artifacts that were not tracked yet count as used when tracking
+				// started, and when they were last written
+				long lastUsed = Math.max(env.getLastUsed(directory), since);
+				final File[] files = directory.listFiles();
+				if (files == null) continue;
+				for (final File file : files) {
+					lastUsed = Math.max(lastUsed, file.lastModified());
+				}
+				if (now - lastUsed > days * 24l * 60 * 60 * 1000) delete(directory);
+				else pruneSnapshotBuilds(directory);
+			}
+			catch (final IOException e) {
+				env.err.println("Could not prune " + directory + ": " + e
+					.getMessage());
+				if (env.debug) e.printStackTrace(env.err);
+			}
+		}
+		if (!dryRun) env.saveLastUsed();
+		env.err.println((dryRun ? "Would prune " : "Pruned ") + prunedArtifacts +
+			" unused artifact" + (prunedArtifacts == 1 ? "" : "s") + " and " +
+			prunedBuilds + " superseded snapshot build" + (prunedBuilds == 1 ? ""
+				: "s") + " (" + (prunedBytes >> 20) + " MB)");
+		return prunedBytes;
+	}
+
+	/**
+	 * Finds the version directories, i.e. the directories containing
+	 * <tt>&lt;artifactId&gt;-*.pom</tt> or <tt>.jar</tt> files.
+	 */
+	private void findVersionDirectories(final File directory,
+		final List<File> result)
+	{
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		final File parent = directory.getParentFile();
+		final String prefix = parent == null ? null : parent.getName() + "-";
+		for (final File file : list) {
+			final String name = file.getName();
+			if (prefix != null && name.startsWith(prefix) && (name.endsWith(
+				".pom") || name.endsWith(".jar")) && file.isFile())
+			{
+				result.add(directory);
+				return;
+			}
+		}
+		for (final File file : list) {
+			if (!file.getName().startsWith(".") && file.isDirectory()) {
+				findVersionDirectories(file, result);
+			}
+		}
+	}
+
+	private boolean isKept(final File directory) {
+		if (closure.contains(directory)) return true;
+		final File artifactDirectory = directory.getParentFile();
+		final String path = env.getRepositoryPath(artifactDirectory.getParentFile());
+		final String groupAndArtifact = path.replace('/', '.') + ":" +
+			artifactDirectory.getName();
+		return keep.contains(groupAndArtifact) || keep.contains(groupAndArtifact +
+			":" + directory.getName());
+	}
+
+	/**
+	 * Deletes the timestamped builds of a snapshot that are superseded by a
+	 * newer build.
+	 */
+	private void pruneSnapshotBuilds(final File directory) throws IOException {
+		final String version = directory.getName();
+		if (!version.endsWith("-SNAPSHOT")) return;
+		final String prefix = directory.getParentFile().getName() + "-" + version
+			.substring(0, version.length() - "-SNAPSHOT".length()) + "-";
+		final File[] files = directory.listFiles();
+		if (files == null) return;
+
+		// the current build, according to the metadata, or the newest one
+		String current = null;
+		final File metadata = new File(directory, "maven-metadata-snapshot.xml");
+		if (metadata.exists()) try {
+			final String snapshotVersion = SnapshotPOMHandler.parse(metadata);
+			if (snapshotVersion != null) {
+				current = getBuild(directory.getParentFile().getName() + "-" +
+					snapshotVersion + ".pom", prefix);
+			}
+		}
+		catch (final Exception e) {
+			if (env.debug) e.printStackTrace(env.err);
+		}
+		if (current == null) {
+			for (final File file : files) {
+				final String build = getBuild(file.getName(), prefix);
+				if (build != null && (current == null || compareBuilds(build,
+					current) > 0))
+				{
+					current = build;
+				}
+			}
+		}
+		if (current == null) return;
+
+		final List<File> superseded = new ArrayList<File>();
+		final Set<String> builds = new HashSet<String>();
+		for (final File file : files) {
+			final String build = getBuild(file.getName(), prefix);
+			if (build == null || build.equals(current)) continue;
+			superseded.add(file);
+			builds.add(build);
+		}
+		if (superseded.isEmpty()) return;
+		final ArtifactLock lock = dryRun ? null : env.lockArtifact(directory
+			.getParentFile(), env.err);
+		try {
+			for (final File file : superseded) {
+				deleteFile(file);
+			}
+		}
+		finally {
+			if (lock != null) lock.close();
+		}
+		prunedBuilds += builds.size();
+		if (env.verbose) {
+			env.err.println((dryRun ? "Would prune " : "Pruned ") + builds.size() +
+				" superseded build(s) of " + env.getRepositoryPath(directory));
+		}
+	}
+
+	/**
+	 * Extracts the build (<tt>&lt;timestamp&gt;-&lt;buildNumber&gt;</tt>) from
+	 * the name of a snapshot file.
+	 */
+	private static String getBuild(final String name, final String prefix) {
+		if (!name.startsWith(prefix)) return null;
+		final Matcher matcher = SNAPSHOT_BUILD.matcher(name.substring(prefix
+			.length()));
+		return matcher.matches() ? matcher.group(1) + "-" + matcher.group(2)
+			: null;
+	}
+
+	private static int compareBuilds(final String build1, final String build2) {
+		final int dash1 = build1.indexOf('-'), dash2 = build2.indexOf('-');
+		final int result = build1.substring(0, dash1).compareTo(build2.substring(0,
+			dash2));
+		if (result != 0) return result;
+		return Integer.parseInt(build1.substring(dash1 + 1)) - Integer.parseInt(
+			build2.substring(dash2 + 1));
+	}
+
+	private void delete(final File directory) throws IOException {
+		if (env.verbose || dryRun) {
+			env.err.println((dryRun ? "Would delete " : "Deleting ") + env
+				.getRepositoryPath(directory));
+		}
+		final ArtifactLock lock = dryRun ? null : env.lockArtifact(directory
+			.getParentFile(), env.err);
+		try {
+			final File[] files = directory.listFiles();
+			if (files != null) for (final File file : files) {
+				if (file.isDirectory()) BuildEnvironment.rmRF(file);
+				else deleteFile(file);
+			}
+			if (!dryRun) {
+				directory.delete();
+				env.forgetUsed(directory);
+				env.markUnchecked(new File(directory, "maven-metadata-snapshot.xml"));
+			}
+		}
+		finally {
+			if (lock != null) lock.close();
+		}
+		prunedArtifacts++;
+	}
+
+	private void deleteFile(final File file) throws IOException {
+		prunedBytes += file.length();
+		if (dryRun) return;
+		if (!file.delete()) throw new IOException("Could not delete " + file);
+		env.updateRepositoryIndex(file);
+	}
+}
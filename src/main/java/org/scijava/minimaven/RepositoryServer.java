@@ -0,0 +1,219 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves the local repository over HTTP, in the standard Maven layout.
+ * <p>
+ * This lets one machine with a warm local repository act as the artifact
+ * cache for other MiniMaven (or Maven) instances on the same network: they
+ * simply list this server as their first repository.
+ * </p>
+ * <p>
+ * The local repository stores the <tt>maven-metadata.xml</tt> files under
+ * different names (<tt>maven-metadata-snapshot.xml</tt> and
+ * <tt>maven-metadata-version.xml</tt>); requests for them are mapped
+ * accordingly. If upstream repositories are configured, artifacts that are
+ * missing, and metadata that was not checked within the update interval, are
+ * fetched from there (and cached) first.
+ * </p>
+ */
+public class RepositoryServer extends AbstractHTTPServer {
+
+	protected final BuildEnvironment env;
+	protected final List<String> upstream;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a server for the local repository of the given environment.
+	 *
+	 * @param env the build environment
+	 * @param address the address to listen on
+	 * @param upstream the repositories to fetch missing artifacts from; may be
+	 *          empty
+	 * @throws IOException if the address could not be bound
+	 */
+	public RepositoryServer(final BuildEnvironment env,
+		final InetSocketAddress address, final Collection<String> upstream)
+		throws IOException
+	{
+		this(env, address, upstream, newExecutor("repository-server",
+			MAX_CONNECTIONS));
+	}
+
+	private RepositoryServer(final BuildEnvironment env,
+		final InetSocketAddress address, final Collection<String> upstream,
+		final ExecutorService executor) throws IOException
+	{
+		super(address, executor, env.getErr());
+		this.env = env;
+		this.upstream = new ArrayList<String>(upstream);
+		this.executor = executor;
+		setVerbose(env.verbose);
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		executor.shutdown();
+	}
+
+	@Override
+	protected void handle(final Request request, final Response response)
+		throws IOException
+	{
+		final String method = request.getMethod();
+		if (!method.equals("GET") && !method.equals("HEAD")) {
+			response.sendError(405, null);
+			return;
+		}
+		final String[] segments = getPathSegments(request.getPath());
+		if (segments == null || !isValid(segments)) {
+			response.sendError(400, null);
+			return;
+		}
+		final File file = resolve(segments);
+		if (verbose) {
+			env.err.println(method + " " + request.getPath() + (file == null
+				? " (not found)" : ""));
+		}
+		if (file == null) response.sendError(404, null);
+		else response.sendFile(file, getContentType(file.getName()));
+	}
+
+	/**
+	 * Finds the file corresponding to a request, fetching it from upstream if
+	 * needed.
+	 *
+	 * @param segments the path segments of the request
+	 * @return the file, or null if it is not available
+	 */
+	protected File resolve(final String[] segments) throws IOException {
+		final int last = segments.length - 1;
+		final String name = segments[last];
+		final boolean checksum = name.endsWith(".sha1");
+		final String baseName = checksum ? name.substring(0, name.length() - 5)
+			: name;
+		final String relative = join(segments, last);
+		final File directory = new File(env.localRepository, relative);
+
+		if (baseName.equals("maven-metadata.xml")) {
+			final boolean snapshot = last > 0 && BuildEnvironment.isSnapshotVersion(
+				segments[last - 1]);
+			final File metadata = new File(directory, snapshot
+				? "maven-metadata-snapshot.xml" : "maven-metadata-version.xml");
+			if (!upstream.isEmpty() && (!metadata.exists() || !env.isUpToDate(
+				metadata)))
+			{
+				fetch(relative + "/" + baseName, directory, metadata.getName(),
+					snapshot ? directory.getParentFile() : directory, true);
+			}
+			final File result = checksum ? new File(directory, metadata.getName() +
+				".sha1") : metadata;
+			return result.exists() ? result : null;
+		}
+
+		final File file = new File(directory, name);
+		if (file.exists()) return file;
+		for (final File shared : env.sharedRepositories) {
+			final File sharedFile = new File(shared, relative + "/" + name);
+			if (sharedFile.exists()) return sharedFile;
+		}
+		if (!upstream.isEmpty() && last >= 2) {
+			fetch(relative + "/" + baseName, directory, baseName, directory
+				.getParentFile(), false);
+		}
+		return file.exists() ? file : null;
+	}
+
+	private void fetch(final String path, final File directory,
+		final String fileName, final File artifactDirectory,
+		final boolean metadata) throws IOException
+	{
+		final ArtifactLock lock = env.lockArtifact(artifactDirectory, null);
+		try {
+			final File file = new File(directory, fileName);
+			// fetched by a concurrent request in the meantime?
+			if (file.exists() && (!metadata || env.isUpToDate(file))) return;
+			IOException last = null;
+			for (final String url : env.getMirroredURLs(upstream)) {
+				try {
+					env.downloadAndVerify(url + "/" + path, directory, fileName, null);
+					if (metadata) env.markChecked(file);
+					if (verbose) env.err.println("Fetched " + path + " from " + url);
+					return;
+				}
+				catch (final IOException e) {
+					last = e;
+				}
+				catch (final NoSuchAlgorithmException e) {
+					throw new IOException(e);
+				}
+			}
+			if (env.debug && last != null) last.printStackTrace(env.err);
+		}
+		finally {
+			lock.close();
+		}
+	}
+
+	// do not expose MiniMaven's bookkeeping (lock files, indices)
+	private static boolean isValid(final String[] segments) {
+		for (final String segment : segments) {
+			if (segment.startsWith(".") || segment.endsWith(".new")) return false;
+		}
+		return true;
+	}
+
+	private static String join(final String[] segments, final int count) {
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) builder.append('/');
+			builder.append(segments[i]);
+		}
+		return builder.toString();
+	}
+
+	private static String getContentType(final String name) {
+		if (name.endsWith(".xml") || name.endsWith(".pom")) return "text/xml";
+		if (name.endsWith(".sha1") || name.endsWith(".md5")) return "text/plain";
+		if (name.endsWith(".jar")) return "application/java-archive";
+		return "application/octet-stream";
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the artifacts in the local repository against their checksums.
+ * <p>
+ * Disks running full, or builds being killed, can leave corrupt or truncated
+ * files in the local repository, which are otherwise only noticed when the
+ * compiler or the class loader fails. This class walks the repository in
+ * parallel and compares every file that has a <tt>.sha1</tt> file next to it
+ * (as written by {@link BuildEnvironment#downloadAndVerify}) with its
+ * checksum. Mismatches are reported, moved to <tt>.minimaven/quarantine/</tt>
+ * or re-downloaded, depending on the action (see {@link #setAction(String)}).
+ * </p>
+ */
+public class RepositoryVerifier {
+
+	protected final BuildEnvironment env;
+	protected boolean quarantine = true, redownload;
+	private final AtomicInteger verified = new AtomicInteger();
+
+	public RepositoryVerifier(final BuildEnvironment env) {
+		this.env = env;
+	}
+
+	/**
+	 * Sets what to do with corrupt files.
+	 *
+	 * @param action <tt>report</tt>, <tt>quarantine</tt> (the default) or
+	 *          <tt>redownload</tt>
+	 */
+	public void setAction(final String action) {
+		if ("report".equals(action)) {
+			quarantine = redownload = false;
+		}
+		else if ("quarantine".equals(action)) {
+			quarantine = true;
+			redownload = false;
+		}
+		else if ("redownload".equals(action)) {
+			quarantine = redownload = true;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown action: " + action);
+		}
+	}
+
+	/**
+	 * Verifies the local repository.
+	 *
+	 * @return the number of corrupt files that are still in place
+	 */
+	public int verify() {
+		final File repository = env.getMavenRepository();
+		final long start = System.currentTimeMillis();
+		verified.set(0);
+		final List<File> corrupt;
+		final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime()
+			.availableProcessors());
+		try {
+			corrupt = pool.invoke(new Walker(repository));
+		}
+		finally {
+			pool.shutdown();
+		}
+		Collections.sort(corrupt);
+		int quarantined = 0, redownloaded = 0, failed = 0;
+		for (final File file : corrupt) {
+			try {
+				switch (repair(file)) {
+					case 0:
+						failed++;
+						break;
+					case 1:
+						quarantined++;
+						break;
+					default:
+						redownloaded++;
+				}
+			}
+			catch (final IOException e) {
+				env.err.println("Could not repair " + file + ": " + e.getMessage());
+				if (env.debug) e.printStackTrace(env.err);
+				failed++;
+			}
+		}
+		env.err.println("Verified " + verified.get() + " files in " + (System
+			.currentTimeMillis() - start) + "ms: " + corrupt.size() + " corrupt" +
+			(quarantined > 0 ? ", " + quarantined + " quarantined" : "") +
+			(redownloaded > 0 ? ", " + redownloaded + " re-downloaded" : ""));
+		return failed;
+	}
+
+	/**
+	 * Quarantines and/or re-downloads a corrupt file.
+	 *
+	 * @return 0 if the file is still in place, 1 if it was quarantined, 2 if it
+	 *         was replaced by a good copy
+	 */
+	private int repair(final File file) throws IOException {
+		if (!quarantine) return 0;
+		final File sha1 = new File(file.getPath() + ".sha1");
+		final boolean metadata = file.getName().startsWith("maven-metadata-");
+		// maven-metadata-version.xml lives in the artifact directory itself
+		final File artifactDirectory = file.getName().equals(
+			"maven-metadata-version.xml") ? file.getParentFile() : file
+				.getParentFile().getParentFile();
+		final ArtifactLock lock = env.lockArtifact(artifactDirectory, env.err);
+		try {
+			// it might have been replaced in the meantime
+			if (!file.exists()) return 1;
+			if (Checksums.verify(file, sha1)) return 2;
+			final String path = env.getRepositoryPath(file);
+			final File target = new File(env.getMavenRepository(),
+				".minimaven/quarantine/" + path);
+			final File directory = target.getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			env.rename(file, target);
+			env.updateRepositoryIndex(file);
+			if (sha1.exists()) {
+				env.rename(sha1, new File(target.getPath() + ".sha1"));
+				env.updateRepositoryIndex(sha1);
+			}
+			if (env.verbose) env.err.println("Quarantined " + file);
+			if (metadata) {
+				// fetched again the next time it is needed
+				env.markUnchecked(file);
+				return 1;
+			}
+			if (!redownload || env.offlineMode) return 1;
+			for (final String url : env.getMirroredURLs(Arrays.asList(
+				BuildEnvironment.SCIJAVA_REPOSITORY,
+				BuildEnvironment.CENTRAL_REPOSITORY)))
+			{
+				try {
+					env.downloadAndVerify(url + "/" + path, file.getParentFile(), file
+						.getName(), "Re-downloading " + path);
+					return 2;
+				}
+				catch (final Exception e) {
+					if (env.debug) e.printStackTrace(env.err);
+				}
+			}
+			env.err.println("Could not re-download " + path);
+			return 1;
+		}
+		finally {
+			lock.close();
+		}
+	}
+
+	/**
+	 * Walks a directory recursively, forking a task per subdirectory and per
+	 * file to verify.
+	 */
+	private class Walker extends RecursiveTask<List<File>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+
+		private Walker(final File directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		protected List<File> compute() {
+			final List<File> result = new ArrayList<File>();
+			final File[] list = directory.listFiles();
+			if (list == null) return result;
+			final Set<String> names = new HashSet<String>();
+			for (final File file : list) {
+				names.add(file.getName());
+			}
+			final List<Walker> subtasks = new ArrayList<Walker>();
+			final List<Verifier> verifiers = new ArrayList<Verifier>();
+			for (final File file : list) {
+				final String name = file.getName();
+				if (name.startsWith(".") || name.endsWith(".new") || name.endsWith(
+					".tmp"))
+				{
+					continue;
+				}
+				if (names.contains(name + ".sha1")) {
+					final Verifier verifier = new Verifier(file);
+					verifier.fork();
+					verifiers.add(verifier);
+				}
+				else if (!name.endsWith(".sha1") && file.isDirectory()) {
+					final Walker walker = new Walker(file);
+					walker.fork();
+					subtasks.add(walker);
+				}
+			}
+			for (final Verifier verifier : verifiers) {
+				if (!verifier.join()) result.add(verifier.file);
+			}
+			for (final Walker walker : subtasks) {
+				result.addAll(walker.join());
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Hashes a single file and compares it to its <tt>.sha1</tt> file.
+	 */
+	private class Verifier extends RecursiveTask<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File file;
+
+		private Verifier(final File file) {
+			this.file = file;
+		}
+
+		@Override
+		protected Boolean compute() {
+			verified.incrementAndGet();
+			try {
+				final String expected = Checksums.readSHA1(new File(file.getPath() +
+					".sha1"));
+				if (expected == null) {
+					env.err.println("Invalid checksum: " + file + ".sha1");
+					return false;
+				}
+				final String actual = Checksums.sha1Mapped(file);
+				if (expected.equals(actual)) return true;
+				env.err.println("SHA1 mismatch: " + file + " (expected " + expected +
+					", actual " + actual + ")");
+			}
+			catch (final IOException e) {
+				env.err.println("Could not read " + file + ": " + e.getMessage());
+			}
+			return false;
+		}
+	}
+}
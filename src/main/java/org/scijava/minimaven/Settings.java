@@ -0,0 +1,263 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * The parts of Maven's <tt>settings.xml</tt> that MiniMaven understands.
+ * <p>
+ * These are the location of the local repository, the offline flag and the
+ * mirrors, so that MiniMaven can be pointed at a nearby repository manager
+ * just like Maven.
+ * </p>
+ */
+public class Settings {
+
+	protected String localRepository;
+	protected boolean offline;
+	protected List<Mirror> mirrors = new ArrayList<Mirror>();
+
+	/**
+	 * A <tt>&lt;mirror&gt;</tt> entry.
+	 */
+	public static class Mirror {
+
+		protected String id, url, mirrorOf;
+
+		public Mirror(final String id, final String url, final String mirrorOf) {
+			this.id = id;
+			this.url = url;
+			this.mirrorOf = mirrorOf;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getURL() {
+			return url;
+		}
+
+		/**
+		 * Determines whether this mirror matches the given repository exactly,
+		 * i.e. lists its ID in the <tt>&lt;mirrorOf&gt;</tt> element.
+		 */
+		public boolean matchesExactly(final String repositoryId) {
+			if (mirrorOf == null || repositoryId == null) return false;
+			for (final String pattern : mirrorOf.split(",")) {
+				if (pattern.trim().equals(repositoryId)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Determines whether this mirror matches the given repository, following
+		 * Maven's rules for <tt>*</tt>, <tt>external:*</tt> and <tt>!id</tt>.
+		 */
+		public boolean matches(final String repositoryId, final String url) {
+			if (mirrorOf == null) return false;
+			boolean result = false;
+			for (String pattern : mirrorOf.split(",")) {
+				pattern = pattern.trim();
+				if (pattern.startsWith("!")) {
+					if (pattern.substring(1).equals(repositoryId)) return false;
+				}
+				else if (pattern.equals("*")) result = true;
+				else if (pattern.equals("external:*")) {
+					if (isExternal(url)) result = true;
+				}
+				else if (pattern.equals(repositoryId)) result = true;
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return id + " (" + url + ", mirror of " + mirrorOf + ")";
+		}
+	}
+
+	public String getLocalRepository() {
+		return localRepository;
+	}
+
+	public boolean isOffline() {
+		return offline;
+	}
+
+	public List<Mirror> getMirrors() {
+		return mirrors;
+	}
+
+	/**
+	 * Returns the URL to use instead of the given repository.
+	 *
+	 * @param repositoryId the ID of the repository, or null if unknown
+	 * @param url the URL of the repository
+	 * @return the URL of the matching mirror, or <tt>url</tt> if there is none
+	 */
+	public String getMirrorURL(final String repositoryId, final String url) {
+		for (final Mirror mirror : mirrors) {
+			if (mirror.matchesExactly(repositoryId)) return mirror.url;
+		}
+		for (final Mirror mirror : mirrors) {
+			if (mirror.matches(repositoryId, url)) return mirror.url;
+		}
+		return url;
+	}
+
+	protected static boolean isExternal(final String url) {
+		try {
+			final URI uri = new URI(url);
+			if ("file".equals(uri.getScheme())) return false;
+			final String host = uri.getHost();
+			return host != null && !host.equals("localhost") && !host.equals(
+				"127.0.0.1");
+		}
+		catch (final Exception e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Parses a <tt>settings.xml</tt> file.
+	 *
+	 * @param file the settings; may not exist
+	 * @return the settings (empty if the file does not exist)
+	 */
+	public static Settings parse(final File file) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		if (!file.exists()) return new Settings();
+		try {
+			return parse(new FileInputStream(file));
+		}
+		catch (final SAXException e) {
+			throw new SAXException("Error parsing " + file, e);
+		}
+	}
+
+	public static Settings parse(final InputStream in) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final Settings settings = new Settings();
+		final XMLReader reader = SAXParserFactory.newInstance().newSAXParser()
+			.getXMLReader();
+		reader.setContentHandler(new Handler(settings));
+		try {
+			reader.parse(new InputSource(in));
+		}
+		finally {
+			in.close();
+		}
+		return settings;
+	}
+
+	private static class Handler extends AbstractPOMHandler {
+
+		private final Settings settings;
+		private String prefix = "";
+		private String id, url, mirrorOf;
+
+		public Handler(final Settings settings) {
+			this.settings = settings;
+		}
+
+		@Override
+		public void startElement(final String uri, final String localName,
+			final String qName, final Attributes attributes)
+		{
+			super.startElement(uri, localName, qName, attributes);
+			prefix += ">" + qName;
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName,
+			final String qName) throws SAXException
+		{
+			super.endElement(uri, localName, qName);
+			if (prefix.equals(">settings>mirrors>mirror")) {
+				if (url != null && mirrorOf != null) {
+					settings.mirrors.add(new Mirror(id, url, mirrorOf));
+				}
+				id = url = mirrorOf = null;
+			}
+			prefix = prefix.substring(0, prefix.length() - 1 - qName.length());
+		}
+
+		@Override
+		protected void processCharacters(final StringBuilder sb) {
+			final String string = expand(sb.toString().trim());
+			if (prefix.equals(">settings>localRepository")) {
+				settings.localRepository = string;
+			}
+			else if (prefix.equals(">settings>offline")) {
+				settings.offline = "true".equalsIgnoreCase(string);
+			}
+			else if (prefix.equals(">settings>mirrors>mirror>id")) id = string;
+			else if (prefix.equals(">settings>mirrors>mirror>url")) url = string;
+			else if (prefix.equals(">settings>mirrors>mirror>mirrorOf")) {
+				mirrorOf = string;
+			}
+		}
+	}
+
+	// expands ${<system-property>} and ${env.<variable>}
+	protected static String expand(final String string) {
+		String result = string;
+		for (;;) {
+			final int dollarCurly = result.indexOf("${");
+			if (dollarCurly < 0) return result;
+			final int endCurly = result.indexOf("}", dollarCurly + 2);
+			if (endCurly < 0) return result;
+			final String key = result.substring(dollarCurly + 2, endCurly);
+			String value = key.startsWith("env.") ? System.getenv(key.substring(4))
+				: System.getProperty(key);
+			if (value == null) value = "";
+			result = result.substring(0, dollarCurly) + value + result.substring(
+				endCurly + 1);
+		}
+	}
+}
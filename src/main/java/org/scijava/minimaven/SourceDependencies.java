@@ -0,0 +1,427 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records which classes each source file produces and refers to.
+ * <p>
+ * This information lets MiniMaven recompile only the sources that changed,
+ * plus the sources that (transitively) depend on them, and delete the class
+ * files of sources that were removed. It is obtained after each compilation by
+ * parsing the new class files, and stored in a text file with one
+ * <tt>S&lt;tab&gt;&lt;mtime&gt;&lt;tab&gt;&lt;source&gt;</tt> line per source
+ * file, followed by one
+ * <tt>C&lt;tab&gt;&lt;class&gt;&lt;tab&gt;&lt;constants&gt;&lt;tab&gt;&lt;references&gt;</tt>
+ * line per class compiled from it, where <tt>constants</tt> is the SHA-1 of
+ * the values of its compile-time constants.
+ * </p>
+ */
+public class SourceDependencies {
+
+	private final static String HEADER = "# MiniMaven source dependencies v1";
+
+	protected final File file, sourceDirectory, classes;
+	private FingerprintDatabase fingerprintDatabase;
+	// by path relative to the source directory
+	private final Map<String, Source> sources = new TreeMap<String, Source>();
+	private boolean loaded;
+
+	private static class Source {
+
+		private long lastModified;
+		private final Map<String, Compiled> classes =
+			new TreeMap<String, Compiled>();
+	}
+
+	private static class Compiled {
+
+		private String constants;
+		private Set<String> references;
+	}
+
+	public SourceDependencies(final File file, final File sourceDirectory,
+		final File classes)
+	{
+		this.file = file;
+		this.sourceDirectory = sourceDirectory;
+		this.classes = classes;
+		read();
+	}
+
+	/**
+	 * Compares the sources by their contents rather than their time stamps.
+	 *
+	 * @param database the fingerprints, or null to use the time stamps
+	 */
+	public void setFingerprintDatabase(final FingerprintDatabase database) {
+		fingerprintDatabase = database;
+	}
+
+	private long lastModified(final String path) {
+		final File file = new File(sourceDirectory, path);
+		return fingerprintDatabase == null ? file.lastModified()
+			: fingerprintDatabase.lastModified(file);
+	}
+
+	/**
+	 * @return whether dependencies were recorded by a previous build
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Determines the sources that need to be compiled.
+	 * <p>
+	 * These are the sources that are new, that were modified, or whose class
+	 * files are missing, plus all sources depending on them (or on removed
+	 * sources), transitively.
+	 * </p>
+	 *
+	 * @param paths the relative paths of all current sources
+	 * @return the relative paths of the sources to compile
+	 */
+	public Set<String> getStaleSources(final Collection<String> paths) {
+		final Set<String> result = new TreeSet<String>();
+		for (final String path : paths) {
+			final Source source = sources.get(path);
+			if (source == null || source.lastModified != lastModified(path) ||
+				!classFilesExist(source))
+			{
+				result.add(path);
+			}
+		}
+		final Set<String> changed = new HashSet<String>(result);
+		for (final String path : sources.keySet()) {
+			if (!paths.contains(path)) changed.add(path);
+		}
+		if (changed.isEmpty()) return result;
+
+		// who refers to whom
+		final Map<String, String> class2source = new HashMap<String, String>();
+		final Map<String, List<String>> dependents =
+			new HashMap<String, List<String>>();
+		for (final Map.Entry<String, Source> entry : sources.entrySet()) {
+			for (final Map.Entry<String, Compiled> entry2 : entry.getValue().classes
+				.entrySet())
+			{
+				class2source.put(entry2.getKey(), entry.getKey());
+				for (final String reference : entry2.getValue().references) {
+					List<String> list = dependents.get(reference);
+					if (list == null) {
+						list = new ArrayList<String>();
+						dependents.put(reference, list);
+					}
+					list.add(entry.getKey());
+				}
+			}
+		}
+
+		final List<String> todo = new ArrayList<String>(changed);
+		while (!todo.isEmpty()) {
+			final Source source = sources.get(todo.remove(todo.size() - 1));
+			if (source == null) continue;
+			for (final String className : source.classes.keySet()) {
+				final List<String> list = dependents.get(className);
+				if (list == null) continue;
+				for (final String dependent : list) {
+					if (changed.add(dependent)) {
+						if (paths.contains(dependent)) result.add(dependent);
+						todo.add(dependent);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Determines the sources that were removed since the last build.
+	 *
+	 * @param paths the relative paths of all current sources
+	 * @return the relative paths of the removed sources
+	 */
+	public Set<String> getRemovedSources(final Collection<String> paths) {
+		final Set<String> result = new TreeSet<String>(sources.keySet());
+		result.removeAll(paths);
+		return result;
+	}
+
+	/**
+	 * Deletes the class files compiled from the given sources, and forgets
+	 * about them.
+	 * <p>
+	 * This must be called before recompiling sources, lest class files of
+	 * removed (inner) classes stay around.
+	 * </p>
+	 *
+	 * @param paths the relative paths of the sources
+	 */
+	public void deleteClasses(final Collection<String> paths) {
+		for (final String path : paths) {
+			final Source source = sources.remove(path);
+			if (source == null) continue;
+			for (final String className : source.classes.keySet()) {
+				new File(classes, className + ".class").delete();
+			}
+		}
+	}
+
+	/**
+	 * Records the class files that are not yet known.
+	 * <p>
+	 * Class files are attributed to the sources by their <tt>SourceFile</tt>
+	 * attribute; class files that cannot be attributed to a current source are
+	 * left alone.
+	 * </p>
+	 *
+	 * @param paths the relative paths of all current sources
+	 * @param previousConstants the constants of the classes before recompiling,
+	 *          as returned by {@link #getConstants(Collection)}
+	 * @return whether the values of constants changed, in which case all
+	 *         sources need to be recompiled, as <tt>javac</tt> inlines them
+	 * @throws IOException
+	 */
+	public boolean update(final Collection<String> paths,
+		final Map<String, String> previousConstants) throws IOException
+	{
+		final Set<String> known = new HashSet<String>();
+		for (final Source source : sources.values()) {
+			known.addAll(source.classes.keySet());
+		}
+		final Map<String, Source> updated = new HashMap<String, Source>();
+		addClasses(classes, "", known, paths, updated);
+		boolean constantsChanged = false;
+		for (final Map.Entry<String, Source> entry : updated.entrySet()) {
+			final Source source = entry.getValue();
+			source.lastModified = lastModified(entry.getKey());
+			sources.put(entry.getKey(), source);
+			for (final Map.Entry<String, Compiled> entry2 : source.classes
+				.entrySet())
+			{
+				final String previous = previousConstants.get(entry2.getKey());
+				if (previous != null && !previous.equals(entry2.getValue().constants))
+				{
+					constantsChanged = true;
+				}
+			}
+		}
+		return constantsChanged;
+	}
+
+	/**
+	 * Returns the recorded constants of the classes compiled from the given
+	 * sources.
+	 *
+	 * @param paths the relative paths of the sources
+	 * @return the hashes of the constants, by class name
+	 */
+	public Map<String, String> getConstants(final Collection<String> paths) {
+		final Map<String, String> result = new HashMap<String, String>();
+		for (final String path : paths) {
+			final Source source = sources.get(path);
+			if (source == null) continue;
+			for (final Map.Entry<String, Compiled> entry : source.classes
+				.entrySet())
+			{
+				result.put(entry.getKey(), entry.getValue().constants);
+			}
+		}
+		return result;
+	}
+
+	private void addClasses(final File directory, final String prefix,
+		final Set<String> known, final Collection<String> paths,
+		final Map<String, Source> updated) throws IOException
+	{
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		for (final File file : list) {
+			final String name = file.getName();
+			if (file.isDirectory()) {
+				addClasses(file, prefix + name + "/", known, paths, updated);
+				continue;
+			}
+			if (!name.endsWith(".class") || known.contains(prefix + name.substring(
+				0, name.length() - 6)))
+			{
+				continue;
+			}
+			final ClassFile classFile;
+			try {
+				classFile = ClassFile.read(file);
+			}
+			catch (final IOException e) {
+				continue;
+			}
+			final String path = classFile.getSourcePath();
+			if (path == null || !paths.contains(path)) continue;
+			Source source = updated.get(path);
+			if (source == null) {
+				source = new Source();
+				updated.put(path, source);
+			}
+			final Compiled compiled = new Compiled();
+			compiled.constants = hashConstants(classFile.getConstants());
+			compiled.references = classFile.getReferences();
+			source.classes.put(classFile.getName(), compiled);
+		}
+	}
+
+	private static String hashConstants(final Map<String, String> constants)
+		throws IOException
+	{
+		if (constants.isEmpty()) return "-";
+		final MessageDigest digest = Checksums.newSHA1();
+		digest.update(constants.toString().getBytes("UTF-8"));
+		return Checksums.toHex(digest.digest());
+	}
+
+	private boolean classFilesExist(final Source source) {
+		if (source.classes.isEmpty()) return false;
+		for (final String className : source.classes.keySet()) {
+			if (!new File(classes, className + ".class").exists()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the dependencies to disk.
+	 * <p>
+	 * Only references to classes compiled from the current sources are stored;
+	 * references to classes in dependencies are handled separately.
+	 * </p>
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		final Set<String> known = new HashSet<String>();
+		for (final Source source : sources.values()) {
+			known.addAll(source.classes.keySet());
+		}
+		file.getParentFile().mkdirs();
+		final File tmp = new File(file.getPath() + ".tmp");
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8"));
+		out.println(HEADER);
+		for (final Map.Entry<String, Source> entry : sources.entrySet()) {
+			final Source source = entry.getValue();
+			out.println("S\t" + source.lastModified + "\t" + entry.getKey());
+			for (final Map.Entry<String, Compiled> entry2 : source.classes
+				.entrySet())
+			{
+				final StringBuilder references = new StringBuilder();
+				for (final String reference : entry2.getValue().references) {
+					if (!known.contains(reference)) continue;
+					if (references.length() > 0) references.append(' ');
+					references.append(reference);
+				}
+				out.println("C\t" + entry2.getKey() + "\t" +
+					entry2.getValue().constants + "\t" + references);
+			}
+		}
+		out.close();
+		if (out.checkError()) {
+			tmp.delete();
+			throw new IOException("Could not write " + tmp);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		}
+	}
+
+	private void read() {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine())) return;
+				Source source = null;
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final String[] fields = line.split("\t", -1);
+					if (fields[0].equals("S") && fields.length == 3) {
+						source = new Source();
+						source.lastModified = Long.parseLong(fields[1]);
+						sources.put(fields[2], source);
+					}
+					else if (fields[0].equals("C") && fields.length == 4 &&
+						source != null)
+					{
+						final Compiled compiled = new Compiled();
+						compiled.constants = fields[2];
+						compiled.references = new TreeSet<String>();
+						for (final String reference : fields[3].split(" ")) {
+							if (!reference.equals("")) compiled.references.add(reference);
+						}
+						source.classes.put(fields[1], compiled);
+					}
+				}
+				loaded = true;
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final FileNotFoundException e) {
+			// no dependencies recorded yet
+		}
+		catch (final IOException e) {
+			// start afresh
+			sources.clear();
+		}
+		catch (final NumberFormatException e) {
+			sources.clear();
+		}
+	}
+}
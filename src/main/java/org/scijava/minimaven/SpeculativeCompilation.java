@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.scijava.minimaven.JavaCompiler.CompileError;
+
+/**
+ * Compiles a module against the header classes of its dependencies, in the
+ * background, while the dependencies themselves are rebuilt.
+ * <p>
+ * The header classes describe the dependencies' ABIs as of their previous
+ * builds. If the rebuilt dependencies turn out to have the same ABIs, the
+ * result of the speculative compilation is as good as a regular one and is
+ * used; otherwise it is discarded and the module is compiled as usual.
+ * </p>
+ */
+public class SpeculativeCompilation implements Callable<Boolean> {
+
+	private final String[] arguments;
+	private final Map<String, String> assumed;
+	private final File output;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private final FutureTask<Boolean> task;
+
+	/**
+	 * Starts compiling in a background thread.
+	 *
+	 * @param arguments the compiler arguments
+	 * @param assumed the ABI fingerprints the header classes correspond to
+	 * @param output the directory the classes are written to
+	 * @param name the name of the module, for the thread name
+	 */
+	public SpeculativeCompilation(final List<String> arguments,
+		final Map<String, String> assumed, final File output, final String name)
+	{
+		this.arguments = arguments.toArray(new String[arguments.size()]);
+		this.assumed = assumed;
+		this.output = output;
+		task = new FutureTask<Boolean>(this);
+		final Thread thread = new Thread(task, "speculative-compile-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public Boolean call() {
+		final PrintStream out = new PrintStream(buffer);
+		try {
+			new JavaCompiler(out, out).call(arguments, false);
+			return true;
+		}
+		catch (final CompileError e) {
+			return false;
+		}
+		finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Waits for the compilation to finish, and uses its result if the
+	 * assumptions were right.
+	 *
+	 * @param actual the ABI fingerprints of the rebuilt dependencies
+	 * @param target the directory to move the classes to if the speculative
+	 *          compilation was successful and the fingerprints match
+	 * @param err where to print the compiler's messages to
+	 * @return whether the result was used
+	 * @throws IOException
+	 */
+	public boolean finish(final Map<String, String> actual, final File target,
+		final PrintStream err) throws IOException
+	{
+		boolean success;
+		try {
+			success = task.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			success = false;
+		}
+		catch (final ExecutionException e) {
+			success = false;
+		}
+		try {
+			if (!success || !assumed.equals(actual)) return false;
+			buffer.writeTo(err);
+			move(output, target);
+			return true;
+		}
+		finally {
+			if (output.isDirectory()) BuildEnvironment.rmRF(output);
+		}
+	}
+
+	private static void move(final File source, final File target)
+		throws IOException
+	{
+		final File[] list = source.listFiles();
+		if (list == null) return;
+		if (!target.isDirectory() && !target.mkdirs()) {
+			throw new IOException("Could not make directory " + target);
+		}
+		for (final File file : list) {
+			final File targetFile = new File(target, file.getName());
+			if (file.isDirectory()) {
+				move(file, targetFile);
+			}
+			else if (!file.renameTo(targetFile)) {
+				targetFile.delete();
+				if (!file.renameTo(targetFile)) {
+					throw new IOException("Could not move " + file + " to " +
+						targetFile);
+				}
+			}
+		}
+	}
+}
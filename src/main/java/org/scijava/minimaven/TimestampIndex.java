@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent map from keys to time stamps.
+ * <p>
+ * The index lives in a single text file with one <tt>&lt;millis&gt;\t&lt;key&gt;</tt>
+ * line per entry. Changes are collected in memory and written in one go by
+ * {@link #save()}; since several MiniMaven processes may share the same index,
+ * saving merges the changes into the current contents of the file, under an
+ * {@link ArtifactLock}, and atomically replaces it.
+ * </p>
+ */
+public class TimestampIndex {
+
+	protected final File file;
+	private Map<String, Long> timestamps;
+	private final Map<String, Long> changes = new HashMap<String, Long>();
+
+	public TimestampIndex(final File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the time stamp recorded for the given key.
+	 *
+	 * @param key the key
+	 * @return the time stamp in milliseconds since the epoch, or -1 if unknown
+	 */
+	public synchronized long get(final String key) {
+		if (changes.containsKey(key)) return changes.get(key);
+		if (timestamps == null) timestamps = read(file);
+		final Long result = timestamps.get(key);
+		return result == null ? -1 : result;
+	}
+
+	public synchronized void put(final String key, final long millis) {
+		changes.put(key, millis);
+	}
+
+	/**
+	 * Forgets the entry for the given key.
+	 *
+	 * @param key the key
+	 */
+	public synchronized void remove(final String key) {
+		changes.put(key, -1l);
+	}
+
+	public synchronized boolean isDirty() {
+		return !changes.isEmpty();
+	}
+
+	/**
+	 * Writes the pending changes to disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (changes.isEmpty()) return;
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final ArtifactLock lock = ArtifactLock.lock(directory, null, false);
+		try {
+			final Map<String, Long> merged = new TreeMap<String, Long>(read(file));
+			for (final Map.Entry<String, Long> entry : changes.entrySet()) {
+				if (entry.getValue() < 0) merged.remove(entry.getKey());
+				else merged.put(entry.getKey(), entry.getValue());
+			}
+			final File tmp = new File(directory, file.getName() + ".tmp");
+			final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), "UTF-8"));
+			for (final Map.Entry<String, Long> entry : merged.entrySet()) {
+				out.print(entry.getValue());
+				out.print('\t');
+				out.println(entry.getKey());
+			}
+			out.close();
+			if (out.checkError()) {
+				tmp.delete();
+				throw new IOException("Could not write " + tmp);
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Could not rename " + tmp + " to " + file);
+				}
+			}
+			timestamps = merged;
+			changes.clear();
+		}
+		finally {
+			lock.close();
+		}
+	}
+
+	private static Map<String, Long> read(final File file) {
+		final Map<String, Long> result = new HashMap<String, Long>();
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final int tab = line.indexOf('\t');
+					if (tab < 0) continue;
+					try {
+						result.put(line.substring(tab + 1), Long.parseLong(line.substring(0,
+							tab)));
+					}
+					catch (final NumberFormatException e) {
+						// ignore corrupt line
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final FileNotFoundException e) {
+			// no index yet
+		}
+		catch (final IOException e) {
+			// treat an unreadable index as empty; it will be rewritten
+		}
+		return result;
+	}
+}
@@ -30,6 +30,7 @@
 package org.scijava.minimaven;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 import static org.scijava.minimaven.TestUtils.assertDependencies;
@@ -41,9 +42,21 @@ import static org.scijava.minimaven.TestUtils.read;
 import static org.scijava.minimaven.TestUtils.writeExampleProject;
 import static org.scijava.minimaven.TestUtils.writeFile;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 import java.util.jar.JarFile;
 
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
 import org.junit.Test;
 
 /**
@@ -84,6 +97,476 @@ public class BasicTest {
 		assertNotExists(oldVersion);
 	}
 
+	@Test
+	public void testIncrementalCompilation() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File tmp = project.directory;
+		final File sources = new File(tmp, "src/main/java/test");
+		writeFile(new File(sources, "A.java"),
+			"package test; public class A { class Inner {} }");
+		writeFile(new File(sources, "B.java"),
+			"package test; public class B { A a; }");
+		writeFile(new File(sources, "C.java"), "package test; public class C {}");
+		project.env.incremental = true;
+		project.build();
+		final File classes = new File(tmp, "target/classes/test");
+		assertExists(new File(classes, "A$Inner.class"));
+		assertExists(new File(classes, "C.class"));
+
+		// remove a source and an inner class
+		assertTrue(new File(sources, "C.java").delete());
+		final File a = new File(sources, "A.java");
+		writeFile(a, "package test; public class A {}");
+		a.setLastModified(a.lastModified() + 2000);
+		final File b = new File(classes, "B.class");
+		b.setLastModified(b.lastModified() - 2000);
+		final long bModified = b.lastModified();
+		final MavenProject project2 = new BuildEnvironment(null, false, false,
+			false).parse(new File(tmp, "pom.xml"));
+		project2.env.incremental = true;
+		project2.build();
+		assertNotExists(new File(classes, "A$Inner.class"));
+		assertNotExists(new File(classes, "C.class"));
+		// the dependent was recompiled
+		assertTrue(b.lastModified() != bModified);
+	}
+
+	@Test(expected = JavaCompiler.CompileError.class)
+	public void testCompileError() throws Exception {
+		final MavenProject project = writeExampleProject();
+		writeFile(new File(project.directory, "src/main/java/test/Broken.java"),
+			"package test; public class Broken {");
+		project.build();
+	}
+
+	@Test
+	public void testRebuildDependent() throws Exception {
+		final File tmp = createTemporaryDirectory("dependent-");
+		writeModules(tmp);
+		final File core = new File(tmp, "core/src/main/java/core/Core.java");
+		writeFile(core, "package core; public class Core {" +
+			" public static int f() { return 1; } }");
+		final File appSource = new File(tmp, "app/src/main/java/app/App.java");
+		writeFile(appSource,
+			"package app; public class App { int x = core.Core.f(); }");
+		assertTrue(appSource.setLastModified(appSource.lastModified() - 60000));
+		final File app = new File(tmp, "app/target/classes/app/App.class");
+
+		buildApp(tmp);
+		assertExists(app);
+
+		// the dependent module is recompiled even though its sources did not change
+		final long compiled = backdate(app);
+		writeModified(core, "package core; public class Core {" +
+			" public static short f() { return 1; } }");
+		buildApp(tmp);
+		assertTrue(compiled != app.lastModified());
+	}
+
+	@Test
+	public void testBuildCache() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File tmp = project.directory;
+		final File sources = new File(tmp, "src/main/java/test");
+		writeFile(new File(sources, "A.java"), "package test; public class A {}");
+		project.env.buildCache = new BuildCache(createTemporaryDirectory(
+			"build-cache-"));
+		project.buildJar();
+		final File jar = project.getTarget();
+		final String sha1 = Checksums.sha1(jar);
+
+		// a fresh worktree with the same sources uses the cached outputs
+		BuildEnvironment.rmRF(new File(tmp, "target"));
+		final MavenProject project2 = new BuildEnvironment(null, false, false,
+			false).parse(new File(tmp, "pom.xml"));
+		project2.env.buildCache = project.env.buildCache;
+		project2.env.javac = null;
+		project2.env.fingerprintDatabase = true;
+		project2.buildJar();
+		assertExists(new File(tmp, "target/classes/test/A.class"));
+		assertEquals(sha1, Checksums.sha1(jar));
+		// the restored outputs are recorded as up-to-date
+		assertExists(new File(tmp, "target/minimaven/fingerprints.tsv"));
+		final MavenProject project3 = new BuildEnvironment(null, false, false,
+			false).parse(new File(tmp, "pom.xml"));
+		project3.env.fingerprintDatabase = true;
+		assertTrue(project3.upToDate(true));
+
+		// the cached jar is the one a build without the cache produces
+		BuildEnvironment.rmRF(new File(tmp, "target"));
+		final MavenProject project4 = new BuildEnvironment(null, false, false,
+			false).parse(new File(tmp, "pom.xml"));
+		project4.buildJar();
+		assertEquals(sha1, Checksums.sha1(jar));
+	}
+
+	@Test
+	public void testRemoteBuildCache() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File tmp = project.directory;
+		writeFile(new File(tmp, "src/main/java/test/A.java"),
+			"package test; public class A {}");
+		final File remote = createTemporaryDirectory("remote-cache-");
+		final BuildCacheServer server = new BuildCacheServer(new BuildCache(remote),
+			new InetSocketAddress("127.0.0.1", 0), project.env.getExecutor(),
+			System.err);
+		server.setReadOnly(false);
+		server.setToken("secret");
+		server.start();
+		try {
+			final String url = "http://127.0.0.1:" + server.getPort() + "/";
+			// one machine populates the remote cache
+			project.env.buildCache = new BuildCache(createTemporaryDirectory(
+				"build-cache-"));
+			project.env.buildCache.setRemote(url, 5000, true, System.err);
+			project.env.buildCache.setUploadToken("secret");
+			project.buildJar();
+			project.env.buildCache.awaitUploads();
+
+			// listings can be neither uploaded without the token, nor replaced
+			final File[] prefixes = new File(remote, "ac").listFiles();
+			assertEquals(1, prefixes.length);
+			final String key = prefixes[0].getName() + prefixes[0].list()[0];
+			final byte[] listing = Files.readAllBytes(new File(prefixes[0], key
+				.substring(2)).toPath());
+			assertEquals(403, put(url + "ac/" + key, null, listing));
+			assertEquals(403, put(url + "ac/" + key, "wrong", listing));
+			assertEquals(409, put(url + "ac/" + key, "secret", listing));
+
+			// another one uses it
+			BuildEnvironment.rmRF(new File(tmp, "target"));
+			final MavenProject project2 = new BuildEnvironment(null, false, false,
+				false).parse(new File(tmp, "pom.xml"));
+			project2.env.buildCache = new BuildCache(createTemporaryDirectory(
+				"build-cache-"));
+			project2.env.buildCache.setRemote(url, 5000, false, System.err);
+			project2.env.javac = null;
+			project2.buildJar();
+			assertExists(new File(tmp, "target/classes/test/A.class"));
+
+			// a listing must not write outside of target/classes/
+			final String[] lines = new String(listing, "UTF-8").split("\n");
+			String blob = null;
+			for (final String line : lines) {
+				if (line.startsWith("C\t")) blob = line.split("\t")[1];
+			}
+			final String evil = key.substring(0, 39) + (key.endsWith("0") ? "1"
+				: "0");
+			final byte[] evilListing = (lines[0] + "\nC\t" + blob +
+				"\t../../evil.class\n").getBytes("UTF-8");
+			assertEquals(400, put(url + "ac/" + evil, "secret", evilListing));
+			// not even when it got into the remote cache by other means
+			final File evilFile = new File(remote, "ac/" + evil.substring(0, 2) +
+				"/" + evil.substring(2));
+			Files.write(evilFile.toPath(), evilListing);
+			assertTrue(project2.env.buildCache.get(evil) == null);
+			assertNotExists(new File(tmp, "evil.class"));
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	private static int put(final String url, final String token,
+		final byte[] body) throws IOException
+	{
+		final HttpURLConnection http = (HttpURLConnection) new URL(url)
+			.openConnection();
+		http.setRequestMethod("PUT");
+		if (token != null) {
+			http.setRequestProperty("Authorization", "Bearer " + token);
+		}
+		http.setDoOutput(true);
+		http.getOutputStream().write(body);
+		final int code = http.getResponseCode();
+		http.disconnect();
+		return code;
+	}
+
+	@Test
+	public void testFingerprintDatabase() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File tmp = project.directory;
+		final File a = new File(tmp, "src/main/java/test/A.java");
+		writeFile(a, "package test; public class A {}");
+		project.env.fingerprintDatabase = true;
+		project.build();
+		final File classFile = new File(tmp, "target/classes/test/A.class");
+		final long compiled = classFile.lastModified();
+
+		// a new time stamp alone does not make the source dirty
+		a.setLastModified(compiled + 5000);
+		final BuildEnvironment env = new BuildEnvironment(null, false, false,
+			false);
+		env.fingerprintDatabase = true;
+		assertTrue(env.parse(new File(tmp, "pom.xml")).checkUpToDate(false));
+
+		// modified contents are detected even with an old time stamp
+		writeFile(a, "package test; public class A { int a; }");
+		a.setLastModified(compiled - 5000);
+		final BuildEnvironment env2 = new BuildEnvironment(null, false, false,
+			false);
+		env2.fingerprintDatabase = true;
+		assertFalse(env2.parse(new File(tmp, "pom.xml")).checkUpToDate(false));
+	}
+
+	@Test
+	public void testChangeJournal() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File tmp = project.directory;
+		final File a = new File(tmp, "src/main/java/test/A.java");
+		writeFile(a, "package test; public class A {}");
+		final BuildEnvironment env = project.env;
+		env.journal = new ChangeJournal();
+		try {
+			project.build();
+			final File classFile = new File(tmp, "target/classes/test/A.class");
+			classFile.getParentFile().setLastModified(classFile.lastModified() -
+				5000);
+			assertTrue(classFile.setLastModified(classFile.lastModified() - 5000));
+			assertTrue(a.setLastModified(classFile.lastModified() - 5000));
+
+			// the daemon forgets unresolved artifacts between requests
+			env.localPOMCache.put("test:missing:jar", null);
+			env.reset(System.err);
+			assertFalse(env.localPOMCache.containsKey("test:missing:jar"));
+			assertTrue(project.checkUpToDate(false));
+			env.reset(System.err);
+			assertTrue(project.checkUpToDate(false));
+
+			// the outputs are not watched
+			assertTrue(classFile.delete());
+			env.reset(System.err);
+			assertFalse(project.checkUpToDate(false));
+		}
+		finally {
+			env.journal.close();
+		}
+	}
+
+	@Test
+	public void testFileManagerPool() throws Exception {
+		final javax.tools.JavaCompiler compiler = ToolProvider
+			.getSystemJavaCompiler();
+		assumeTrue(compiler != null);
+		final File classes = createTemporaryDirectory("classes-");
+		final List<File> classPath = Arrays.asList(classes);
+		final StandardJavaFileManager first = FileManagerPool.acquire(compiler,
+			"test", classPath);
+		FileManagerPool.release("test", first);
+		final StandardJavaFileManager second = FileManagerPool.acquire(compiler,
+			"test", classPath);
+		assertTrue(first == second);
+		FileManagerPool.release("test", second);
+
+		// a changed class path directory must not be served from a stale cache
+		final File classFile = new File(classes, "test/A.class");
+		writeFile(classFile, "not really a class");
+		classFile.setLastModified(System.currentTimeMillis() + 5000);
+		final StandardJavaFileManager third = FileManagerPool.acquire(compiler,
+			"test", classPath);
+		assertTrue(third != second);
+		FileManagerPool.release("test", third);
+		FileManagerPool.invalidate();
+		final StandardJavaFileManager fourth = FileManagerPool.acquire(compiler,
+			"test", classPath);
+		assertTrue(fourth != third);
+		FileManagerPool.release("test", fourth);
+		FileManagerPool.invalidate();
+	}
+
+	@Test
+	public void testConcurrentCompilation() throws Exception {
+		assumeTrue(ToolProvider.getSystemJavaCompiler() != null);
+		final File tmp = createTemporaryDirectory("concurrent-");
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final JavaCompiler javac = new JavaCompiler(new PrintStream(buffer), null);
+		final int count = 6;
+		final Thread[] threads = new Thread[count];
+		final boolean[] failed = new boolean[count];
+		final File[] classes = new File[count];
+		JavaCompiler.setMaxConcurrency(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				final int index = i;
+				// every other source tree has two errors
+				final String body = i % 2 == 0 ? "int x = 1;"
+					: "int x = y; String z = 1;";
+				final File source = new File(tmp, "src" + i + "/Class" + i + ".java");
+				writeFile(source, "public class Class" + i + " { " + body + " }");
+				classes[i] = new File(tmp, "classes" + i);
+				assertTrue(classes[i].mkdirs());
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							javac.call(new String[] { "-d", classes[index].getPath(),
+								source.getPath() }, false);
+						}
+						catch (final JavaCompiler.CompileError e) {
+							failed[index] = true;
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+		}
+		finally {
+			JavaCompiler.setMaxConcurrency(Runtime.getRuntime()
+				.availableProcessors());
+			FileManagerPool.invalidate();
+		}
+
+		final String messages = buffer.toString();
+		for (int i = 0; i < count; i++) {
+			assertEquals(i % 2 != 0, failed[i]);
+			assertEquals(i % 2 == 0, new File(classes[i], "Class" + i + ".class")
+				.exists());
+			if (i % 2 == 0) continue;
+			// the messages of one compilation are not interleaved with others'
+			final String name = "Class" + i + ".java";
+			final String block = messages.substring(messages.indexOf(name), messages
+				.lastIndexOf(name));
+			for (int j = 0; j < count; j++) {
+				if (j != i) assertFalse(block.contains("Class" + j + ".java"));
+			}
+		}
+	}
+
+	@Test
+	public void testABIFingerprints() throws Exception {
+		final File tmp = createTemporaryDirectory("abi-");
+		writeModules(tmp);
+		final File core = new File(tmp, "core/src/main/java/core/Core.java");
+		writeFile(core, "package core; public class Core {" +
+			" public static final int C = 1; public static int f() { return 1; } }");
+		final File appSource = new File(tmp, "app/src/main/java/app/App.java");
+		writeFile(appSource,
+			"package app; public class App { int x = core.Core.f() + core.Core.C; }");
+		assertTrue(appSource.setLastModified(appSource.lastModified() - 60000));
+		final File app = new File(tmp, "app/target/classes/app/App.class");
+
+		buildApp(tmp);
+		assertExists(app);
+
+		// a changed method body does not rebuild the dependent module
+		long compiled = backdate(app);
+		writeModified(core, "package core; public class Core {" +
+			" public static final int C = 1; public static int f() { return 2; } }");
+		buildApp(tmp);
+		assertEquals(compiled, app.lastModified());
+
+		// a changed constant does: it is inlined into the dependent's classes
+		compiled = backdate(app);
+		writeModified(core, "package core; public class Core {" +
+			" public static final int C = 2; public static int f() { return 2; } }");
+		buildApp(tmp);
+		assertTrue(compiled != app.lastModified());
+
+		// and so does a changed signature
+		compiled = backdate(app);
+		writeModified(core, "package core; public class Core {" +
+			" public static final int C = 2; public static short f() { return 2; } }");
+		buildApp(tmp);
+		assertTrue(compiled != app.lastModified());
+	}
+
+	@Test
+	public void testPipeline() throws Exception {
+		final File tmp = createTemporaryDirectory("pipeline-");
+		writeModules(tmp);
+		final File core = new File(tmp, "core/src/main/java/core/Core.java");
+		writeFile(core, "package core; public class Core {" +
+			" public static int f() { return g(); }" +
+			" private static int g() { return 1; } }");
+		final File appSource = new File(tmp, "app/src/main/java/app/App.java");
+		writeFile(appSource,
+			"package app; public class App { int x = core.Core.f(); }");
+		assertTrue(appSource.setLastModified(appSource.lastModified() - 60000));
+
+		buildApp(tmp, pipeline(null));
+		// the headers are the class files without method bodies
+		final File header = new File(tmp, "core/target/headers/core/Core.class");
+		assertExists(header);
+		assertTrue(new File(tmp, "core/target/classes/core/Core.class")
+			.length() > header.length());
+
+		// the dependent module is compiled while its dependency is rebuilt...
+		writeModified(core, "package core; public class Core {" +
+			" public static int f() { return g() + 1; }" +
+			" private static int g() { return 1; } }");
+		writeModified(appSource,
+			"package app; public class App { int y = core.Core.f(); }");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buildApp(tmp, pipeline(out));
+		assertTrue(out.toString(), out.toString().contains(
+			"Using the speculative compilation"));
+		assertExists(new File(tmp, "app/target/classes/app/App.class"));
+
+		// ...but the result is discarded if the dependency's ABI changed
+		writeModified(core, "package core; public class Core {" +
+			" public static short f() { return 2; } }");
+		writeModified(appSource,
+			"package app; public class App { int z = core.Core.f(); }");
+		out = new ByteArrayOutputStream();
+		buildApp(tmp, pipeline(out));
+		assertFalse(out.toString(), out.toString().contains(
+			"Using the speculative compilation"));
+		assertExists(new File(tmp, "app/target/classes/app/App.class"));
+	}
+
+	private static BuildEnvironment pipeline(final ByteArrayOutputStream out) {
+		final BuildEnvironment env = new BuildEnvironment(out == null ? null
+			: new PrintStream(out), false, false, false);
+		env.pipeline = true;
+		return env;
+	}
+
+	private static void writeModules(final File directory) throws IOException {
+		final String parent = "<modelVersion>4.0.0</modelVersion><parent>" +
+			"<groupId>test</groupId><artifactId>parent</artifactId>" +
+			"<version>1.0.0</version></parent>";
+		writeFile(new File(directory, "pom.xml"), "<project>" +
+			"<modelVersion>4.0.0</modelVersion><groupId>test</groupId>" +
+			"<artifactId>parent</artifactId><version>1.0.0</version>" +
+			"<packaging>pom</packaging><modules><module>core</module>" +
+			"<module>app</module></modules></project>");
+		writeFile(new File(directory, "core/pom.xml"), "<project>" + parent +
+			"<artifactId>core</artifactId></project>");
+		writeFile(new File(directory, "app/pom.xml"), "<project>" + parent +
+			"<artifactId>app</artifactId><dependencies><dependency>" +
+			"<groupId>test</groupId><artifactId>core</artifactId>" +
+			"<version>1.0.0</version></dependency></dependencies></project>");
+	}
+
+	private static void buildApp(final File directory) throws Exception {
+		buildApp(directory, new BuildEnvironment(null, false, false, false));
+	}
+
+	private static void buildApp(final File directory,
+		final BuildEnvironment env) throws Exception
+	{
+		final MavenProject root = env.parse(new File(directory, "pom.xml"));
+		MiniMaven.findPOM(root, "app").buildJar();
+	}
+
+	// makes sure that a rebuild would change the time stamp
+	private static long backdate(final File file) {
+		assertTrue(file.setLastModified(file.lastModified() - 10000));
+		return file.lastModified();
+	}
+
+	private static void writeModified(final File file, final String contents)
+		throws IOException
+	{
+		writeFile(file, contents);
+		assertTrue(file.setLastModified(System.currentTimeMillis() + 2000));
+	}
+
 	@Test
 	public void testExcludeDependencies() throws Exception {
 		final MavenProject excludedToo = writeExampleProject(
@@ -0,0 +1,233 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import static org.scijava.minimaven.TestUtils.createTemporaryDirectory;
+import static org.scijava.minimaven.TestUtils.writeFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures cold resolutions against a {@link FakeRepository}.
+ * <p>
+ * Each run resolves and downloads a dependency graph into an empty local
+ * repository, and reports the wall time, the number of requests (by status
+ * code) and the number of bytes transferred. The graph is either synthetic,
+ * or recorded from a real project, by passing the output of MiniMaven's
+ * <tt>dependency-tree</tt> command as argument.
+ * </p>
+ * <p>
+ * The benchmark is configured via system properties:
+ * <tt>benchmark.runs</tt> (default: 3), <tt>benchmark.artifacts</tt> and
+ * <tt>benchmark.fanout</tt> (the size of the synthetic graph, default: 200 and
+ * 4), <tt>benchmark.latency</tt> (in milliseconds, default: 20),
+ * <tt>benchmark.bandwidth</tt> (in bytes per second, default: 10 MB/s; 0 means
+ * unlimited), <tt>benchmark.jarsize</tt> (default: 64 kB),
+ * <tt>benchmark.errors</tt> and <tt>benchmark.notfound</tt> (the fraction of
+ * requests failing with <tt>503</tt> and <tt>404</tt>, respectively; default:
+ * 0). MiniMaven's own settings, such as <tt>minimaven.threads</tt>, apply as
+ * usual.
+ * </p>
+ */
+public class DownloadBenchmark {
+
+	public static void main(final String... args) throws Exception {
+		final PrintStream out = System.out;
+		final FakeRepository repository = new FakeRepository();
+		try {
+			repository.setLatency(Long.getLong("benchmark.latency", 20));
+			repository.setBandwidth(Long.getLong("benchmark.bandwidth", 10 << 20));
+			repository.setJarSize(Integer.getInteger("benchmark.jarsize", 64 << 10));
+			repository.setErrorRate(Double.parseDouble(System.getProperty(
+				"benchmark.errors", "0")), 503);
+			repository.setNotFoundRate(Double.parseDouble(System.getProperty(
+				"benchmark.notfound", "0")));
+
+			final List<String> dependencies;
+			if (args.length > 0) {
+				dependencies = addRecordedGraph(repository, new File(args[0]));
+				out.println("Recorded graph: " + args[0]);
+			}
+			else {
+				final int count = Integer.getInteger("benchmark.artifacts", 200);
+				dependencies = addSyntheticGraph(repository, count, Integer.getInteger(
+					"benchmark.fanout", 4));
+				out.println("Synthetic graph: " + count + " artifacts");
+			}
+
+			final int runs = Integer.getInteger("benchmark.runs", 3);
+			for (int run = 1; run <= runs; run++) {
+				repository.resetStatistics();
+				repository.setSeed(run);
+				final File localRepository = createTemporaryDirectory("benchmark-");
+				final BuildEnvironment env = new BuildEnvironment(null, true, false,
+					false);
+				env.setMavenRepository(new File(localRepository, "repository"));
+				env.settings = new Settings();
+				env.settings.mirrors.add(new Settings.Mirror("fake", repository
+					.getURL(), "*"));
+				env.offlineMode = false;
+				final MavenProject project = writeProject(env, localRepository,
+					dependencies);
+
+				final long start = System.nanoTime();
+				project.checkForUpdates();
+				project.downloadDependencies();
+				final long elapsed = (System.nanoTime() - start) / 1000000;
+
+				out.println(String.format("run %d: %d artifacts in %d ms, " +
+					"%d requests %s, %.1f MB", run, project.getDependencies(true, false,
+						"test").size(), elapsed, repository.getRequestCount(), repository
+							.getStatusCounts(), repository.getBytesSent() / 1048576.0));
+			}
+		}
+		finally {
+			repository.close();
+		}
+	}
+
+	/**
+	 * Adds a random, but reproducible, acyclic graph of artifacts.
+	 *
+	 * @return the coordinates of the artifacts to depend on
+	 */
+	private static List<String> addSyntheticGraph(
+		final FakeRepository repository, final int count, final int fanout)
+		throws IOException
+	{
+		final Random random = new Random(42);
+		final List<Set<String>> dependencies = new ArrayList<Set<String>>();
+		for (int i = 0; i < count; i++) {
+			dependencies.add(new LinkedHashSet<String>());
+		}
+		// every artifact is reachable from the first one
+		for (int i = 1; i < count; i++) {
+			dependencies.get(random.nextInt(i)).add("bench:a" + i + ":1.0");
+			for (int j = 1; j < fanout; j++) {
+				final int target = i + random.nextInt(count - i);
+				if (target != i) dependencies.get(i).add("bench:a" + target + ":1.0");
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			repository.addArtifact("bench", "a" + i, "1.0", dependencies.get(i)
+				.toArray(new String[0]));
+		}
+		final List<String> result = new ArrayList<String>();
+		if (count > 0) result.add("bench:a0:1.0");
+		return result;
+	}
+
+	/**
+	 * Adds the artifacts listed in the output of the <tt>dependency-tree</tt>
+	 * command.
+	 * <p>
+	 * Each line of that output contains the coordinate (with packaging) of a
+	 * project, indented by one tab per level.
+	 * </p>
+	 *
+	 * @return the coordinates of the direct dependencies of the top-level project
+	 */
+	private static List<String> addRecordedGraph(
+		final FakeRepository repository, final File tree) throws IOException
+	{
+		final Map<String, Set<String>> dependencies =
+			new LinkedHashMap<String, Set<String>>();
+		final Map<String, String> packagings = new LinkedHashMap<String, String>();
+		final List<String> stack = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new FileReader(tree));
+		try {
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null) break;
+				int depth = 0;
+				while (depth < line.length() && line.charAt(depth) == '\t')
+					depth++;
+				final String[] gav = line.substring(depth).split(":");
+				// skip (parent: ...), (not found) and error lines
+				if (gav.length != 4 || line.indexOf(' ') >= 0) continue;
+				final String coordinate = gav[0] + ":" + gav[1] + ":" + gav[2];
+				while (stack.size() > depth)
+					stack.remove(stack.size() - 1);
+				if (depth > 0 && stack.size() == depth) {
+					dependencies.get(stack.get(depth - 1)).add(coordinate);
+				}
+				if (!dependencies.containsKey(coordinate)) {
+					dependencies.put(coordinate, new LinkedHashSet<String>());
+					packagings.put(coordinate, gav[3]);
+				}
+				if (stack.size() == depth) stack.add(coordinate);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		if (dependencies.isEmpty()) throw new IOException("No projects in " + tree);
+		final String root = dependencies.keySet().iterator().next();
+		for (final Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+			if (entry.getKey().equals(root)) continue;
+			final String[] gav = entry.getKey().split(":");
+			repository.addArtifact(gav[0], gav[1], gav[2], packagings.get(entry
+				.getKey()), entry.getValue().toArray(new String[0]));
+		}
+		return new ArrayList<String>(dependencies.get(root));
+	}
+
+	private static MavenProject writeProject(final BuildEnvironment env,
+		final File directory, final List<String> dependencies) throws Exception
+	{
+		final StringBuilder builder = new StringBuilder();
+		builder.append(TestUtils.pomPrefix);
+		builder.append("<groupId>benchmark</groupId>");
+		builder.append("<artifactId>project</artifactId>");
+		builder.append("<version>1.0.0</version>");
+		builder.append("<dependencies>");
+		for (final String dependency : dependencies) {
+			final String[] gav = dependency.split(":");
+			builder.append("<dependency><groupId>").append(gav[0]).append(
+				"</groupId><artifactId>").append(gav[1]).append(
+					"</artifactId><version>").append(gav[2]).append(
+						"</version></dependency>");
+		}
+		builder.append("</dependencies></project>");
+		final File pom = new File(directory, "pom.xml");
+		writeFile(pom, builder.toString());
+		return env.parse(pom);
+	}
+}
@@ -0,0 +1,780 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.scijava.minimaven.TestUtils.assertExists;
+import static org.scijava.minimaven.TestUtils.assertNotExists;
+import static org.scijava.minimaven.TestUtils.createTemporaryDirectory;
+import static org.scijava.minimaven.TestUtils.writeExampleProject;
+import static org.scijava.minimaven.TestUtils.writeFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the download code against {@link FakeRepository} instances.
+ */
+public class DownloadTest {
+
+	private final static List<String> REPOSITORIES = Arrays.asList(
+		BuildEnvironment.SCIJAVA_REPOSITORY, BuildEnvironment.CENTRAL_REPOSITORY);
+
+	private FakeRepository repository, repository2;
+
+	@Before
+	public void startRepositories() throws IOException {
+		repository = new FakeRepository();
+		repository2 = new FakeRepository();
+	}
+
+	@After
+	public void stopRepositories() throws IOException {
+		repository.close();
+		repository2.close();
+	}
+
+	@Test
+	public void testDownload() throws Exception {
+		final String path = repository.addArtifact("test.group", "artifact",
+			"1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		env.download(REPOSITORIES, new Coordinate("test.group", "artifact", "1.0"),
+			true, true);
+
+		final File directory = new File(env.getMavenRepository(), path);
+		assertExists(new File(directory, "artifact-1.0.pom"));
+		assertExists(new File(directory, "artifact-1.0.jar"));
+		assertEquals(4, repository.getRequestCount());
+		assertEquals(0, repository2.getRequestCount());
+	}
+
+	@Test
+	public void testRetryServerErrors() throws Exception {
+		final String path = repository.addArtifact("test", "retried", "1.0");
+		repository.failNext(2, 503);
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		env.download(REPOSITORIES, new Coordinate("test", "retried", "1.0"), true,
+			true);
+
+		assertExists(new File(env.getMavenRepository(), path + "retried-1.0.jar"));
+		assertEquals(Integer.valueOf(2), repository.getStatusCounts().get(503));
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		final String path = repository.addArtifact("test", "corrupt", "1.0");
+		repository.putRaw(path + "corrupt-1.0.jar", new byte[] { 1, 2, 3 });
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		try {
+			env.download(REPOSITORIES, new Coordinate("test", "corrupt", "1.0"),
+				true, true);
+			fail("Corrupt artifact was accepted");
+		}
+		catch (final FileNotFoundException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() != null && e
+				.getCause().getMessage().startsWith("SHA1 mismatch"));
+		}
+		assertNotExists(new File(env.getMavenRepository(), path +
+			"corrupt-1.0.jar"));
+	}
+
+	@Test
+	public void testFallbackToSecondRepository() throws Exception {
+		final String path = repository2.addArtifact("test", "fallback", "1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), repository2);
+		env.download(REPOSITORIES, new Coordinate("test", "fallback", "1.0"), true,
+			true);
+
+		assertExists(new File(env.getMavenRepository(), path + "fallback-1.0.jar"));
+		assertEquals(Integer.valueOf(1), repository.getStatusCounts().get(404));
+	}
+
+	@Test
+	public void testHedgedLoserLeavesNoTrace() throws Exception {
+		final String path = repository.addArtifact("test", "hedged", "1.0");
+		repository2.addArtifact("test", "hedged", "1.0");
+		repository.setLatency(300);
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), repository2);
+		env.hedgeRequests = true;
+		for (int i = 0; i < 8; i++) env.latencies.add(10);
+		env.download(REPOSITORIES, new Coordinate("test", "hedged", "1.0"), true,
+			true);
+
+		// the cancelled download must be finished by the time we return
+		final File directory = new File(env.getMavenRepository(), path);
+		final File jar = new File(directory, "hedged-1.0.jar");
+		assertExists(jar);
+		final long lastModified = jar.lastModified();
+		final List<String> files = Arrays.asList(directory.list());
+		Thread.sleep(500);
+		assertEquals(files, Arrays.asList(directory.list()));
+		assertEquals(lastModified, jar.lastModified());
+		assertTrue(repository2.getRequestCount() > 0);
+		for (final String file : files) {
+			assertTrue(file, !file.endsWith(".new"));
+		}
+	}
+
+	@Test
+	public void testHedgePercentile() {
+		try {
+			System.setProperty("minimaven.hedge", "99.5");
+			BuildEnvironment env = new BuildEnvironment(null, true, false, false);
+			assertTrue(env.hedgeRequests);
+			assertEquals(99.5, env.hedgePercentile, 0);
+
+			System.setProperty("minimaven.hedge", "100");
+			env = new BuildEnvironment(null, true, false, false);
+			assertTrue(!env.hedgeRequests);
+		}
+		finally {
+			System.clearProperty("minimaven.hedge");
+		}
+	}
+
+	@Test
+	public void testArtifactLock() throws Exception {
+		final File directory = createTemporaryDirectory("artifact-");
+		final File stale = new File(directory, "stale.jar-1-1.new");
+		final File fresh = new File(directory, "fresh.jar-2-1.new");
+		assertTrue(stale.createNewFile());
+		assertTrue(fresh.createNewFile());
+		assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 *
+			60 * 1000));
+
+		final int before = ArtifactLock.getLocalLockCount();
+		final ArtifactLock lock = ArtifactLock.lock(directory, null, false);
+		assertNotExists(stale);
+		assertExists(fresh);
+		assertEquals(before + 1, ArtifactLock.getLocalLockCount());
+
+		final ArtifactLock[] second = new ArtifactLock[1];
+		final Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					second[0] = ArtifactLock.lock(directory, null, false);
+					second[0].close();
+				}
+				catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		thread.join(200);
+		assertTrue("second lock was not blocked", thread.isAlive());
+		lock.close();
+		thread.join(5000);
+		assertTrue(second[0] != null && second[0].wasContended());
+		assertEquals(before, ArtifactLock.getLocalLockCount());
+
+		// looking for an artifact that does not exist leaves no trace
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		try {
+			env.download(REPOSITORIES, new Coordinate("test", "missing", "1.0"),
+				true, true);
+			fail("Missing artifact was found");
+		}
+		catch (final FileNotFoundException e) {
+			// expected
+		}
+		assertNotExists(new File(env.getMavenRepository(), "test"));
+	}
+
+	@Test
+	public void testSharedRepositories() throws Exception {
+		final File shared = createTemporaryDirectory("shared-");
+		final File directory = new File(shared, "test/shared/1.0");
+		assertTrue(directory.mkdirs());
+		assertTrue(new File(directory, "shared-1.0.jar").createNewFile());
+
+		final String url = shared.toURI().toString();
+		assertTrue(url, url.startsWith("file:/"));
+		final String separator = File.pathSeparator;
+		assertEquals(Arrays.asList(url, "/a", url), BuildEnvironment.splitPaths(
+			url + separator + separator + "/a" + separator + url));
+
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		for (final String path : BuildEnvironment.splitPaths(url + separator +
+			url))
+		{
+			env.addSharedRepository(path);
+		}
+		assertEquals(1, env.sharedRepositories.size());
+		assertEquals(directory.getCanonicalFile(), env.findInSharedRepositories(
+			new Coordinate("test", "shared", "1.0")));
+		assertEquals(null, env.findInSharedRepositories(new Coordinate("test",
+			"unshared", "1.0")));
+	}
+
+	@Test
+	public void testRememberMissing() throws Exception {
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), repository2);
+		final Coordinate missing = new Coordinate("test", "missing", "1.0");
+		for (int i = 0; i < 2; i++) {
+			try {
+				env.download(REPOSITORIES, missing, true, true);
+				fail("Missing artifact was found");
+			}
+			catch (final FileNotFoundException e) {
+				// expected
+			}
+		}
+		// the second attempt must not ask again
+		assertEquals(1, repository.getRequestCount());
+		assertEquals(1, repository2.getRequestCount());
+	}
+
+	@Test
+	public void testMissingJarIsNotRemembered() throws Exception {
+		final String path = repository.addArtifact("test", "jarless", "1.0");
+		repository.remove(path + "jarless-1.0.jar");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		final Coordinate dependency = new Coordinate("test", "jarless", "1.0");
+		try {
+			env.download(REPOSITORIES, dependency, true, true);
+			fail("Missing .jar was found");
+		}
+		catch (final FileNotFoundException e) {
+			// expected
+		}
+		assertTrue(!env.isKnownMissing(repository.getURL(), dependency));
+
+		repository.put(path + "jarless-1.0.jar", new byte[] { 'P', 'K' });
+		env.download(REPOSITORIES, dependency, true, true);
+		assertExists(new File(env.getMavenRepository(), path + "jarless-1.0.jar"));
+	}
+
+	@Test
+	public void testPrune() throws Exception {
+		final String usedPath = repository.addArtifact("test", "used", "1.0");
+		final String unusedPath = repository.addArtifact("test", "unused", "1.0");
+		final File local = createTemporaryDirectory("repository-");
+		final BuildEnvironment env = newEnvironment(local, null);
+		env.download(REPOSITORIES, new Coordinate("test", "used", "1.0"), true,
+			true);
+		env.download(REPOSITORIES, new Coordinate("test", "unused", "1.0"), true,
+			true);
+
+		// pretend that both were downloaded, and usage tracked, long ago
+		final long longAgo = System.currentTimeMillis() - 200 * 24 * 60 * 60 *
+			1000l;
+		final File used = new File(local, usedPath);
+		final File unused = new File(local, unusedPath);
+		for (final File directory : new File[] { used, unused }) {
+			for (final File file : directory.listFiles()) {
+				assertTrue(file.setLastModified(longAgo));
+			}
+		}
+		final TimestampIndex index = new TimestampIndex(new File(local,
+			".minimaven/last-used.txt"));
+		index.put(".since", longAgo);
+		index.save();
+
+		// what a command records must be saved without waiting for the JVM to exit
+		env.markUsed(used);
+		env.saveLastUsed();
+
+		final RepositoryPruner pruner = new RepositoryPruner(newEnvironment(local,
+			null));
+		pruner.setDays(90);
+		pruner.prune();
+		assertExists(new File(used, "used-1.0.jar"));
+		assertNotExists(unused);
+	}
+
+	@Test
+	public void testSnapshotUpdates() throws Exception {
+		final String path = FakeRepository.getPath("test", "snapshot",
+			"1.0-SNAPSHOT");
+		final String first = repository.addSnapshot("test", "snapshot",
+			"1.0-SNAPSHOT", "20260101.120000", 1);
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		env.download(REPOSITORIES, new Coordinate("test", "snapshot",
+			"1.0-SNAPSHOT"), true, true);
+		final File directory = new File(env.getMavenRepository(), path);
+		assertExists(new File(directory, first));
+
+		// a new build, checked for only when the update interval is over
+		final String second = repository.addSnapshot("test", "snapshot",
+			"1.0-SNAPSHOT", "20260102.120000", 2);
+		repository.resetStatistics();
+		BuildEnvironment env2 = newEnvironment(env.getMavenRepository(), null);
+		env2.download(REPOSITORIES, new Coordinate("test", "snapshot",
+			"1.0-SNAPSHOT"), true, true);
+		assertEquals(repository.getRequests().toString(), 0, repository
+			.getRequestCount());
+		assertNotExists(new File(directory, second));
+
+		env2 = newEnvironment(env.getMavenRepository(), null);
+		env2.updateInterval = 0;
+		env2.download(REPOSITORIES, new Coordinate("test", "snapshot",
+			"1.0-SNAPSHOT"), true, true);
+		assertExists(new File(directory, second));
+	}
+
+	@Test
+	public void testEmbeddedPOM() throws Exception {
+		final String transitive = repository.addArtifact("test", "transitive",
+			"1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+
+		// a .jar file without .pom file, as e.g. copied from elsewhere
+		final File directory = new File(env.getMavenRepository(), FakeRepository
+			.getPath("test", "embedded", "1.0"));
+		assertTrue(directory.mkdirs());
+		final JarOutputStream out = new JarOutputStream(new FileOutputStream(
+			new File(directory, "embedded-1.0.jar")));
+		out.putNextEntry(new ZipEntry("META-INF/maven/test/embedded/pom.xml"));
+		out.write(("<project><modelVersion>4.0.0</modelVersion>" +
+			"<groupId>test</groupId><artifactId>embedded</artifactId>" +
+			"<version>1.0</version><dependencies><dependency>" +
+			"<groupId>test</groupId><artifactId>transitive</artifactId>" +
+			"<version>1.0</version></dependency></dependencies></project>")
+				.getBytes("UTF-8"));
+		out.closeEntry();
+		out.close();
+
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>embedding</artifactId>",
+			"<version>1.0.0</version>", "<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>embedded</artifactId>" +
+				"<version>1.0</version></dependency></dependencies>");
+		final String classPath = project.getClassPath(false);
+		assertTrue(classPath, classPath.contains("embedded-1.0.jar"));
+		// the embedded POM's dependencies are resolved, too
+		assertTrue(classPath, classPath.contains("transitive-1.0.jar"));
+		assertExists(new File(env.getMavenRepository(), transitive +
+			"transitive-1.0.pom"));
+		// but the .pom file is not downloaded
+		for (final String request : repository.getRequests()) {
+			assertTrue(request, !request.contains("/embedded/"));
+		}
+	}
+
+	@Test
+	public void testImageJApp() throws Exception {
+		final File ijApp = createTemporaryDirectory("ImageJ.app-");
+		final File jars = new File(ijApp, "jars/bio-formats");
+		assertTrue(jars.mkdirs());
+		final File jar = new File(jars, "ij-library-1.2.jar");
+		final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new ZipEntry("Library.class"));
+		out.closeEntry();
+		out.close();
+
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>ij-plugin</artifactId>",
+			"<version>1.0.0</version>", "<properties><" +
+				BuildEnvironment.IMAGEJ_APP_DIRECTORY + ">" + ijApp.getPath() + "</" +
+				BuildEnvironment.IMAGEJ_APP_DIRECTORY + "></properties>",
+			"<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>ij-library</artifactId>" +
+				"<version>1.1</version></dependency></dependencies>");
+		project.checkForUpdates();
+		final String classPath = project.getClassPath(false);
+		// the newer version in ImageJ.app/ is used instead of downloading
+		assertTrue(classPath, classPath.contains(jar.getPath()));
+		assertEquals(repository.getRequests().toString(), 0, repository
+			.getRequestCount());
+		// the index is persisted
+		int indices = 0;
+		for (final String name : new File(env.getMavenRepository(), ".minimaven")
+			.list())
+		{
+			if (name.startsWith("imagej-app-")) indices++;
+		}
+		assertEquals(1, indices);
+	}
+
+	@Test
+	public void testLazyJars() throws Exception {
+		final String path = repository.addArtifact("test", "lazy", "1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>lazy-user</artifactId>",
+			"<version>1.0.0</version>", "<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>lazy</artifactId>" +
+				"<version>1.0</version></dependency></dependencies>");
+
+		// by default, resolving the dependencies downloads the .jar files, too
+		project.getDependencies();
+		assertExists(new File(env.getMavenRepository(), path + "lazy-1.0.jar"));
+
+		// lazily, resolving the dependencies only needs the .pom files
+		final BuildEnvironment lazy = newEnvironment(createTemporaryDirectory(
+			"repository-"), null);
+		lazy.lazyJars = true;
+		final MavenProject lazyProject = lazy.parse(new File(project
+			.getDirectory(), "pom.xml"));
+		final File jar = new File(lazy.getMavenRepository(), path +
+			"lazy-1.0.jar");
+		repository.resetStatistics();
+		assertEquals(1, lazyProject.getDependencies().size());
+		assertExists(new File(lazy.getMavenRepository(), path + "lazy-1.0.pom"));
+		assertNotExists(jar);
+		for (final String request : repository.getRequests()) {
+			assertTrue(request, !request.contains(".jar"));
+		}
+
+		// the class path needs the .jar files
+		assertTrue(lazyProject.getClassPath(false).contains(jar.getPath()));
+		assertExists(jar);
+	}
+
+	@Test
+	public void testRepositoryIndex() throws Exception {
+		final String path = repository.addArtifact("test", "indexed", "1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		env.useRepositoryIndex = true;
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>indexing</artifactId>",
+			"<version>1.0.0</version>", "<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>indexed</artifactId>" +
+				"<version>1.0</version></dependency></dependencies>");
+		project.getClassPath(false);
+		final File directory = new File(env.getMavenRepository(), path);
+		final File jar = new File(directory, "indexed-1.0.jar");
+		assertTrue(env.exists(jar));
+
+		// downloaded files are persisted in the index right away...
+		final File foreign = new File(directory, "foreign.txt");
+		writeFile(foreign, "written by another tool");
+		final BuildEnvironment env2 = newEnvironment(env.getMavenRepository(),
+			null);
+		env2.useRepositoryIndex = true;
+		assertTrue(env2.exists(jar));
+		assertEquals(jar.lastModified(), env2.lastModified(jar));
+		// ...which is not rebuilt until it is older than the update interval
+		assertTrue(!env2.exists(foreign));
+		repository.resetStatistics();
+		env2.parse(new File(project.getDirectory(), "pom.xml")).getClassPath(false);
+		assertEquals(repository.getRequests().toString(), 0, repository
+			.getRequestCount());
+
+		final BuildEnvironment env3 = newEnvironment(env.getMavenRepository(),
+			null);
+		env3.useRepositoryIndex = true;
+		env3.updateInterval = 0;
+		assertTrue(env3.exists(foreign));
+	}
+
+	@Test
+	public void testVerifyRepository() throws Exception {
+		final String path = repository.addArtifact("test", "verified", "1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		env.download(REPOSITORIES, new Coordinate("test", "verified", "1.0"), true,
+			true);
+		final File jar = new File(env.getMavenRepository(), path +
+			"verified-1.0.jar");
+		final byte[] contents = Files.readAllBytes(jar.toPath());
+		final RepositoryVerifier verifier = new RepositoryVerifier(env);
+		assertEquals(0, verifier.verify());
+
+		// corrupt files are reported...
+		writeFile(jar, "corrupt");
+		verifier.setAction("report");
+		assertEquals(1, verifier.verify());
+		assertExists(jar);
+
+		// ...re-downloaded...
+		verifier.setAction("redownload");
+		assertEquals(0, verifier.verify());
+		assertTrue(Arrays.equals(contents, Files.readAllBytes(jar.toPath())));
+
+		// ...or quarantined
+		writeFile(jar, "corrupt");
+		verifier.setAction("quarantine");
+		assertEquals(0, verifier.verify());
+		assertNotExists(jar);
+		assertExists(new File(env.getMavenRepository(), ".minimaven/quarantine/" +
+			path + "verified-1.0.jar"));
+	}
+
+	@Test
+	public void testCheckForUpdates() throws Exception {
+		repository.addSnapshot("test", "snapshot", "1.0-SNAPSHOT",
+			"20260101.120000", 1, "test:transitive:1.0");
+		final String transitive = repository.addArtifact("test", "transitive",
+			"1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>checked</artifactId>",
+			"<version>1.0.0</version>", "<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>snapshot</artifactId>" +
+				"<version>1.0-SNAPSHOT</version></dependency></dependencies>");
+
+		// everything is fetched upfront, level by level
+		project.checkForUpdates();
+		assertExists(new File(env.getMavenRepository(), transitive +
+			"transitive-1.0.pom"));
+		repository.resetStatistics();
+		project.getClassPath(false);
+		assertEquals(repository.getRequests().toString(), 0, repository
+			.getRequestCount());
+
+		// and not checked again until the update interval is over
+		repository.resetStatistics();
+		final BuildEnvironment env2 = newEnvironment(env.getMavenRepository(),
+			null);
+		env2.parse(new File(project.getDirectory(), "pom.xml")).checkForUpdates();
+		assertEquals(repository.getRequests().toString(), 0, repository
+			.getRequestCount());
+	}
+
+	@Test
+	public void testSettingsMirrors() throws Exception {
+		final String xml = "<settings>" +
+			"<localRepository>${user.home}/m2</localRepository>" +
+			"<offline>true</offline><mirrors>" +
+			"<mirror><id>a</id><url>http://a/</url>" +
+			"<mirrorOf>external:*,!scijava.public</mirrorOf></mirror>" +
+			"<mirror><id>b</id><url>http://b/</url>" +
+			"<mirrorOf>central</mirrorOf></mirror>" +
+			"<mirror><id>c</id><url>http://c/</url>" +
+			"<mirrorOf>*</mirrorOf></mirror>" +
+			"</mirrors></settings>";
+		final Settings settings = Settings.parse(new ByteArrayInputStream(xml
+			.getBytes("UTF-8")));
+		assertEquals(System.getProperty("user.home") + "/m2", settings
+			.getLocalRepository());
+		assertTrue(settings.isOffline());
+		assertEquals(3, settings.getMirrors().size());
+
+		// an exact match wins over wildcards
+		assertEquals("http://b/", settings.getMirrorURL("central",
+			BuildEnvironment.CENTRAL_REPOSITORY));
+		// !id excludes a repository, leaving it to the next mirror
+		assertEquals("http://c/", settings.getMirrorURL("scijava.public",
+			BuildEnvironment.SCIJAVA_REPOSITORY));
+		assertEquals("http://a/", settings.getMirrorURL("other",
+			"https://example.org/maven/"));
+		// external:* does not match repositories on this machine
+		assertEquals("http://c/", settings.getMirrorURL("local",
+			"http://localhost:8081/"));
+		assertEquals("http://c/", settings.getMirrorURL("file",
+			"file:/srv/m2/"));
+		assertEquals("file:/srv/m2/", new Settings().getMirrorURL("file",
+			"file:/srv/m2/"));
+	}
+
+	@Test
+	public void testServeProxy() throws Exception {
+		final String path = repository.addArtifact("test", "proxied", "1.0");
+		final BuildEnvironment proxy = newEnvironment(createTemporaryDirectory(
+			"proxy-"), null);
+		final RepositoryServer server = new RepositoryServer(proxy,
+			new InetSocketAddress("127.0.0.1", 0), REPOSITORIES);
+		server.start();
+		try {
+			final String url = "http://127.0.0.1:" + server.getPort();
+			final Coordinate proxied = new Coordinate("test", "proxied", "1.0");
+			for (int i = 0; i < 2; i++) {
+				final BuildEnvironment client = newEnvironment(
+					createTemporaryDirectory("repository-"), null);
+				client.settings.mirrors.clear();
+				client.settings.mirrors.add(new Settings.Mirror("proxy", url, "*"));
+				client.download(REPOSITORIES, proxied, true, true);
+				assertExists(new File(client.getMavenRepository(), path +
+					"proxied-1.0.jar"));
+				// the second client is served from the proxy's cache
+				assertEquals(4, repository.getRequestCount());
+			}
+			assertExists(new File(proxy.getMavenRepository(), path +
+				"proxied-1.0.jar"));
+
+			// MiniMaven's bookkeeping is not exposed
+			final HttpURLConnection http = (HttpURLConnection) new URL(url + "/" +
+				path + ArtifactLock.LOCK_FILE_NAME).openConnection();
+			assertEquals(400, http.getResponseCode());
+			http.disconnect();
+
+			// idle connections are closed
+			server.setIdleTimeout(100);
+			final Socket idle = new Socket("127.0.0.1", server.getPort());
+			try {
+				idle.setSoTimeout(5000);
+				assertEquals(-1, idle.getInputStream().read());
+			}
+			finally {
+				idle.close();
+			}
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDependencyBundle() throws Exception {
+		final String direct = repository.addArtifact("test", "direct", "1.0",
+			new String[] { "test:transitive:1.0" });
+		final String transitive = repository.addArtifact("test", "transitive",
+			"1.0");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), null);
+		final MavenProject project = writeExampleProject(env,
+			"<groupId>test</groupId>", "<artifactId>bundled</artifactId>",
+			"<version>1.0.0</version>", "<dependencies><dependency>" +
+				"<groupId>test</groupId><artifactId>direct</artifactId>" +
+				"<version>1.0</version></dependency></dependencies>");
+		project.checkForUpdates();
+		final File bundle = new File(createTemporaryDirectory("bundle-"),
+			"dependencies.zip");
+		assertTrue(new DependencyBundle(env).export(project, bundle) > 0);
+
+		// a machine without network access resolves from the bundle
+		final BuildEnvironment offline = newEnvironment(createTemporaryDirectory(
+			"repository-"), null);
+		offline.offlineMode = true;
+		assertEquals(0, new DependencyBundle(offline).importBundle(bundle));
+		final File local = offline.getMavenRepository();
+		assertExists(new File(local, direct + "direct-1.0.jar"));
+		assertExists(new File(local, transitive + "transitive-1.0.jar"));
+		assertExists(new File(local, transitive + "transitive-1.0.pom.sha1"));
+		repository.resetStatistics();
+		final String classPath = offline.parse(new File(project.getDirectory(),
+			"pom.xml")).getClassPath(false);
+		assertTrue(classPath, classPath.contains("transitive-1.0.jar"));
+		assertEquals(0, repository.getRequestCount());
+
+		// entries without a checksum are always reported
+		final File unsigned = new File(bundle.getParentFile(), "unsigned.zip");
+		final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(
+			unsigned));
+		zip.putNextEntry(new ZipEntry("test/unsigned/1.0/unsigned-1.0.jar"));
+		zip.write("unsigned".getBytes("UTF-8"));
+		zip.close();
+		final ByteArrayOutputStream err = new ByteArrayOutputStream();
+		offline.err = new PrintStream(err);
+		assertEquals(0, new DependencyBundle(offline).importBundle(unsigned));
+		assertTrue(err.toString(), err.toString().contains(
+			"no checksum for " + new File(local,
+				"test/unsigned/1.0/unsigned-1.0.jar")));
+		assertTrue(err.toString(), err.toString().contains("1 without checksum"));
+		assertNotExists(new File(local, "test/unsigned/" +
+			ArtifactLock.LOCK_FILE_NAME));
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		final String path = repository2.addArtifact("test", "recorded", "1.0");
+		final File capture = createTemporaryDirectory("capture-");
+		final BuildEnvironment env = newEnvironment(
+			createTemporaryDirectory("repository-"), repository2);
+		env.capture = RepositoryCapture.record(capture);
+		env.download(REPOSITORIES, new Coordinate("test", "recorded", "1.0"), true,
+			true);
+		env.capture.close();
+		final int requests = repository.getRequestCount() +
+			repository2.getRequestCount();
+		assertEquals(requests, env.capture.getRequestCount());
+
+		repository.resetStatistics();
+		repository2.resetStatistics();
+		final BuildEnvironment env2 = newEnvironment(
+			createTemporaryDirectory("replayed-"), repository2);
+		env2.capture = RepositoryCapture.replay(capture);
+		env2.download(REPOSITORIES, new Coordinate("test", "recorded", "1.0"),
+			true, true);
+		assertExists(new File(env2.getMavenRepository(), path + "recorded-1.0.jar"));
+		assertEquals(requests, env2.capture.getRequestCount());
+		assertEquals(0, env2.capture.getMissCount());
+		assertEquals(0, repository.getRequestCount() +
+			repository2.getRequestCount());
+	}
+
+	/**
+	 * Makes a build environment whose remote repositories are mirrored by the
+	 * fake repositories.
+	 *
+	 * @param localRepository the local repository
+	 * @param central the fake repository to use for Maven Central, or null to
+	 *          use the same as for the SciJava repository
+	 */
+	private BuildEnvironment newEnvironment(final File localRepository,
+		final FakeRepository central)
+	{
+		final BuildEnvironment env = new BuildEnvironment(null, true, false,
+			false);
+		env.setMavenRepository(localRepository);
+		env.settings = new Settings();
+		env.settings.mirrors.add(new Settings.Mirror("fake", repository.getURL(),
+			"*"));
+		if (central != null) {
+			env.settings.mirrors.add(new Settings.Mirror("fake2", central.getURL(),
+				"central"));
+		}
+		env.offlineMode = false;
+		env.hedgeRequests = false;
+		env.retryDelay = 1;
+		return env;
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2026 SciJava developers.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.minimaven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * A Maven repository served from memory, on the loopback interface.
+ * <p>
+ * This is a stand-in for remote repositories in tests and benchmarks of the
+ * download code. Besides serving artifacts (with their <tt>.sha1</tt> files)
+ * and snapshot metadata, it can simulate latency, limited bandwidth, server
+ * errors and missing files, and it counts the requests and bytes served.
+ * </p>
+ * <p>
+ * The random failures are drawn from a seeded {@link Random}, so that a given
+ * sequence of requests always sees the same failures.
+ * </p>
+ */
+public class FakeRepository extends AbstractHTTPServer {
+
+	private final ExecutorService executor;
+	private final Map<String, byte[]> files =
+		new ConcurrentHashMap<String, byte[]>();
+
+	private long latency, bandwidth;
+	private double errorRate, notFoundRate;
+	private int errorCode = 503, failNext;
+	private Random random = new Random(1);
+	private int jarSize = 1024;
+
+	private final List<String> requests = new ArrayList<String>();
+	private final Map<Integer, Integer> statusCounts =
+		new TreeMap<Integer, Integer>();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	public FakeRepository() throws IOException {
+		this(Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "fake-repository");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	private FakeRepository(final ExecutorService executor) throws IOException {
+		super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), executor,
+			System.err);
+		this.executor = executor;
+		start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the base URL of the repository, without a trailing slash
+	 */
+	public String getURL() {
+		return "http://127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * Delays every response by the given number of milliseconds.
+	 */
+	public void setLatency(final long milliseconds) {
+		latency = milliseconds;
+	}
+
+	/**
+	 * Limits the bandwidth, by delaying each response in proportion to its size.
+	 *
+	 * @param bytesPerSecond the bandwidth, or 0 for unlimited
+	 */
+	public void setBandwidth(final long bytesPerSecond) {
+		bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Fails the given fraction of the requests with a server error.
+	 *
+	 * @param rate the probability of an error, between 0 and 1
+	 * @param code the status code to respond with, e.g. 503
+	 */
+	public synchronized void setErrorRate(final double rate, final int code) {
+		errorRate = rate;
+		errorCode = code;
+	}
+
+	/**
+	 * Responds with <tt>404 Not Found</tt> to the given fraction of the
+	 * requests, even if the file exists.
+	 */
+	public synchronized void setNotFoundRate(final double rate) {
+		notFoundRate = rate;
+	}
+
+	/**
+	 * Fails the next requests with the given status code.
+	 *
+	 * @param count the number of requests to fail
+	 * @param code the status code
+	 */
+	public synchronized void failNext(final int count, final int code) {
+		failNext = count;
+		errorCode = code;
+	}
+
+	public synchronized void setSeed(final long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Sets the size of the <tt>.jar</tt> files generated by
+	 * {@link #addArtifact}.
+	 */
+	public void setJarSize(final int bytes) {
+		jarSize = bytes;
+	}
+
+	/**
+	 * Adds (or replaces) a file, together with its <tt>.sha1</tt> file.
+	 *
+	 * @param path the path relative to the repository root
+	 * @param contents the contents
+	 */
+	public void put(final String path, final byte[] contents) {
+		putRaw(path, contents);
+		putRaw(path + ".sha1", Checksums.toHex(Checksums.newSHA1().digest(
+			contents)).getBytes(ASCII));
+	}
+
+	/**
+	 * Adds (or replaces) a file, without touching its <tt>.sha1</tt> file.
+	 * <p>
+	 * This can be used to serve corrupt files.
+	 * </p>
+	 */
+	public void putRaw(final String path, final byte[] contents) {
+		files.put(normalize(path), contents);
+	}
+
+	public void remove(final String path) {
+		files.remove(normalize(path));
+		files.remove(normalize(path) + ".sha1");
+	}
+
+	public boolean contains(final String path) {
+		return files.containsKey(normalize(path));
+	}
+
+	/**
+	 * Adds a release artifact.
+	 *
+	 * @param groupId the groupId
+	 * @param artifactId the artifactId
+	 * @param version the version
+	 * @param dependencies the dependencies, as <tt>groupId:artifactId:version</tt>
+	 * @return the path of the version directory
+	 */
+	public String addArtifact(final String groupId, final String artifactId,
+		final String version, final String... dependencies) throws IOException
+	{
+		return addArtifact(groupId, artifactId, version, "jar", dependencies);
+	}
+
+	/**
+	 * Adds a release artifact with the given packaging; artifacts with
+	 * <tt>pom</tt> packaging do not get a <tt>.jar</tt> file.
+	 */
+	public String addArtifact(final String groupId, final String artifactId,
+		final String version, final String packaging, final String... dependencies)
+		throws IOException
+	{
+		final String directory = getPath(groupId, artifactId, version);
+		final String prefix = directory + artifactId + "-" + version;
+		put(prefix + ".pom", pom(groupId, artifactId, version, packaging,
+			dependencies));
+		if (!"pom".equals(packaging)) put(prefix + ".jar", jar(artifactId));
+		return directory;
+	}
+
+	/**
+	 * Adds (or updates) a snapshot artifact.
+	 *
+	 * @param groupId the groupId
+	 * @param artifactId the artifactId
+	 * @param version the version, ending in <tt>-SNAPSHOT</tt>
+	 * @param timestamp the timestamp of the build, e.g.
+	 *          <tt>20260101.120000</tt>
+	 * @param buildNumber the build number
+	 * @param dependencies the dependencies, as <tt>groupId:artifactId:version</tt>
+	 * @return the name of the <tt>.jar</tt> file
+	 */
+	public String addSnapshot(final String groupId, final String artifactId,
+		final String version, final String timestamp, final int buildNumber,
+		final String... dependencies) throws IOException
+	{
+		final String directory = getPath(groupId, artifactId, version);
+		final String build = version.substring(0, version.length() - "-SNAPSHOT"
+			.length()) + "-" + timestamp + "-" + buildNumber;
+		final String prefix = directory + artifactId + "-" + build;
+		put(prefix + ".pom", pom(groupId, artifactId, version, "jar",
+			dependencies));
+		put(prefix + ".jar", jar(artifactId + "-" + build));
+		put(directory + "maven-metadata.xml", ("<metadata><groupId>" + groupId +
+			"</groupId><artifactId>" + artifactId + "</artifactId><version>" +
+			version + "</version><versioning><snapshot><timestamp>" + timestamp +
+			"</timestamp><buildNumber>" + buildNumber +
+			"</buildNumber></snapshot></versioning></metadata>").getBytes(ASCII));
+		return artifactId + "-" + build + ".jar";
+	}
+
+	protected static String getPath(final String groupId,
+		final String artifactId, final String version)
+	{
+		return groupId.replace('.', '/') + "/" + artifactId + "/" + version + "/";
+	}
+
+	private static byte[] pom(final String groupId, final String artifactId,
+		final String version, final String packaging, final String... dependencies)
+	{
+		final StringBuilder builder = new StringBuilder();
+		builder.append("<project><modelVersion>4.0.0</modelVersion>");
+		builder.append("<groupId>").append(groupId).append("</groupId>");
+		builder.append("<artifactId>").append(artifactId).append("</artifactId>");
+		builder.append("<version>").append(version).append("</version>");
+		builder.append("<packaging>").append(packaging).append("</packaging>");
+		builder.append("<dependencies>");
+		for (final String dependency : dependencies) {
+			final String[] gav = dependency.split(":");
+			builder.append("<dependency><groupId>").append(gav[0]).append(
+				"</groupId><artifactId>").append(gav[1]).append(
+					"</artifactId><version>").append(gav[2]).append(
+						"</version></dependency>");
+		}
+		builder.append("</dependencies></project>");
+		return builder.toString().getBytes(ASCII);
+	}
+
+	private byte[] jar(final String name) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		final JarOutputStream out = new JarOutputStream(buffer, manifest);
+		// incompressible, but reproducible, contents
+		final byte[] payload = new byte[jarSize];
+		new Random(name.hashCode()).nextBytes(payload);
+		out.putNextEntry(new ZipEntry(name + ".bin"));
+		out.write(payload);
+		out.closeEntry();
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private static String normalize(String path) {
+		final int question = path.indexOf('?');
+		if (question >= 0) path = path.substring(0, question);
+		while (path.startsWith("/"))
+			path = path.substring(1);
+		return path.replaceAll("//+", "/");
+	}
+
+	/**
+	 * @return the number of requests served so far
+	 */
+	public synchronized int getRequestCount() {
+		return requests.size();
+	}
+
+	/**
+	 * @return the requests served so far, as <tt>&lt;method&gt; &lt;path&gt;
+	 *         &lt;status&gt;</tt>
+	 */
+	public synchronized List<String> getRequests() {
+		return new ArrayList<String>(requests);
+	}
+
+	/**
+	 * @return the number of responses per status code
+	 */
+	public synchronized Map<Integer, Integer> getStatusCounts() {
+		return new HashMap<Integer, Integer>(statusCounts);
+	}
+
+	/**
+	 * @return the number of bytes served (bodies only)
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public synchronized void resetStatistics() {
+		requests.clear();
+		statusCounts.clear();
+		bytesSent.set(0);
+	}
+
+	@Override
+	protected void handle(final Request request, final Response response)
+		throws IOException
+	{
+		final String path = normalize(request.getPath());
+		final int code;
+		final byte[] contents = files.get(path);
+		synchronized (this) {
+			if (failNext > 0) {
+				failNext--;
+				code = errorCode;
+			}
+			else if (errorRate > 0 && random.nextDouble() < errorRate) {
+				code = errorCode;
+			}
+			else if (notFoundRate > 0 && random.nextDouble() < notFoundRate) {
+				code = 404;
+			}
+			else if (!request.getMethod().equals("GET") && !request.getMethod()
+				.equals("HEAD"))
+			{
+				code = 405;
+			}
+			else code = contents == null ? 404 : 200;
+			requests.add(request.getMethod() + " " + path + " " + code);
+			final Integer count = statusCounts.get(code);
+			statusCounts.put(code, count == null ? 1 : count + 1);
+		}
+		long delay = latency;
+		if (code == 200 && bandwidth > 0) {
+			delay += contents.length * 1000l / bandwidth;
+		}
+		if (delay > 0) try {
+			Thread.sleep(delay);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (code != 200) {
+			response.sendError(code, null);
+			return;
+		}
+		// count before sending, so that the client cannot see stale statistics
+		if (request.getMethod().equals("GET")) bytesSent.addAndGet(contents.length);
+		response.send(200, path.endsWith(".xml") || path.endsWith(".pom")
+			? "text/xml" : "application/octet-stream", contents);
+	}
+}